@@ -0,0 +1,265 @@
+import util.CompileOptions;
+
+/**
+ * 语法分析的测试：类型检查和生成的代码的行为
+ * <p>
+ * 用法: java AnalyserTest，失败时抛出 AssertionError
+ */
+public class AnalyserTest {
+    public static void main(String[] args) throws Exception {
+        conditionOperands();
+        comparisons();
+        deepNesting();
+        uninitializedLocals();
+        breakContinue();
+        rotatedLoops();
+        tailCalls();
+        globalInitializers();
+        System.out.println("ok");
+    }
+
+    /**
+     * if/while 的条件和 &amp;&amp;、||、! 的操作数必须是 int
+     */
+    private static void conditionOperands() throws Exception {
+        String v = "fn v() -> void { }\n";
+        TestPrograms.expectCompileError(v + "fn main() -> int { if v() { putint(1); } return 0; }", "TypeMismatch");
+        TestPrograms.expectCompileError(v + "fn main() -> int { if v() && 1 { putint(1); } return 0; }", "TypeMismatch");
+        TestPrograms.expectCompileError(v + "fn main() -> int { if 1 || v() { putint(1); } return 0; }", "TypeMismatch");
+        TestPrograms.expectCompileError(v + "fn main() -> int { while !v() { } return 0; }", "TypeMismatch");
+        TestPrograms.expectCompileError("fn main() -> int { putint(!(-0.0)); return 0; }", "TypeMismatch");
+        TestPrograms.expectCompileError("fn main() -> int { let d: double = 0.5; if d { putint(1); } return 0; }",
+                "TypeMismatch");
+        TestPrograms.expectCompileError("fn main() -> int { let x: int = 1.0 && 1; return 0; }", "TypeMismatch");
+
+        TestPrograms.expectOutput("fn main() -> int {\n"
+                + "    let d: double = -0.0;\n"
+                + "    putint(!(d != 0.0)); putint(!0 && 2); putint(0 || !3); putint(!!(1 < 2));\n"
+                + "    if (d < 1.0) && !(1 > 2) { putint(7); }\n"
+                + "    return 0;\n"
+                + "}\n", "", "11017");
+    }
+
+    /**
+     * 六种比较在 int 和 double 上的结果：if、while 的条件里直接跳转，取反以后反过来跳，作为值时是 0/1
+     */
+    private static void comparisons() throws Exception {
+        String[] ops = {"<", "<=", ">", ">=", "==", "!="};
+        String[][] ints = {{"1", "2"}, {"2", "2"}, {"3", "2"}, {"-5", "3"}, {"-9223372036854775807", "9223372036854775807"}};
+        String[][] doubles = {{"1.5", "2.5"}, {"2.5", "2.5"}, {"3.0", "-1.0"}, {"-0.0", "0.0"}, {"1e300", "-1e300"}};
+        var noRotate = new CompileOptions();
+        noRotate.rotateLoops = false;
+        for (String type : new String[]{"int", "double"}) {
+            var source = new StringBuilder("fn main() -> int {\n"
+                    + "    let a: " + type + " = get" + type + "();\n"
+                    + "    let b: " + type + " = get" + type + "();\n"
+                    + "    let k: int;\n");
+            for (String op : ops) {
+                String cond = "a " + op + " b";
+                source.append("    if ").append(cond).append(" { putint(1); } else { putint(0); }\n")
+                        .append("    if !(").append(cond).append(") { putint(1); } else { putint(0); }\n")
+                        .append("    k = 0;\n")
+                        .append("    while ").append(cond).append(" { k = k + 1; if k == 3 { break; } }\n")
+                        .append("    putint(k);\n")
+                        .append("    k = 0;\n")
+                        .append("    while !(").append(cond).append(") { k = k + 1; if k == 3 { break; } }\n")
+                        .append("    putint(k);\n")
+                        .append("    putint(").append(cond).append("); putint(!(").append(cond).append(")); putchar(32);\n");
+            }
+            source.append("    return 0;\n}\n");
+            for (String[] pair : type.equals("int") ? ints : doubles) {
+                int order = type.equals("int") ? Long.compare(Long.parseLong(pair[0]), Long.parseLong(pair[1]))
+                        : Double.parseDouble(pair[0]) < Double.parseDouble(pair[1]) ? -1
+                        : Double.parseDouble(pair[0]) > Double.parseDouble(pair[1]) ? 1 : 0;
+                boolean[] results = {order < 0, order <= 0, order > 0, order >= 0, order == 0, order != 0};
+                var expected = new StringBuilder();
+                for (boolean r : results) {
+                    expected.append(r ? "103010 " : "010301 ");
+                }
+                String input = pair[0] + " " + pair[1];
+                TestPrograms.expectOutput(source.toString(), input, expected.toString());
+                TestPrograms.expectOutput(source.toString(), noRotate, input, expected.toString());
+            }
+        }
+    }
+
+    /**
+     * 分析器在栈足够大的线程里递归，嵌套 10 万层的表达式、语句块、if 和 else if 都能编译。
+     * 栈的大小按源码长度估计，每层只占一个字节源码的 ! 和 - 也够用
+     */
+    private static void deepNesting() throws Exception {
+        int depth = 100000;
+        String expr = "(".repeat(depth) + "7" + ")".repeat(depth);
+        TestPrograms.expectOutput("fn main() -> int { putint(" + expr + "); return 0; }\n", "", "7");
+
+        String blocks = "{".repeat(depth) + "putint(8);" + "}".repeat(depth);
+        TestPrograms.expectOutput("fn main() -> int { " + blocks + " return 0; }\n", "", "8");
+
+        String ifs = "if 1 {".repeat(depth) + "putint(9);" + "}".repeat(depth);
+        TestPrograms.expectOutput("fn main() -> int { " + ifs + " return 0; }\n", "", "9");
+
+        //else if 也是递归分析的
+        String chain = "if x == 0 { putint(0); } else ".repeat(depth) + "{ putint(x); }";
+        String source = "fn main() -> int { let x: int = getint(); " + chain + " return 0; }\n";
+        TestPrograms.expectOutput(source, "5", "5");
+        TestPrograms.expectOutput(source, "0", "0");
+
+        TestPrograms.expectOutput("fn main() -> int { putint(" + "!".repeat(depth) + "7); return 0; }\n", "", "1");
+        TestPrograms.expectOutput("fn main() -> int { putint(" + "-".repeat(depth) + "7); return 0; }\n", "", "7");
+
+        var options = new CompileOptions();
+        if (options.analyserStackSize(100) != 16 << 20 || options.analyserStackSize(1 << 20) != 1L << 30)
+            throw new AssertionError("stack size estimate " + options.analyserStackSize(100) + ", "
+                    + options.analyserStackSize(1 << 20));
+        options.stackSize = 1 << 20;
+        if (options.analyserStackSize(1 << 20) != 1 << 20)
+            throw new AssertionError("--stack-size is ignored");
+    }
+
+    /**
+     * 没有初值的局部变量是 0，即使它的槽刚被兄弟块或者上一轮循环用过
+     */
+    private static void uninitializedLocals() throws Exception {
+        TestPrograms.expectOutput("fn main() -> int {\n"
+                + "    { let a: int = 5; putint(a); }\n"
+                + "    { let b: int; putint(b); }\n"
+                + "    { let d: double = 2.5; putdouble(d); }\n"
+                + "    { let e: double; putdouble(e); }\n"
+                + "    return 0;\n"
+                + "}\n", "", "502.5000000.000000");
+        TestPrograms.expectOutput("fn main() -> int {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 3 { let b: int; putint(b); b = 7; i = i + 1; }\n"
+                + "    return 0;\n"
+                + "}\n", "", "000");
+    }
+
+    /**
+     * break 和 continue，循环翻转和不翻转时一样
+     */
+    private static void breakContinue() throws Exception {
+        String source = "fn main() -> int {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 10 {\n"
+                + "        i = i + 1;\n"
+                + "        if i == 3 { continue; }\n"
+                + "        if i == 7 { break; }\n"
+                + "        putint(i);\n"
+                + "    }\n"
+                + "    putchar(32);\n"
+                + "    let j: int = 0;\n"
+                + "    while j < 3 {\n"
+                + "        let k: int = 0;\n"
+                + "        while 1 { k = k + 1; if k > j { break; } putint(k); }\n"
+                + "        j = j + 1;\n"
+                + "        if j < 3 { continue; }\n"
+                + "        putint(9);\n"
+                + "    }\n"
+                + "    putchar(32);\n"
+                + "    while i > 0 { i = i - 1; if i > 2 { continue; } putint(i); }\n"
+                + "    return 0;\n"
+                + "}\n";
+        String expected = "12456 1129 210";
+        TestPrograms.expectOutput(source, "", expected);
+        var options = new CompileOptions();
+        options.rotateLoops = false;
+        TestPrograms.expectOutput(source, options, "", expected);
+    }
+
+    /**
+     * 翻转后的 while 条件在循环前和每次循环体后各算一次，总次数和原来一样，一次都不循环时也只算一次
+     */
+    private static void rotatedLoops() throws Exception {
+        String source = "let n: int = 0;\n"
+                + "fn next() -> int { n = n + 1; return n; }\n"
+                + "fn main() -> int {\n"
+                + "    while next() < 4 { putint(n); }\n"
+                + "    putint(n); putchar(32);\n"
+                + "    while next() < 0 { putint(99); }\n"
+                + "    putint(n); putchar(32);\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 3 && next() > 0 { i = i + 1; }\n"
+                + "    putint(n); putchar(32);\n"
+                + "    while (n > 0) { n = n - 3; }\n"
+                + "    putint(n);\n"
+                + "    return 0;\n"
+                + "}\n";
+        String expected = "1234 5 8 -1";
+        TestPrograms.expectOutput(source, "", expected);
+        var options = new CompileOptions();
+        options.rotateLoops = false;
+        TestPrograms.expectOutput(source, options, "", expected);
+    }
+
+    /**
+     * 对自己的尾调用：实参按源码顺序求值，交换参数也对，深度不受调用栈限制
+     */
+    private static void tailCalls() throws Exception {
+        String source = "fn swap(a: int, b: int, n: int) -> int {\n"
+                + "    if n == 0 { return a * 10 + b; }\n"
+                + "    return swap(b, a, n - 1);\n"
+                + "}\n"
+                + "fn read(a: int, b: int, n: int) -> int {\n"
+                + "    if n == 0 { return a * 10 + b; }\n"
+                + "    return read(getint(), getint() + a - a, n - 1);\n"
+                + "}\n"
+                + "fn alloc(a: int, b: int, n: int) -> int {\n"
+                + "    if n == 0 { return b - a; }\n"
+                + "    return alloc(b, malloc(8), n - 1);\n"
+                + "}\n"
+                + "fn count(n: int) -> void {\n"
+                + "    if n == 0 { return; }\n"
+                + "    putint(n);\n"
+                + "    return count(n - 1);\n"
+                + "}\n"
+                + "fn main() -> int {\n"
+                + "    putint(swap(1, 2, 3)); putchar(32);\n"
+                + "    putint(read(0, 0, 2)); putchar(32);\n"
+                + "    putint(alloc(0, 0, 3)); putchar(32);\n"
+                + "    count(3);\n"
+                + "    return 0;\n"
+                + "}\n";
+        String expected = "21 34 16 321";
+        TestPrograms.expectOutput(source, "1 2 3 4", expected);
+        var options = new CompileOptions();
+        options.tailCalls = false;
+        TestPrograms.expectOutput(source, options, "1 2 3 4", expected);
+
+        String deep = "fn sum(n: int, acc: int) -> int {\n"
+                + "    if n == 0 { return acc; }\n"
+                + "    return sum(n - 1, acc + n);\n"
+                + "}\n"
+                + "fn main() -> int { putint(sum(1000000, 0)); return 0; }\n";
+        TestPrograms.expectOutput(deep, "", "500000500000");
+        TestPrograms.expectRuntimeError(deep, options, "", "", "call stack overflow");
+    }
+
+    /**
+     * 全局变量的初值：能在编译时算出的直接写进全局数据区，其余的仍在 _start 里按声明顺序计算
+     */
+    private static void globalInitializers() throws Exception {
+        String source = "let a: int = 3 * 4;\n"
+                + "const b: int = a + 1;\n"
+                + "let c: double = 1.5 * 2.0;\n"
+                + "let d: int;\n"
+                + "const e: int = -(b / 2) + (2.7 as int);\n"
+                + "let f: int = getint();\n"
+                + "let g: int = f + a;\n"
+                + "let h: double = 7 as double / 2.0;\n"
+                + "let k: int = (3 < 4) + (1.0 > 2.0);\n"
+                + "let m: int = a;\n"
+                + "fn main() -> int {\n"
+                + "    putint(a); putchar(32); putint(b); putchar(32); putdouble(c); putchar(32);\n"
+                + "    putint(d); putchar(32); putint(e); putchar(32); putint(f); putchar(32);\n"
+                + "    putint(g); putchar(32); putdouble(h); putchar(32); putint(k); putchar(32);\n"
+                + "    a = a + 1; d = 4;\n"
+                + "    putint(a); putchar(32); putint(m); putchar(32); putint(d);\n"
+                + "    return 0;\n"
+                + "}\n";
+        TestPrograms.expectOutput(source, "5", "12 13 3.000000 0 -4 5 17 3.500000 1 13 12 4");
+
+        //除以 0 不在编译时算，留到运行时报错
+        TestPrograms.expectRuntimeError("let z: int = 1 / 0;\nfn main() -> int { putint(z); return 0; }\n",
+                new CompileOptions(), "", "", "divide by zero");
+    }
+}
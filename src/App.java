@@ -0,0 +1,366 @@
+import analyser.Analyser;
+import analyser.FuncInfo;
+import analyser.FunctionCache;
+import emitter.O0Writer;
+import error.CompileError;
+import optimizer.Optimizer;
+import tokenizer.StringIter;
+import tokenizer.Tokenizer;
+import util.BuildFingerprint;
+import util.CompileCache;
+import util.CompileOptions;
+import util.CompileStats;
+import util.Profile;
+import vm.Profiler;
+import vm.Program;
+import vm.VirtualMachine;
+import vm.VmError;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * 编译器入口
+ * <p>
+ * 用法: java App [选项] 输入文件... <br>
+ * -o 文件              输出文件（只有一个输入时可用，默认把 .c0 换成 .o0）<br>
+ * --cache-dir 目录     启用磁盘编译缓存 <br>
+ * --cache-size 字节数  缓存容量上限，默认 256MB <br>
+ * --cache-stats        结束时在 stderr 打印缓存命中/未命中次数 <br>
+ * --watch              监视输入文件，变化时增量重新编译（只重新分析改动过的函数）<br>
+ * --stack-size 字节数  分析线程的栈大小，默认按源码长度估计（每字节 1KB，至少 16MB）；0 表示用主线程 <br>
+ * --no-rotate-loops    不翻转 while 循环（每次迭代多一条跳转，代码略小）<br>
+ * --no-tail-calls      对自己的尾调用也新建调用帧 <br>
+ * --no-inline          不内联小函数 <br>
+ * --no-simplify        不做代数化简和强度削弱（乘除 2 的幂换成移位等）<br>
+ * --no-dce             不删除执行不到的代码 <br>
+ * --no-cse             不消除基本块内的公共子表达式 <br>
+ * --stats              每编译一个文件在 stderr 打印一行 JSON：各阶段耗时（纳秒）、token 数、
+ *                      每个函数的指令条数、符号查找次数和符号表最大层数 <br>
+ * --stats-jfr          把同样的数据作为 JFR 事件提交（c0.CompilePhase、c0.Compile）<br>
+ * --run                编译成功后用内置虚拟机运行 <br>
+ * --vm-stats           运行结束后在 stderr 打印执行的指令条数、耗时和 Jit 编译的函数个数 <br>
+ * --vm-simple          虚拟机逐条解释指令，不预解码（用于对比）<br>
+ * --vm-heap 字节数     虚拟机 malloc 用的堆的大小，默认 64MB，最大 1GB <br>
+ * --vm-unchecked       虚拟机读写堆时不检查是否越出已分配的部分 <br>
+ * --jit                虚拟机把热的函数编译成 JVM 字节码执行 <br>
+ * --jit-threshold N    函数被调用多少次后编译，默认 1000；有循环的函数第一次调用就编译 <br>
+ * --profile            运行结束后在 stderr 打印执行最多的指令、函数和条件跳转 <br>
+ * --profile-top N      --profile 每一项打印的条数，默认 10 <br>
+ * --profile-out 文件   运行时按调用路径统计指令条数，写成 flamegraph.pl 能读的折叠栈文件 <br>
+ * --profile-generate 文件  不做优化地编译并运行（标准输入作为训练数据），把分支和调用的计数写到文件，
+ *                      不写出 o0 <br>
+ * --profile-use 文件   按训练得到的计数重排基本块、让常走的分支顺序执行，并调整内联的大小限制
+ */
+public class App {
+    public static final String VERSION = "0.2.0";
+
+    public static void main(String[] args) throws IOException {
+        var inputs = new ArrayList<String>();
+        var options = new CompileOptions();
+        String output = null;
+        String cacheDir = null;
+        long cacheSize = 256L << 20;
+        boolean cacheStats = false;
+        boolean watch = false;
+        boolean run = false;
+        boolean vmStats = false;
+        boolean vmSimple = false;
+        int heapSize = 64 << 20;
+        boolean heapChecked = true;
+        int jitThreshold = 0;
+        boolean stats = false;
+        boolean statsJfr = false;
+        boolean profile = false;
+        int profileTop = 10;
+        String profileOut = null;
+        String profileGenerate = null;
+        String profileUse = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-o" -> output = args[++i];
+                case "--cache-dir" -> cacheDir = args[++i];
+                case "--cache-size" -> cacheSize = Long.parseLong(args[++i]);
+                case "--cache-stats" -> cacheStats = true;
+                case "--watch" -> watch = true;
+                case "--stack-size" -> options.stackSize = Long.parseLong(args[++i]);
+                case "--no-rotate-loops" -> options.rotateLoops = false;
+                case "--no-tail-calls" -> options.tailCalls = false;
+                case "--no-inline" -> options.inline = false;
+                case "--no-simplify" -> options.simplify = false;
+                case "--no-dce" -> options.eliminateDeadCode = false;
+                case "--no-cse" -> options.numberValues = false;
+                case "--stats" -> stats = true;
+                case "--stats-jfr" -> statsJfr = true;
+                case "--run" -> run = true;
+                case "--vm-stats" -> vmStats = true;
+                case "--vm-simple" -> vmSimple = true;
+                case "--vm-heap" -> heapSize = Integer.parseInt(args[++i]);
+                case "--vm-unchecked" -> heapChecked = false;
+                case "--jit" -> jitThreshold = Math.max(jitThreshold, 1000);
+                case "--jit-threshold" -> jitThreshold = Math.max(1, Integer.parseInt(args[++i]));
+                case "--profile" -> profile = true;
+                case "--profile-top" -> profileTop = Integer.parseInt(args[++i]);
+                case "--profile-out" -> profileOut = args[++i];
+                case "--profile-generate" -> profileGenerate = args[++i];
+                case "--profile-use" -> profileUse = args[++i];
+                default -> inputs.add(args[i]);
+            }
+        }
+        if (inputs.isEmpty() || (output != null || watch || profileOut != null || profileGenerate != null) && inputs.size() > 1) {
+            System.err.println("usage: java App [-o output] [--cache-dir dir] [--cache-size bytes] [--cache-stats] [--watch] [--stack-size bytes] [--no-rotate-loops] [--no-tail-calls] [--no-inline] [--no-simplify] [--no-dce] [--no-cse] [--stats] [--stats-jfr] [--run] [--vm-stats] [--vm-simple] [--vm-heap bytes] [--vm-unchecked] [--jit] [--jit-threshold n] [--profile] [--profile-top n] [--profile-out file] [--profile-generate file] [--profile-use file] input...");
+            System.exit(2);
+        }
+
+        if (profileGenerate != null) {
+            //训练用的程序不优化，计数的下标就是语法分析生成的下标
+            options.inline = false;
+            options.simplify = false;
+            options.eliminateDeadCode = false;
+            options.numberValues = false;
+            run = true;
+        } else if (profileUse != null) {
+            Profile training = Profile.read(Paths.get(profileUse));
+            if (training.getOptions().equals(options.analyserKey()))
+                options.profile = training;
+            else
+                System.err.println("warning: " + profileUse + " was recorded with different options, ignored");
+        }
+
+        CompileCache cache = cacheDir == null ? null : new CompileCache(Paths.get(cacheDir), cacheSize);
+        if (watch) {
+            watch(inputs.get(0), output, options, cache, stats, statsJfr);
+            return;
+        }
+
+        boolean failed = false;
+        for (String input : inputs) {
+            byte[] source = Files.readAllBytes(Paths.get(input));
+            CompileStats compileStats = stats || statsJfr ? new CompileStats() : null;
+            CompileCache.Entry entry = compileCached(source, options, cache, null, compileStats);
+            report(input, compileStats, stats, statsJfr);
+            if (profileGenerate == null) {
+                failed |= !writeResult(input, output, entry);
+            } else {
+                System.err.print(entry.diagnostics);
+                failed |= !entry.success;
+            }
+            if (run && entry.success)
+                failed |= !run(entry.binary, vmStats, vmSimple, heapSize, heapChecked, jitThreshold,
+                        profile ? profileTop : 0, profileOut, profileGenerate, options.analyserKey());
+        }
+
+        if (cache != null && cacheStats)
+            System.err.println("cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+        if (failed)
+            System.exit(1);
+    }
+
+    /**
+     * 文件每次变化后重新编译，同一个 FunctionCache 在多次编译间复用
+     */
+    static void watch(String input, String output, CompileOptions options, CompileCache cache, boolean stats,
+                      boolean statsJfr)
+            throws IOException {
+        Path path = Paths.get(input);
+        var functionCache = new FunctionCache();
+        long lastModified = -1;
+        while (true) {
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified != lastModified) {
+                lastModified = modified;
+                long start = System.nanoTime();
+                CompileStats compileStats = stats || statsJfr ? new CompileStats() : null;
+                CompileCache.Entry entry = compileCached(Files.readAllBytes(path), options, cache, functionCache,
+                        compileStats);
+                report(input, compileStats, stats, statsJfr);
+                writeResult(input, output, entry);
+                System.err.printf("compiled in %.1f ms: %d functions analysed, %d reused%n",
+                        (System.nanoTime() - start) / 1e6, functionCache.getAnalysed(), functionCache.getReused());
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param stats 编译统计，为 null 时不统计
+     */
+    static CompileCache.Entry compileCached(byte[] source, CompileOptions options, CompileCache cache,
+                                            FunctionCache functionCache,
+                                            CompileStats stats) throws IOException {
+        if (cache == null)
+            return compile(source, options, functionCache, stats);
+        String key = CompileCache.key(VERSION + "+" + BuildFingerprint.get(), options.key(), source);
+        CompileCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            entry = compile(source, options, functionCache, stats);
+            cache.put(key, entry);
+        } else if (stats != null) {
+            stats.setCached(true);
+        }
+        return entry;
+    }
+
+    static void report(String input, CompileStats stats, boolean json, boolean jfr) {
+        if (stats == null)
+            return;
+        if (json)
+            System.err.println(stats.toJson(input));
+        if (jfr)
+            stats.commitEvents(input);
+    }
+
+    /**
+     * 打印诊断信息，成功时写出 o0 文件
+     *
+     * @return 是否编译成功
+     */
+    static boolean writeResult(String input, String output, CompileCache.Entry entry) throws IOException {
+        if (!entry.diagnostics.isEmpty())
+            System.err.print(entry.diagnostics);
+        if (entry.success) {
+            Path out = Paths.get(output != null ? output : input.replaceFirst("(\\.c0)?$", ".o0"));
+            Files.write(out, entry.binary);
+        }
+        return entry.success;
+    }
+
+    /**
+     * 在内置虚拟机上运行编译结果
+     *
+     * @param heapSize 堆的字节数
+     * @param heapChecked 是否检查堆上读写的边界
+     * @param jitThreshold 大于 0 时启用 Jit，函数被调用这么多次后编译
+     * @param profileTop 大于 0 时打印执行计数报告，每一项打印这么多条
+     * @param profileOut 不为 null 时把折叠栈写到这个文件
+     * @param profileGenerate 不为 null 时把分支和调用的计数写到这个文件
+     * @param profileOptions 写进计数文件的分析选项，见 CompileOptions.analyserKey
+     * @return 是否正常结束
+     */
+    static boolean run(byte[] binary, boolean vmStats, boolean vmSimple, int heapSize, boolean heapChecked,
+                       int jitThreshold, int profileTop, String profileOut, String profileGenerate,
+                       String profileOptions) throws IOException {
+        Program program = Program.load(binary);
+        var vm = new VirtualMachine(program, System.in, System.out);
+        vm.setSimple(vmSimple);
+        vm.setHeap(heapSize, heapChecked);
+        if (jitThreshold > 0)
+            vm.setJit(jitThreshold);
+        Profiler profiler = profileTop > 0 || profileOut != null || profileGenerate != null
+                ? new Profiler(program) : null;
+        vm.setProfiler(profiler);
+        boolean ok = true;
+        long start = System.nanoTime();
+        try {
+            vm.run();
+        } catch (VmError e) {
+            System.out.flush();
+            System.err.println("runtime error: " + e.getMessage());
+            ok = false;
+        }
+        System.out.flush();
+        if (vmStats)
+            System.err.printf("vm: %d instructions executed in %.1f ms, %d functions compiled%n", vm.getExecuted(),
+                    (System.nanoTime() - start) / 1e6, vm.getJitCompiled());
+        if (profiler != null && profileTop > 0)
+            profiler.writeReport(System.err, profileTop);
+        if (profiler != null && profileOut != null) {
+            try (var out = new PrintStream(Files.newOutputStream(Paths.get(profileOut)))) {
+                profiler.writeCollapsed(out);
+            }
+        }
+        if (profiler != null && profileGenerate != null) {
+            try (var out = new PrintStream(Files.newOutputStream(Paths.get(profileGenerate)))) {
+                profiler.toProfile(profileOptions).write(out);
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * 记录从 start 到现在的阶段耗时
+     *
+     * @return 现在的时间
+     */
+    private static long phase(CompileStats stats, String name, long start) {
+        long now = System.nanoTime();
+        stats.phase(name, now - start);
+        return now;
+    }
+
+    /**
+     * 语法分析中按需调用了词法分析，把 lex 的时间从 parse 里分出来
+     */
+    private static long phase(CompileStats stats, String name, long start, long lexNanos) {
+        long now = System.nanoTime();
+        stats.phase(name, lexNanos);
+        stats.phase("parse", now - start - lexNanos);
+        return now;
+    }
+
+    /**
+     * 编译一份源码，编译错误作为诊断信息返回而不是抛出
+     *
+     * @param functionCache 增量编译缓存，可以为 null
+     * @param stats 编译统计，可以为 null
+     */
+    static CompileCache.Entry compile(byte[] source, CompileOptions options, FunctionCache functionCache,
+                                      CompileStats stats)
+            throws IOException {
+        long time = System.nanoTime();
+        var stringIter = new StringIter(new Scanner(new String(source, StandardCharsets.UTF_8)));
+        stringIter.readAll();
+        var tokenizer = new Tokenizer(stringIter);
+        var analyser = new Analyser(tokenizer, functionCache, options);
+        analyser.setSourceLength(source.length);
+        if (stats != null) {
+            time = phase(stats, "read", time);
+            tokenizer.setStats(stats);
+            analyser.setStats(stats);
+        }
+        if (functionCache != null)
+            functionCache.beginCompile(options.key());
+        try {
+            analyser.analyse();
+            if (functionCache != null)
+                functionCache.endCompile();
+            List<FuncInfo> functions = analyser.getFunctions();
+            if (stats != null) {
+                time = phase(stats, "lex", time, stats.getLexNanos());
+                int instructions = 0;
+                for (FuncInfo funcInfo : functions) {
+                    instructions += funcInfo.getInstructions().size();
+                }
+                stats.setInstructionsBeforeOptimize(instructions);
+            }
+            Optimizer.optimize(functions, options);
+            if (stats != null)
+                time = phase(stats, "optimize", time);
+            byte[] binary = new O0Writer(analyser.getGlobals(), analyser.getStartName(), analyser.getGlobalInit(), functions).write();
+            if (stats != null) {
+                phase(stats, "emit", time);
+                for (FuncInfo funcInfo : functions) {
+                    stats.function(funcInfo.getName(), funcInfo.getInstructions().size());
+                }
+            }
+            return new CompileCache.Entry(true, "", binary);
+        } catch (CompileError e) {
+            return new CompileCache.Entry(false, e + "\n", new byte[0]);
+        } catch (Error e) {
+            if (e instanceof VirtualMachineError)
+                throw e;
+            return new CompileCache.Entry(false, e.getMessage() + "\n", new byte[0]);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import analyser.FunctionCache;
+import util.BuildFingerprint;
+import util.CompileCache;
+import util.CompileOptions;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * 编译缓存的测试：换了编译器（版本号或者类文件）之后不能命中旧的缓存，编译选项只影响它所在的那次编译
+ * <p>
+ * 用法: java CompileCacheTest，失败时抛出 AssertionError
+ */
+public class CompileCacheTest {
+    public static void main(String[] args) throws Exception {
+        fingerprint();
+        keyIncludesCompiler();
+        optionsPerCompile();
+        System.out.println("ok");
+    }
+
+    /**
+     * 类文件的内容或者路径变了，指纹就变
+     */
+    private static void fingerprint() throws Exception {
+        Path dir = Files.createTempDirectory("fingerprint");
+        Files.createDirectories(dir.resolve("vm"));
+        Files.write(dir.resolve("App.class"), new byte[]{1, 2, 3});
+        Files.write(dir.resolve("vm/Jit.class"), new byte[]{4, 5});
+        Files.write(dir.resolve("README"), new byte[]{6});
+        String original = BuildFingerprint.of(dir);
+        if (!original.equals(BuildFingerprint.of(dir)))
+            throw new AssertionError("fingerprint is not stable");
+
+        Files.write(dir.resolve("README"), new byte[]{7});
+        if (!original.equals(BuildFingerprint.of(dir)))
+            throw new AssertionError("fingerprint depends on non-class files");
+
+        Files.write(dir.resolve("vm/Jit.class"), new byte[]{4, 6});
+        String changed = BuildFingerprint.of(dir);
+        if (changed.equals(original))
+            throw new AssertionError("fingerprint ignores class file contents");
+
+        Files.write(dir.resolve("vm/Jit.class"), new byte[]{4, 5});
+        Files.move(dir.resolve("vm/Jit.class"), dir.resolve("vm/Vm.class"));
+        if (BuildFingerprint.of(dir).equals(original))
+            throw new AssertionError("fingerprint ignores class file names");
+
+        if (BuildFingerprint.get().startsWith("unknown") || !BuildFingerprint.get().equals(BuildFingerprint.get()))
+            throw new AssertionError("cannot fingerprint the running compiler: " + BuildFingerprint.get());
+    }
+
+    /**
+     * 同一份源码和选项，编译器版本或者指纹不同时缓存不命中
+     */
+    private static void keyIncludesCompiler() throws Exception {
+        var cache = new CompileCache(Files.createTempDirectory("cache"), 1 << 20);
+        byte[] source = "fn main() -> int { return 0; }\n".getBytes(StandardCharsets.UTF_8);
+        String key = CompileCache.key("0.2.0+aaaa", "", source);
+        cache.put(key, new CompileCache.Entry(true, "", new byte[]{1, 2, 3}));
+
+        CompileCache.Entry entry = cache.get(CompileCache.key("0.2.0+aaaa", "", source));
+        if (entry == null || !Arrays.equals(entry.binary, new byte[]{1, 2, 3}))
+            throw new AssertionError("same compiler should hit the cache");
+        if (cache.get(CompileCache.key("0.2.0+bbbb", "", source)) != null)
+            throw new AssertionError("a different fingerprint should miss the cache");
+        if (cache.get(CompileCache.key("0.2.1+aaaa", "", source)) != null)
+            throw new AssertionError("a different version should miss the cache");
+        if (cache.getHits() != 1 || cache.getMisses() != 2)
+            throw new AssertionError("hits " + cache.getHits() + ", misses " + cache.getMisses());
+    }
+
+    /**
+     * 选项跟着每次编译走：同一个 JVM 里先用别的选项编译，不影响之后用默认选项编译的结果，
+     * 复用的 FunctionCache 在选项变化时也不会拿出别的选项下生成的函数体
+     */
+    private static void optionsPerCompile() throws Exception {
+        byte[] source = ("fn f(n: int) -> int { if n == 0 { return 0; } return f(n - 1); }\n"
+                + "fn main() -> int { let i: int = 0; while i < 3 { putint(f(i) + i * 8); i = i + 1; } return 0; }\n")
+                .getBytes(StandardCharsets.UTF_8);
+        var plain = new CompileOptions();
+        plain.rotateLoops = false;
+        plain.tailCalls = false;
+        plain.inline = false;
+        plain.simplify = false;
+        plain.eliminateDeadCode = false;
+        plain.numberValues = false;
+        byte[] fresh = compile(source, new CompileOptions(), null);
+        byte[] unoptimized = compile(source, plain, null);
+        if (Arrays.equals(fresh, unoptimized))
+            throw new AssertionError("options did not change the output");
+        if (!Arrays.equals(compile(source, new CompileOptions(), null), fresh))
+            throw new AssertionError("an earlier compile with other options changed the output");
+
+        var functionCache = new FunctionCache();
+        compile(source, plain, functionCache);
+        if (!Arrays.equals(compile(source, new CompileOptions(), functionCache), fresh))
+            throw new AssertionError("the function cache reused bodies compiled with other options");
+    }
+
+    private static byte[] compile(byte[] source, CompileOptions options, FunctionCache functionCache) throws Exception {
+        var entry = App.compile(source, options, functionCache, null);
+        if (!entry.success)
+            throw new AssertionError(entry.diagnostics);
+        return entry.binary;
+    }
+}
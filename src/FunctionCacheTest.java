@@ -0,0 +1,57 @@
+import analyser.FunctionCache;
+import util.CompileOptions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 增量编译缓存的测试：复用缓存的函数后，结果必须和不用缓存重新编译的一样
+ * <p>
+ * 用法: java FunctionCacheTest，失败时抛出 AssertionError
+ */
+public class FunctionCacheTest {
+    public static void main(String[] args) throws Exception {
+        //前面的函数多用了字符串，后面的函数里字面量在常量池的下标随之改变；
+        //g 的尾调用实参没有副作用，第二个实参读了参数 a，先算它、后覆盖 a，字面量的 push 被挪到后面
+        String tail = "fn g(a: int, b: int) -> int {\n"
+                + "    if b > 3 { return b; }\n"
+                + "    putstr(a);\n"
+                + "    return g(\"x\", a - a + b + 1);\n"
+                + "}\n"
+                + "fn main() -> int { f(); putint(g(\"y\", 0)); putln(); return 0; }\n";
+        String before = "fn f() -> void { putstr(\"a\"); }\n" + tail;
+        String after = "fn f() -> void { putstr(\"b\"); putstr(\"c\"); }\n" + tail;
+        checkIncremental(before, after, 2);
+
+        //字面量在会退回重新分析的调用实参里
+        tail = "fn h(s: int) -> int { putstr(s); return 1; }\n"
+                + "fn main() -> int { return h(\"z\") - 1; }\n";
+        checkIncremental("fn f() -> void { }\n" + tail, "fn f() -> void { putstr(\"q\"); }\n" + tail, 2);
+
+        //后来加了和库函数同名的用户函数，调用它的函数不能复用
+        String main = "fn main() -> int { putint(5); return 0; }\n";
+        checkIncremental("fn f() -> void { }\n" + main, "fn putint(x: int) -> void { putchar(88); }\n" + main, 0);
+        System.out.println("ok");
+    }
+
+    /**
+     * 先后编译 before 和 after，after 要复用 reused 个函数，并且和冷编译的结果逐字节相同
+     */
+    private static void checkIncremental(String before, String after, int reused) throws Exception {
+        var cache = new FunctionCache();
+        compile(before, cache);
+        byte[] warm = compile(after, cache);
+        if (cache.getReused() != reused)
+            throw new AssertionError("expected " + reused + " reused functions, got " + cache.getReused());
+        byte[] cold = compile(after, null);
+        if (!Arrays.equals(warm, cold))
+            throw new AssertionError("incremental compile differs from a fresh compile:\n" + after);
+    }
+
+    private static byte[] compile(String source, FunctionCache cache) throws Exception {
+        var entry = App.compile(source.getBytes(StandardCharsets.UTF_8), new CompileOptions(), cache, null);
+        if (!entry.success)
+            throw new AssertionError(entry.diagnostics);
+        return entry.binary;
+    }
+}
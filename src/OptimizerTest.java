@@ -0,0 +1,187 @@
+import analyser.FuncInfo;
+import analyser.Type;
+import instruction.Instruction;
+import instruction.Operation;
+import optimizer.Optimizer;
+import util.CompileOptions;
+import util.Profile;
+import vm.Profiler;
+import vm.Program;
+import vm.VirtualMachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 优化的测试：开不开某个优化，程序的输出都一样，并且优化确实改变了生成的代码
+ * <p>
+ * 用法: java OptimizerTest，失败时抛出 AssertionError
+ */
+public class OptimizerTest {
+    public static void main(String[] args) throws Exception {
+        inlining();
+        deadCode();
+        profileGuided();
+        computedAddressLoad();
+        System.out.println("ok");
+    }
+
+    /**
+     * 内联后实参只算一次，被内联函数里没有初值的局部变量每次调用都是 0
+     */
+    private static void inlining() throws Exception {
+        String source = "let n: int = 0;\n"
+                + "fn next() -> int { n = n + 1; return n; }\n"
+                + "fn sq(x: int) -> int { return x * x; }\n"
+                + "fn acc(x: int) -> int { let t: int; t = t + x; return t; }\n"
+                + "fn pick(a: int, b: int) -> int { if a > b { return a; } return b; }\n"
+                + "fn say(c: int) -> void { putchar(c); }\n"
+                + "fn main() -> int {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 3 { putint(acc(i + 1)); putint(sq(i - 2)); i = i + 1; }\n"
+                + "    putint(pick(getint(), 4)); putint(pick(2, getint()));\n"
+                + "    say(33);\n"
+                + "    putint(sq(next())); putint(sq(next())); putint(n);\n"
+                + "    return 0;\n"
+                + "}\n";
+        var off = new CompileOptions();
+        off.inline = false;
+        expectSameOutput(source, off, "7 1", "14213072!142");
+    }
+
+    /**
+     * 删掉执行不到的代码和值没有用到的表达式，但会出错的除法和堆读取要留着
+     */
+    private static void deadCode() throws Exception {
+        var off = new CompileOptions();
+        off.eliminateDeadCode = false;
+        String source = "fn main() -> int {\n"
+                + "    let x: int = getint();\n"
+                + "    if 0 { putint(5); }\n"
+                + "    x; 1 + 2; -x;\n"
+                + "    while 0 { putint(6); }\n"
+                + "    if x > 0 { putint(x); return 0; } else { putint(0 - x); return 1; }\n"
+                + "    putint(9);\n"
+                + "    return 0;\n"
+                + "}\n";
+        expectSameOutput(source, off, "4", "4");
+        expectSameOutput(source, off, "-3", "3");
+
+        String divide = "fn main() -> int { let z: int = getint(); 1 / z; putint(1); return 0; }\n";
+        for (CompileOptions options : new CompileOptions[]{new CompileOptions(), off}) {
+            TestPrograms.expectRuntimeError(divide, options, "0", "", "divide by zero");
+        }
+        TestPrograms.expectOutput(divide, "2", "1");
+
+        String load = "fn main() -> int {\n"
+                + "    let p: int = malloc(8);\n"
+                + "    loadint(p);\n"
+                + "    putint(2);\n"
+                + "    loadint(p + 100000);\n"
+                + "    putint(3);\n"
+                + "    return 0;\n"
+                + "}\n";
+        for (CompileOptions options : new CompileOptions[]{new CompileOptions(), off}) {
+            TestPrograms.expectRuntimeError(load, options, "", "2", "invalid heap address");
+        }
+    }
+
+    /**
+     * 按训练运行的计数重排基本块、调整内联后，输出和不用计数时一样，换一组输入也一样
+     */
+    private static void profileGuided() throws Exception {
+        String source = "fn classify(x: int) -> int { if x < 5 { return 1; } else { return 2; } }\n"
+                + "fn main() -> int {\n"
+                + "    let n: int = getint();\n"
+                + "    let i: int = 0; let s: int = 0;\n"
+                + "    while i < n {\n"
+                + "        if i < 10 { s = s + classify(i); } else { s = s + i; }\n"
+                + "        if i == 500 { putchar(42); }\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s);\n"
+                + "    return 0;\n"
+                + "}\n";
+        //和 --profile-generate 一样，训练用的程序不优化
+        var training = new CompileOptions();
+        training.inline = false;
+        training.simplify = false;
+        training.eliminateDeadCode = false;
+        training.numberValues = false;
+        Program program = Program.load(TestPrograms.compile(source, training));
+        var vm = new VirtualMachine(program, new ByteArrayInputStream("1000".getBytes(StandardCharsets.UTF_8)),
+                new ByteArrayOutputStream());
+        var profiler = new Profiler(program);
+        vm.setProfiler(profiler);
+        vm.run();
+        Path file = Files.createTempFile("profile", ".txt");
+        try (var out = new PrintStream(Files.newOutputStream(file))) {
+            profiler.toProfile(training.analyserKey()).write(out);
+        }
+
+        var use = new CompileOptions();
+        use.profile = Profile.read(file);
+        Files.delete(file);
+        expectSameOutput(source, use, "1000", "*499470");
+        expectSameOutput(source, use, "7", "9");
+        expectSameOutput(source, use, "0", "0");
+    }
+
+    /**
+     * 默认选项和 changed 选项编译出的代码不同，但运行结果都是 expected
+     */
+    private static void expectSameOutput(String source, CompileOptions changed, String input, String expected)
+            throws Exception {
+        if (Arrays.equals(TestPrograms.compile(source), TestPrograms.compile(source, changed)))
+            throw new AssertionError("the optimization did not change the code:\n" + source);
+        TestPrograms.expectOutput(source, input, expected);
+        TestPrograms.expectOutput(source, changed, input, expected);
+    }
+
+    /**
+     * 算出来的地址可能就是某个局部变量，中间 store 过已知的局部变量时，两次从同一个算出来的地址 load 不能合并成 dup
+     */
+    private static void computedAddressLoad() {
+        var options = new CompileOptions();
+        options.inline = false;
+        options.simplify = false;
+        options.eliminateDeadCode = false;
+        var body = new ArrayList<>(List.of(
+                new Instruction(Operation.push, 8), new Instruction(Operation.load_64),
+                new Instruction(Operation.loca, 0), new Instruction(Operation.push, 5), new Instruction(Operation.store_64),
+                new Instruction(Operation.push, 8), new Instruction(Operation.load_64),
+                new Instruction(Operation.add_i), new Instruction(Operation.print_i), new Instruction(Operation.ret)));
+        var stored = new FuncInfo(1, 0, Type.VOID);
+        stored.setInstructions(body, 1);
+        Optimizer.optimize(List.of(stored), options);
+        if (loads(stored) != 2)
+            throw new AssertionError("load after a store to a local was replaced: " + stored.getInstructions());
+
+        //没有 store 时第二次 load 换成 dup
+        body = new ArrayList<>(List.of(
+                new Instruction(Operation.push, 8), new Instruction(Operation.load_64),
+                new Instruction(Operation.push, 8), new Instruction(Operation.load_64),
+                new Instruction(Operation.add_i), new Instruction(Operation.print_i), new Instruction(Operation.ret)));
+        var plain = new FuncInfo(1, 0, Type.VOID);
+        plain.setInstructions(body, 1);
+        Optimizer.optimize(List.of(plain), options);
+        if (loads(plain) != 1)
+            throw new AssertionError("repeated load was not replaced: " + plain.getInstructions());
+    }
+
+    private static int loads(FuncInfo funcInfo) {
+        int count = 0;
+        for (Instruction instruction : funcInfo.getInstructions()) {
+            if (instruction.getOpt() == Operation.load_64)
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,46 @@
+import util.CompileOptions;
+
+/**
+ * 代数化简的测试：化简后的结果和不化简时虚拟机算出的一样，尤其是负数的除法
+ * <p>
+ * 用法: java SimplifierTest，失败时抛出 AssertionError
+ */
+public class SimplifierTest {
+    public static void main(String[] args) throws Exception {
+        negativeDivision();
+        System.out.println("ok");
+    }
+
+    /**
+     * div_i 向零取整；x / 2^k 换成移位后负数也要向零取整，x / -1 换成 neg_i 后 MIN / -1 仍是 MIN
+     */
+    private static void negativeDivision() throws Exception {
+        String source = "fn p(v: int) -> void { putint(v); putchar(32); }\n"
+                + "fn main() -> int {\n"
+                + "    let x: int = getint();\n"
+                + "    p(-7 / 2); p(7 / -2); p(-8 / 4); p(-1 / 2); p(-7 / -1);\n"
+                + "    p(x / -1); p(x * -1); p(x / 1); p(x / 2); p(x / 4); p(x / 1024); p(x / 4611686018427387904);\n"
+                + "    p(-x / 2); p((x - 1) / 8);\n"
+                + "    return 0;\n"
+                + "}\n";
+        long[] inputs = {-7, -1, 0, 1, 7, -1024, -1025, 1023, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long x : inputs) {
+            String expected = expected(x);
+            TestPrograms.expectOutput(source, Long.toString(x), expected);
+            var options = new CompileOptions();
+            options.simplify = false;
+            TestPrograms.expectOutput(source, options, Long.toString(x), expected);
+        }
+    }
+
+    private static String expected(long x) {
+        long[] values = {-7 / 2, 7 / -2, -8 / 4, -1 / 2, -7 / -1,
+                x / -1, x * -1, x / 1, x / 2, x / 4, x / 1024, x / 4611686018427387904L,
+                -x / 2, (x - 1) / 8};
+        var sb = new StringBuilder();
+        for (long v : values) {
+            sb.append(v).append(' ');
+        }
+        return sb.toString();
+    }
+}
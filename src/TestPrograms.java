@@ -0,0 +1,95 @@
+import util.CompileOptions;
+import vm.Program;
+import vm.VirtualMachine;
+import vm.VmError;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 测试用的工具：编译一段源码，在虚拟机的几种执行方式下运行并比较输出
+ */
+class TestPrograms {
+    /**
+     * @return 编译出的 o0，编译失败时抛出 AssertionError
+     */
+    static byte[] compile(String source) throws IOException {
+        return compile(source, new CompileOptions());
+    }
+
+    static byte[] compile(String source, CompileOptions options) throws IOException {
+        var entry = App.compile(source.getBytes(StandardCharsets.UTF_8), options, null, null);
+        if (!entry.success)
+            throw new AssertionError("compile failed: " + entry.diagnostics + source);
+        return entry.binary;
+    }
+
+    /**
+     * @return 编译错误信息，编译成功时抛出 AssertionError
+     */
+    static String compileError(String source) throws IOException {
+        var entry = App.compile(source.getBytes(StandardCharsets.UTF_8), new CompileOptions(), null, null);
+        if (entry.success)
+            throw new AssertionError("expected a compile error:\n" + source);
+        return entry.diagnostics;
+    }
+
+    static void expectCompileError(String source, String error) throws IOException {
+        String diagnostics = compileError(source);
+        if (!diagnostics.contains(error))
+            throw new AssertionError("expected " + error + ", got " + diagnostics + source);
+    }
+
+    /**
+     * @param jitThreshold 0 表示不用 Jit
+     * @return 程序的输出，运行时错误接在输出后面，写成 "runtime error: 信息"
+     */
+    static String run(byte[] binary, String input, boolean simple, int jitThreshold) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var vm = new VirtualMachine(Program.load(binary), new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        vm.setSimple(simple);
+        if (jitThreshold > 0)
+            vm.setJit(jitThreshold);
+        String error = "";
+        try {
+            vm.run();
+        } catch (VmError e) {
+            error = "runtime error: " + e.getMessage();
+        }
+        return out.toString(StandardCharsets.UTF_8) + error;
+    }
+
+    /**
+     * 编译运行，逐条解释、预解码和 Jit（阈值 1，函数都编译）的输出都必须是 expected
+     */
+    static void expectOutput(String source, String input, String expected) throws IOException {
+        expectOutput(source, new CompileOptions(), input, expected);
+    }
+
+    static void expectOutput(String source, CompileOptions options, String input, String expected) throws IOException {
+        byte[] binary = compile(source, options);
+        String[] modes = {"simple", "decoded", "jit"};
+        String[] outputs = {run(binary, input, true, 0), run(binary, input, false, 0), run(binary, input, false, 1)};
+        for (int i = 0; i < modes.length; i++) {
+            if (!outputs[i].equals(expected))
+                throw new AssertionError(modes[i] + ": expected \"" + expected + "\", got \"" + outputs[i] + "\"\n" + source);
+        }
+    }
+
+    /**
+     * 编译运行，几种执行方式都先输出 output，然后报 error 开头的运行时错误（错误信息里可能有地址等细节）
+     */
+    static void expectRuntimeError(String source, CompileOptions options, String input, String output, String error)
+            throws IOException {
+        byte[] binary = compile(source, options);
+        String[] modes = {"simple", "decoded", "jit"};
+        String[] outputs = {run(binary, input, true, 0), run(binary, input, false, 0), run(binary, input, false, 1)};
+        for (int i = 0; i < modes.length; i++) {
+            if (!outputs[i].startsWith(output + "runtime error: " + error))
+                throw new AssertionError(modes[i] + ": expected \"" + output + "runtime error: " + error + "...\", got \""
+                        + outputs[i] + "\"\n" + source);
+        }
+    }
+}
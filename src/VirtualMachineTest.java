@@ -0,0 +1,151 @@
+import instruction.Instruction;
+import instruction.Operation;
+import util.CompileOptions;
+import vm.Program;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 虚拟机的测试：几种执行方式的行为必须一致
+ * <p>
+ * 用法: java VirtualMachineTest，失败时抛出 AssertionError
+ */
+public class VirtualMachineTest {
+    public static void main(String[] args) throws Exception {
+        callDepth();
+        printDouble();
+        heap();
+        stackBounds();
+        System.out.println("ok");
+    }
+
+    /**
+     * Jit 编译出的函数和解释执行一样受最大调用深度（1 << 16）限制
+     */
+    private static void callDepth() throws Exception {
+        String rec = "fn rec(n: int) -> int {\n"
+                + "    if n == 0 { return 0; }\n"
+                + "    return rec(n - 1) + 1;\n"
+                + "}\n"
+                + "fn main() -> int { putint(rec(getint())); return 0; }\n";
+        TestPrograms.expectOutput(rec, "1000", "1000");
+        TestPrograms.expectOutput(rec, "65534", "65534");
+        TestPrograms.expectOutput(rec, "65535", "runtime error: call stack overflow");
+        TestPrograms.expectOutput(rec, "100000", "runtime error: call stack overflow");
+    }
+
+    /**
+     * putdouble 的输出和 String.format("%.6f") 一样，包括舍入的边界、负零、很大的数、无穷和 NaN
+     */
+    private static void printDouble() throws Exception {
+        String[] literals = {"0.0", "-0.0", "1.5", "0.0000005", "0.0000015", "0.0000025", "2.5e-7", "999999.9999995",
+                "1000000.0", "1.0e20", "-123.456", "1.0 / 3.0", "-2.0 / 3.0", "1.0 / 0.0", "-1.0 / 0.0", "0.0 / 0.0"};
+        double[] values = {0.0, -0.0, 1.5, 0.0000005, 0.0000015, 0.0000025, 2.5e-7, 999999.9999995,
+                1000000.0, 1.0e20, -123.456, 1.0 / 3.0, -2.0 / 3.0, 1.0 / 0.0, -1.0 / 0.0, 0.0 / 0.0};
+        var source = new StringBuilder("fn p(d: double) -> void { putdouble(d); putchar(32); }\n"
+                + "fn main() -> int {\n");
+        var expected = new StringBuilder();
+        for (int i = 0; i < literals.length; i++) {
+            source.append("    p(").append(literals[i]).append(");\n");
+            expected.append(String.format("%.6f", values[i])).append(' ');
+        }
+        source.append("    let i: int = 0;\n"
+                + "    while i < 2000 { p(i as double / 7.0 - 100.0); p(i as double * 0.0000005); i = i + 1; }\n"
+                + "    return 0;\n"
+                + "}\n");
+        for (int i = 0; i < 2000; i++) {
+            expected.append(String.format("%.6f", (double) i / 7.0 - 100.0)).append(' ');
+            expected.append(String.format("%.6f", (double) i * 0.0000005)).append(' ');
+        }
+        TestPrograms.expectOutput(source.toString(), "", expected.toString());
+    }
+
+    /**
+     * malloc/free 和堆上的读写，以及重复释放、释放不是 malloc 得到的地址、越界读写时的运行时错误
+     */
+    private static void heap() throws Exception {
+        TestPrograms.expectOutput("fn main() -> int {\n"
+                + "    let p: int = malloc(16);\n"
+                + "    storeint(p, 7); storeint(p + 8, 9);\n"
+                + "    putint(loadint(p) + loadint(p + 8)); putchar(32);\n"
+                + "    storedouble(p, 2.5); putdouble(loaddouble(p)); putchar(32);\n"
+                + "    storebyte(p + 8, 300); putint(loadbyte(p + 8)); putchar(32);\n"
+                + "    free(p);\n"
+                + "    let q: int = malloc(16);\n"
+                + "    putint(q - p); putchar(32);\n"
+                + "    free(q); free(0);\n"
+                + "    let big: int = malloc(100000);\n"
+                + "    storeint(big + 99992, 5); putint(loadint(big + 99992));\n"
+                + "    return 0;\n"
+                + "}\n", "", "16 2.500000 44 0 5");
+
+        var options = new CompileOptions();
+        String alloc = "fn main() -> int { let p: int = malloc(16); putint(1);\n";
+        TestPrograms.expectRuntimeError(alloc + "free(p); free(p); return 0; }\n", options, "", "1", "double free of address");
+        TestPrograms.expectRuntimeError(alloc + "free(p + 8); return 0; }\n", options, "", "1", "invalid free of address");
+        TestPrograms.expectRuntimeError(alloc + "putint(loadint(p + 100000)); return 0; }\n", options, "", "1",
+                "invalid heap address");
+        TestPrograms.expectRuntimeError(alloc + "storeint(p + 100000, 1); return 0; }\n", options, "", "1",
+                "invalid heap address");
+    }
+
+    /**
+     * 操作数栈不够或者超出栈的大小时报 stack underflow/overflow，之前的输出照常保留
+     */
+    private static void stackBounds() throws Exception {
+        expectAll(assemble(new Instruction(Operation.pop), new Instruction(Operation.ret)),
+                "runtime error: stack underflow");
+        expectAll(assemble(new Instruction(Operation.push, 5), new Instruction(Operation.print_i),
+                new Instruction(Operation.print_i), new Instruction(Operation.ret)), "5runtime error: stack underflow");
+        expectAll(assemble(new Instruction(Operation.push, 1), new Instruction(Operation.add_i),
+                new Instruction(Operation.ret)), "runtime error: stack underflow");
+        expectAll(assemble(new Instruction(Operation.push, 1), new Instruction(Operation.cmp_i),
+                new Instruction(Operation.br_true, 0), new Instruction(Operation.ret)), "runtime error: stack underflow");
+        expectAll(assemble(new Instruction(Operation.push, 1), new Instruction(Operation.br, -2)),
+                "runtime error: stack overflow");
+        expectAll(assemble(new Instruction(Operation.loca, 0), new Instruction(Operation.dup),
+                new Instruction(Operation.br, -2)), "runtime error: stack overflow");
+    }
+
+    private static void expectAll(byte[] binary, String expected) throws IOException {
+        String[] modes = {"simple", "decoded", "jit"};
+        String[] outputs = {TestPrograms.run(binary, "", true, 0), TestPrograms.run(binary, "", false, 0),
+                TestPrograms.run(binary, "", false, 1)};
+        for (int i = 0; i < modes.length; i++) {
+            if (!outputs[i].equals(expected))
+                throw new AssertionError(modes[i] + ": expected \"" + expected + "\", got \"" + outputs[i] + "\"");
+        }
+    }
+
+    /**
+     * @return 只有一个没有局部变量的 _start 函数的 o0 程序
+     */
+    private static byte[] assemble(Instruction... body) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeInt(Program.MAGIC);
+        out.writeInt(1);
+        out.writeInt(1);
+        byte[] name = "_start".getBytes(StandardCharsets.UTF_8);
+        out.writeByte(1);
+        out.writeInt(name.length);
+        out.write(name);
+        out.writeInt(1);
+        out.writeInt(0);//name
+        out.writeInt(0);//ret_slots
+        out.writeInt(0);//param_slots
+        out.writeInt(0);//loc_slots
+        out.writeInt(body.length);
+        for (Instruction instruction : body) {
+            out.writeByte(instruction.getOpt().getCode());
+            if (instruction.getOpt().getParamSize() == 8)
+                out.writeLong(instruction.getX());
+            else if (instruction.getOpt().getParamSize() == 4)
+                out.writeInt((int) instruction.getX());
+        }
+        return bytes.toByteArray();
+    }
+}
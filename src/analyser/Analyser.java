@@ -6,44 +6,159 @@ import instruction.Operation;
 import tokenizer.Token;
 import tokenizer.TokenType;
 import tokenizer.Tokenizer;
+import util.CompileOptions;
+import util.CompileStats;
 import util.Pos;
 
-import javax.xml.validation.TypeInfoProvider;
 import java.util.*;
 
 public final class Analyser {
 
     Tokenizer tokenizer;
     ArrayList<Instruction> instructions;
-    static ArrayList<BlockSymbol> symbolTable = new ArrayList<>();
+    ArrayList<BlockSymbol> symbolTable = new ArrayList<>();
     int top = -1;                                                       //symbolTable栈顶
-    static HashMap<String, FuncInfo> funList = new HashMap<>();                 //name -> id,para_cnt
-    int funID = 0;
+    HashMap<String, FuncInfo> funList = new HashMap<>();                 //name -> id,para_cnt
+    ArrayList<FuncInfo> functions = new ArrayList<>();                  //按funID排列的函数
+    int funID = 1;                                                      //0号函数留给_start
     int localParaCnt;
-    static BlockSymbol globalSymbol = new BlockSymbol();
+    BlockSymbol globalSymbol = new BlockSymbol();
+    /** 全局数据区，下标就是 globa 的操作数 */
+    ArrayList<GlobalDef> globals = new ArrayList<>();
+    /** 初值在编译时算出来的全局变量，全局变量下标 -> 值。初始化代码只写各自的变量，这些值在进入 main 之前都不会变 */
+    HashMap<Integer, Long> globalValues = new HashMap<>();
+    /** 初值不是常量的全局变量的初始化代码，在 _start 里调用 main 之前执行 */
+    List<Instruction> globalInit = List.of();
+    /** 字符串字面量和函数名，存在全局数据区里 */
+    StringPool strings = new StringPool(globals);
+    /** _start 的函数名在全局数据区的下标 */
+    int startName;
     String curFunc;//当前运行的函数名
 
 
     /** 当前偷看的 token */
     Token peekedToken = null;
 
+    /** 需要重新读一遍的 token，优先于 tokenizer */
+    ArrayDeque<Token> replay = new ArrayDeque<>();
+    /** 不为 null 时记录读到的每个 token，用于计算函数指纹 */
+    ArrayList<Token> recording = null;
 
-//    /** 符号表 */
-//    HashMap<String, SymbolEntry> symbolTable = new HashMap<>();
+    /** 为 true 时下一次 analyseExpr 处于条件上下文，结果可以是挂起的条件而不是布尔值 */
+    boolean condition = false;
+    /** 条件上下文中刚分析完的表达式挂起的条件，没有时为 null */
+    Condition lastCondition = null;
 
-    /** 下一个变量的栈偏移 */
+    /** 增量编译缓存，为 null 时不启用 */
+    FunctionCache functionCache = null;
+    /** 当前函数中正在分析的循环，最内层在栈顶 */
+    ArrayDeque<LoopContext> loops = new ArrayDeque<>();
+
+    /** 编译统计，为 null 时不统计 */
+    CompileStats stats = null;
+
+    /** 当前函数中对用户函数的调用 */
+    ArrayList<CallSite> callSites = new ArrayList<>();
+
+    /** 当前函数调用过的函数及其签名，库函数的签名记为 FunctionCache.LIBRARY */
+    HashMap<String, String> deps = new HashMap<>();
+
+    /** 当前函数中压入字符串字面量的 push（按对象身份，尾调用会挪动实参的指令）-> 字符串，复用缓存的函数体时据此重新放进常量池 */
+    IdentityHashMap<Instruction, String> stringUses = new IdentityHashMap<>();
+
+    /** 下一个变量的栈偏移，块结束时回退到块开始时的值，以便兄弟块复用 */
     int nextOffset = 0;
 
+    private final CompileOptions options;
+    /** 分析线程的栈大小，0 表示在调用线程上分析 */
+    private long stackSize;
+
     public Analyser(Tokenizer tokenizer) {
+        this(tokenizer, null, new CompileOptions());
+    }
+
+    public Analyser(Tokenizer tokenizer, FunctionCache functionCache, CompileOptions options) {
         this.tokenizer = tokenizer;
         this.instructions = new ArrayList<>();
+        this.functionCache = functionCache;
+        this.options = options;
+        this.stackSize = options.analyserStackSize(-1);
     }
 
     public List<Instruction> analyse() throws CompileError {
-        analyseProgram();
+        if (stackSize == 0) {
+            analyseProgram();
+            return instructions;
+        }
+        Throwable[] error = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                analyseProgram();
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        }, "analyser", stackSize);
+        thread.start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (error[0] instanceof CompileError)
+            throw (CompileError) error[0];
+        if (error[0] instanceof RuntimeException)
+            throw (RuntimeException) error[0];
+        if (error[0] instanceof Error)
+            throw (Error) error[0];
         return instructions;
     }
 
+    /**
+     * @param sourceLength 源码的字节数，栈的大小据此估计，见 CompileOptions.analyserStackSize
+     */
+    public void setSourceLength(long sourceLength) {
+        this.stackSize = options.analyserStackSize(sourceLength);
+    }
+
+    public void setStats(CompileStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @return 按funID排列的所有函数，须在analyse()之后调用
+     */
+    public List<FuncInfo> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * @return 全局数据区的每一项：全局变量、字符串字面量和函数名，须在analyse()之后调用
+     */
+    public List<GlobalDef> getGlobals() {
+        return globals;
+    }
+
+    /**
+     * @return _start 的函数名在全局数据区的下标
+     */
+    public int getStartName() {
+        return startName;
+    }
+
+    /**
+     * @return 放进 _start 的全局变量初始化代码
+     */
+    public List<Instruction> getGlobalInit() {
+        return globalInit;
+    }
+
     /**
      * 查看下一个 Token
      * 
@@ -52,11 +167,18 @@ public final class Analyser {
      */
     private Token peek() throws TokenizeError {
         if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
+            peekedToken = readToken();
         }
         return peekedToken;
     }
 
+    private Token readToken() throws TokenizeError {
+        Token token = replay.isEmpty() ? tokenizer.nextToken() : replay.poll();
+        if (recording != null)
+            recording.add(token);
+        return token;
+    }
+
     /**
      * 获取下一个 Token
      * 
@@ -69,7 +191,7 @@ public final class Analyser {
             peekedToken = null;
             return token;
         } else {
-            return tokenizer.nextToken();
+            return readToken();
         }
     }
 
@@ -117,26 +239,59 @@ public final class Analyser {
         }
     }
 
-    private boolean isFirst_vt_stmt() throws CompileError{
-        return check(TokenType.MINUS)||check(TokenType.IDENT)||check(TokenType.UINT_LITERAL)
-                ||check(TokenType.STRING_LITERAL)||check(TokenType.DOUBLE_LITERAL)
-                ||check(TokenType.L_PAREN)||check(TokenType.LET_KW)||check(TokenType.CONST_KW)
-                ||check(TokenType.IF_KW)||check(TokenType.WHILE_KW)||check(TokenType.RETURN_KW)
-                ||check(TokenType.SEMICOLON)||check(TokenType.L_BRACE);
+    /**
+     * 下一个 token 的类型
+     */
+    private TokenType peekType() throws TokenizeError {
+        return peek().getTokenType();
     }
 
+    /**
+     * 由 TokenType 组成的集合，第 ordinal() 位为 1 表示在集合中。
+     * 集合都在类初始化时用它构造，所以在这里检查 TokenType 不超过 64 个，否则不同的类型会落到同一位
+     */
+    private static long bits(TokenType... types) {
+        if (TokenType.values().length > Long.SIZE)
+            throw new IllegalStateException("TokenType 超过 " + Long.SIZE + " 个，long 存不下 FIRST 集合");
+        long set = 0;
+        for (TokenType type : types) {
+            set |= 1L << type.ordinal();
+        }
+        return set;
+    }
+
+    private static boolean in(long set, TokenType tt) {
+        return (set >>> tt.ordinal() & 1) != 0;
+    }
+
+    /** FIRST(expr) */
+    static final long FIRST_EXPR = bits(TokenType.MINUS, TokenType.NOT, TokenType.IDENT, TokenType.UINT_LITERAL,
+            TokenType.STRING_LITERAL, TokenType.DOUBLE_LITERAL, TokenType.L_PAREN);
+    /** FIRST(decl_stmt) */
+    static final long FIRST_DECL = bits(TokenType.LET_KW, TokenType.CONST_KW);
+    /** FIRST(stmt) */
+    static final long FIRST_STMT = FIRST_EXPR | FIRST_DECL | bits(TokenType.IF_KW, TokenType.WHILE_KW,
+            TokenType.RETURN_KW, TokenType.BREAK_KW, TokenType.CONTINUE_KW, TokenType.SEMICOLON, TokenType.L_BRACE);
+    /** FIRST(function_param) */
+    static final long FIRST_PARAM = bits(TokenType.CONST_KW, TokenType.IDENT);
+    /** 有副作用的指令，尾调用的实参里没有这些指令时可以调整计算顺序 */
+    static final EnumSet<Operation> SIDE_EFFECTS = EnumSet.of(Operation.call, Operation.callname, Operation.stackalloc, Operation.store_8,
+            Operation.store_16, Operation.store_32, Operation.store_64, Operation.scan_i, Operation.scan_c,
+            Operation.scan_f, Operation.print_i, Operation.print_c, Operation.print_f, Operation.prints,
+            Operation.println, Operation.panic, Operation.alloc, Operation.free);
+    /** 比较运算符 */
+    static final long COMPARE = bits(TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE, TokenType.EQ,
+            TokenType.NEQ);
+
     /**
      * 寻找标识符，并使用loca或globa或arga命令将地址压入栈顶
      * @param token
      */
     private Type findIdent(Token token) throws CompileError{
         String name = token.getValueString();
-        if(globalSymbol.getIdent(name)!=-1){
-
-            instructions.add(new Instruction(Operation.globa,globalSymbol.getIdent(name)));
-            return globalSymbol.getType(name);
-        }
-        for(int i=0;i<symbolTable.size();i++){
+        if (stats != null)
+            stats.symbolLookup();
+        for(int i=symbolTable.size()-1;i>=0;i--){//从内层往外层找
             if (symbolTable.get(i).getIdent(name)!=-1){
                 if (i==0)
                     instructions.add(new Instruction(Operation.arga,symbolTable.get(i).getIdent(name)));
@@ -145,9 +300,43 @@ public final class Analyser {
                 return symbolTable.get(i).getType(name);
             }
         }
+        if(globalSymbol.getIdent(name)!=-1){
+            instructions.add(new Instruction(Operation.globa,globalSymbol.getIdent(name)));
+            return globalSymbol.getType(name);
+        }
         throw new AnalyzeError(ErrorCode.NotDeclared,token.getStartPos());
     }
 
+    /**
+     * 生成一条跳转指令，偏移量之后用 patchJump 回填
+     *
+     * @return 跳转指令的下标
+     */
+    private int emitJump(Operation opt) {
+        instructions.add(new Instruction(opt, 0));
+        return instructions.size() - 1;
+    }
+
+    /**
+     * 让 index 处的跳转指令跳到下一条将要生成的指令
+     */
+    private void patchJump(int index) {
+        instructions.get(index).setX(instructions.size() - index - 1);
+    }
+
+    /**
+     * 让 index 处的跳转指令跳到 target 处的指令
+     */
+    private void patchJumpTo(int index, int target) {
+        instructions.get(index).setX(target - index - 1);
+    }
+
+    private void patchJumps(List<Integer> indexes) {
+        for (int index : indexes) {
+            patchJump(index);
+        }
+    }
+
 
 
     private Type analyseTy() throws CompileError{
@@ -173,31 +362,22 @@ public final class Analyser {
 //             | return_stmt
 //             | block_stmt
 //             | empty_stmt
-        if (check(TokenType.MINUS)||check(TokenType.IDENT)||check(TokenType.UINT_LITERAL)
-                ||check(TokenType.STRING_LITERAL)||check(TokenType.DOUBLE_LITERAL)
-                ||check(TokenType.L_PAREN)){
-            analyseExpr();
-            expect(TokenType.SEMICOLON);
-        }
-        else if (check(TokenType.LET_KW)||check(TokenType.CONST_KW)){
-            localParaCnt++;
-            analyseDecl_stmt(true);
-        }
-        else if (check(TokenType.IF_KW)){
-            analyseIf_stmt();
-        }
-        else if (check(TokenType.WHILE_KW)){
-            analyseWhile_stmt();
-        }
-        else if (check(TokenType.RETURN_KW)){
-            analyseReturn_stmt();
-        }
-        else if (check(TokenType.L_BRACE)){
-            analyseBlock_stmt();
-
-        }
-        else{
-            expect(TokenType.SEMICOLON);
+        switch (peekType()) {
+            case LET_KW, CONST_KW -> {
+                analyseDecl_stmt(true);
+                localParaCnt = Math.max(localParaCnt, nextOffset);//帧大小取同时存活的局部变量数的最大值
+            }
+            case IF_KW -> analyseIf_stmt();
+            case WHILE_KW -> analyseWhile_stmt();
+            case RETURN_KW -> analyseReturn_stmt();
+            case BREAK_KW, CONTINUE_KW -> analyseBreak_stmt();
+            case L_BRACE -> analyseBlock_stmt();
+            case SEMICOLON -> next();
+            default -> {
+                if (analyseExpr() != Type.VOID)
+                    instructions.add(new Instruction(Operation.pop));//丢弃表达式的值
+                expect(TokenType.SEMICOLON);
+            }
         }
     }
 
@@ -205,7 +385,7 @@ public final class Analyser {
     private void analyseDecl_stmt(boolean isLocal) throws CompileError{//是否为局部变量
         //decl_stmt -> let_decl_stmt | const_decl_stmt
 
-        if (check(TokenType.LET_KW)) analyseLet_decl_stmt(isLocal);
+        if (peekType() == TokenType.LET_KW) analyseLet_decl_stmt(isLocal);
         else analyseConst_decl_stmt(isLocal);
     }
     private void analyseLet_decl_stmt(boolean isLocal) throws CompileError{    //初步完成
@@ -216,22 +396,38 @@ public final class Analyser {
         expect(TokenType.COLON);
         Type type = analyseTy();
 
-        if (check(TokenType.ASSIGN)){
+        BlockSymbol blockSymbol = isLocal ? symbolTable.get(top) : globalSymbol;
+        if (!isLocal)
+            reserveGlobal();
+        if (nextIf(TokenType.ASSIGN) != null){
 
-            BlockSymbol blockSymbol = symbolTable.get(top);
-            blockSymbol.addSymbol(name,true,false,type,token.getStartPos());
+            blockSymbol.addSymbol(name,true,false,type,nextOffset++,token.getStartPos());
 
+            int start = instructions.size();
             if (isLocal)
                 instructions.add(new Instruction(Operation.loca, blockSymbol.getOffset(name,token.getStartPos())));//获取该变量的栈偏移
             else
                 instructions.add(new Instruction(Operation.globa, globalSymbol.getOffset(name,token.getStartPos())));
 
-            analyseExpr();
+            analyseExpr(type);
+            expect(TokenType.SEMICOLON);
             instructions.add(new Instruction(Operation.store_64));
+            if (!isLocal)
+                addGlobal(false, start);
         }
         else {
-            this.symbolTable.get(top).addSymbol((String) token.getValue(),false,false,type,token.getStartPos());
+            blockSymbol.addSymbol((String) token.getValue(),false,false,type,nextOffset++,token.getStartPos());
             expect(TokenType.SEMICOLON);
+            if (isLocal) {
+                //槽可能被前面的兄弟块或者上一轮循环用过，显式清零
+                instructions.add(new Instruction(Operation.loca, blockSymbol.getOffset(name, token.getStartPos())));
+                instructions.add(new Instruction(Operation.push, 0));
+                instructions.add(new Instruction(Operation.store_64));
+            } else {
+                int global = globalSymbol.getOffset(name, token.getStartPos());
+                globalValues.put(global, 0L);
+                globals.set(global, GlobalDef.ofLong(false, 0));
+            }
         }
 
 
@@ -246,58 +442,218 @@ public final class Analyser {
         Type type = analyseTy();
         expect(TokenType.ASSIGN);
 
-        BlockSymbol blockSymbol = this.symbolTable.get(top);
-        blockSymbol.addSymbol(name,true,true,type,token.getStartPos());
+        BlockSymbol blockSymbol = isLocal ? symbolTable.get(top) : globalSymbol;
+        if (!isLocal)
+            reserveGlobal();
+        blockSymbol.addSymbol(name,true,true,type,nextOffset++,token.getStartPos());
 
+        int start = instructions.size();
         if (isLocal)
             instructions.add(new Instruction(Operation.loca, blockSymbol.getOffset(name,token.getStartPos())));//获取该变量的栈偏移
         else
             instructions.add(new Instruction(Operation.globa, globalSymbol.getOffset(name,token.getStartPos())));
 
-        analyseExpr();
+        analyseExpr(type);
         expect(TokenType.SEMICOLON);
 
         instructions.add(new Instruction(Operation.store_64));
+        if (!isLocal)
+            addGlobal(true, start);
+    }
+
+    /**
+     * 在全局数据区给下一个全局变量占一项。初值里的字符串字面量会追加在它后面，
+     * 所以全局变量的偏移取占好的下标，不按声明的个数递增
+     */
+    private void reserveGlobal() {
+        nextOffset = globals.size();
+        globals.add(null);
+    }
+
+    /**
+     * 刚分析完一个带初值的全局变量，初始化代码从 start 开始：globa; 表达式; store_64。
+     * 表达式在编译时能算出来时删掉这段代码，把值写进全局数据区，否则留给 _start 执行
+     */
+    private void addGlobal(boolean constant, int start) {
+        int global = (int) instructions.get(start).getX();
+        Long value = constantValue(instructions.subList(start + 1, instructions.size() - 1));
+        if (value != null) {
+            instructions.subList(start, instructions.size()).clear();
+            globalValues.put(global, value);
+        }
+        globals.set(global, GlobalDef.ofLong(constant, value == null ? 0 : value));
+    }
+
+    /**
+     * 在编译时计算只由常数、运算、比较、类型转换和已知初值的全局变量组成的表达式，结果和虚拟机执行的一样
+     *
+     * @return 表达式的值，含有其他指令（调用、读入、跳转等）或者除以 0 时返回 null
+     */
+    private Long constantValue(List<Instruction> expr) {
+        var stack = new ArrayDeque<Long>();
+        for (int i = 0; i < expr.size(); i++) {
+            Instruction instruction = expr.get(i);
+            Operation opt = instruction.getOpt();
+            if (opt == Operation.push) {
+                stack.push(instruction.getX());
+                continue;
+            }
+            if (opt == Operation.globa) {
+                Long value = globalValues.get((int) instruction.getX());
+                if (value == null || i + 1 == expr.size() || expr.get(i + 1).getOpt() != Operation.load_64)
+                    return null;
+                stack.push(value);
+                i++;
+                continue;
+            }
+            if (opt == Operation.neg_i || opt == Operation.neg_f || opt == Operation.itof || opt == Operation.ftoi
+                    || opt == Operation.not || opt == Operation.set_lt || opt == Operation.set_gt) {
+                if (stack.isEmpty())
+                    return null;
+                long x = stack.pop();
+                double d = Double.longBitsToDouble(x);
+                stack.push(switch (opt) {
+                    case neg_i -> -x;
+                    case neg_f -> Double.doubleToRawLongBits(-d);
+                    case itof -> Double.doubleToRawLongBits((double) x);
+                    case ftoi -> (long) d;
+                    case not -> x == 0 ? 1L : 0L;
+                    case set_lt -> x < 0 ? 1L : 0L;
+                    default -> x > 0 ? 1L : 0L;
+                });
+                continue;
+            }
+            if (stack.size() < 2)
+                return null;
+            long r = stack.pop();
+            long l = stack.pop();
+            double rd = Double.longBitsToDouble(r);
+            double ld = Double.longBitsToDouble(l);
+            switch (opt) {
+                case add_i -> stack.push(l + r);
+                case sub_i -> stack.push(l - r);
+                case mul_i -> stack.push(l * r);
+                case div_i -> {
+                    if (r == 0)
+                        return null;
+                    stack.push(l / r);
+                }
+                case add_f -> stack.push(Double.doubleToRawLongBits(ld + rd));
+                case sub_f -> stack.push(Double.doubleToRawLongBits(ld - rd));
+                case mul_f -> stack.push(Double.doubleToRawLongBits(ld * rd));
+                case div_f -> stack.push(Double.doubleToRawLongBits(ld / rd));
+                case cmp_i -> stack.push((long) Long.compare(l, r));
+                case cmp_f -> stack.push(ld < rd ? -1L : ld > rd ? 1L : 0L);
+                default -> {
+                    return null;
+                }
+            }
+        }
+        return stack.size() == 1 ? stack.pop() : null;
     }
 
     private void analyseIf_stmt() throws CompileError{
         //if_stmt -> 'if' expr block_stmt ('else' (block_stmt | if_stmt))?
         expect(TokenType.IF_KW);
-        analyseExpr();
-        int pointer = instructions.size();
+        var jumpFalse = analyseCondition(false);
         analyseBlock_stmt();
 
-        instructions.add(pointer, new Instruction(Operation.br_false, instructions.size()-pointer+1));
-
-        if (check(TokenType.ELSE_KW)){
+        if (nextIf(TokenType.ELSE_KW) != null){
+            int jumpEnd = emitJump(Operation.br);
+            patchJumps(jumpFalse);
             if (check(TokenType.IF_KW)){
                 analyseIf_stmt();
             }
             else analyseBlock_stmt();
+            patchJump(jumpEnd);
         }
-
+        else patchJumps(jumpFalse);
     }
 
     private void analyseWhile_stmt() throws CompileError{
         //while_stmt -> 'while' expr block_stmt
         expect(TokenType.WHILE_KW);
-        int pointer1 = instructions.size();
-        analyseExpr();
-        int pointer2 = instructions.size();
+        if (options.rotateLoops) {
+            analyseRotatedWhile();
+            return;
+        }
+        int start = instructions.size();
+        var jumpExit = analyseCondition(false);//条件为假时跳出循环
 
+        var loop = new LoopContext();
+        loops.push(loop);
         analyseBlock_stmt();
+        loops.pop();
+
+        instructions.add(new Instruction(Operation.br, start-instructions.size()-1));//跳回while
+        patchJumps(jumpExit);
+        patchJumps(loop.breakJumps);
+        for (int jump : loop.continueJumps) {
+            patchJumpTo(jump, start);
+        }
+    }
 
-        instructions.add(new Instruction(Operation.br, pointer1-instructions.size()));//跳回while
-        instructions.add(pointer2, new Instruction(Operation.br_false, instructions.size()-pointer2+1));//在while后加跳转，若expr为假，则跳转
+    /**
+     * 把 while 翻转成 if (cond) do { body } while (cond)：
+     * 循环前判断一次条件，循环体后再判断一次并在条件为真时跳回循环体开头。
+     * 每次迭代只执行一条跳转，而不是先无条件跳回开头再条件跳出。
+     * 条件的 token 记录下来，在循环体后重新分析一遍
+     */
+    private void analyseRotatedWhile() throws CompileError{
+        var saved = recording;
+        recording = new ArrayList<>();
+        var jumpExit = analyseCondition(false);//条件为假时跳过整个循环
+        var condTokens = recording;
+        recording = saved;
+        if (saved != null)
+            saved.addAll(condTokens);
+
+        int start = instructions.size();
+        var loop = new LoopContext();
+        loops.push(loop);
+        analyseBlock_stmt();
+        loops.pop();
+
+        //最后一个记录的 token 是条件之后偷看到的 '{'，重放时作为条件的结束符
+        for (int i = condTokens.size() - 1; i >= 0; i--) {
+            replay.addFirst(condTokens.get(i));
+        }
+        int condStart = instructions.size();
+        for (int jump : analyseCondition(true)) {
+            patchJumpTo(jump, start);
+        }
+        next();//丢掉重放的 '{'
+
+        patchJumps(jumpExit);
+        patchJumps(loop.breakJumps);
+        for (int jump : loop.continueJumps) {
+            patchJumpTo(jump, condStart);
+        }
+    }
 
+    private void analyseBreak_stmt() throws CompileError{
+        //break_stmt -> 'break' ';'
+        //continue_stmt -> 'continue' ';'
+        Token token = next();
+        if (loops.isEmpty())
+            throw new AnalyzeError(ErrorCode.BreakOutsideLoop, token.getStartPos());
+        expect(TokenType.SEMICOLON);
+        if (token.getTokenType() == TokenType.BREAK_KW)
+            loops.peek().breakJumps.add(emitJump(Operation.br));
+        else
+            loops.peek().continueJumps.add(emitJump(Operation.br));
     }
 
     private void analyseReturn_stmt() throws CompileError{
         //return_stmt -> 'return' expr? ';'
         expect(TokenType.RETURN_KW);
+        if (options.tailCalls && check(TokenType.IDENT) && peek().getValueString().equals(curFunc) && analyseTailCall()) {
+            expect(TokenType.SEMICOLON);
+            return;
+        }
         if (funList.get(curFunc).returnType!=Type.VOID)
             instructions.add(new Instruction(Operation.arga,0));
-        Type type = analyseExpr();
+        Type type = in(FIRST_EXPR, peekType()) ? analyseExpr() : Type.VOID;
         if (type!=funList.get(curFunc).returnType)
             throw new Error("函数返回类型不对");
 
@@ -307,17 +663,173 @@ public final class Analyser {
         instructions.add(new Instruction(Operation.ret));
     }
 
+    /**
+     * 尝试把 return f(...); 里对自己的调用编译成循环：实参直接存进自己的参数槽，再跳回函数开头，
+     * 不新建调用帧。实参 k 读了已经被覆盖的参数 0..k-1 时，先把实参都存进临时变量再复制过去。
+     * 调用之后还有别的运算（比如 return f(x) + 1;）时，退回去按普通的 return 重新分析
+     *
+     * @return 是否是尾调用，不是时没有读入任何 token，也没有生成指令
+     */
+    private boolean analyseTailCall() throws CompileError{
+        FuncInfo self = funList.get(curFunc);
+        int retSlots = self.returnType == Type.VOID ? 0 : 1;
+        int start = instructions.size();
+        int siteCnt = callSites.size();
+        var saved = recording;
+        recording = new ArrayList<>();
+        recording.add(peek());
+        next();
+
+        var args = new ArrayList<Integer>();//每个实参前 arga 指令的下标
+        boolean isTailCall = false;
+        if (check(TokenType.L_PAREN)) {
+            next();
+            if (!check(TokenType.R_PAREN)) {
+                do {
+                    args.add(instructions.size());
+                    instructions.add(new Instruction(Operation.arga, retSlots + args.size() - 1));
+                    if (args.size() <= self.paraTypes.size())
+                        analyseExpr(self.paraTypes.get(args.size() - 1));
+                    else
+                        analyseExpr();
+                    instructions.add(new Instruction(Operation.store_64));
+                } while (nextIf(TokenType.COMMA) != null);
+            }
+            isTailCall = nextIf(TokenType.R_PAREN) != null && check(TokenType.SEMICOLON)
+                    && args.size() == self.paraCnt;
+        }
+
+        var tokens = recording;
+        recording = saved;
+        if (!isTailCall) {
+            //退回到 return 之后
+            while (instructions.size() > start) {
+                instructions.remove(instructions.size() - 1);
+            }
+            while (callSites.size() > siteCnt) {
+                callSites.remove(callSites.size() - 1);
+            }
+            peekedToken = null;
+            for (int i = tokens.size() - 1; i >= 0; i--) {
+                replay.addFirst(tokens.get(i));
+            }
+            return false;
+        }
+        if (saved != null)
+            saved.addAll(tokens.subList(1, tokens.size()));
+
+        //每个实参的指令（含末尾的 store_64），以及它读了哪些参数
+        int paraCnt = args.size();
+        var chunks = new ArrayList<List<Instruction>>();
+        var reads = new boolean[paraCnt][paraCnt];
+        boolean pure = true;
+        for (int k = 0; k < paraCnt; k++) {
+            int end = k + 1 < paraCnt ? args.get(k + 1) : instructions.size();
+            var chunk = new ArrayList<>(instructions.subList(args.get(k) + 1, end));
+            for (Instruction instruction : chunk.subList(0, chunk.size() - 1)) {
+                long x = instruction.getX() - retSlots;
+                if (instruction.getOpt() == Operation.arga && x >= 0 && x < paraCnt)
+                    reads[k][(int) x] = true;
+                pure &= !SIDE_EFFECTS.contains(instruction.getOpt());
+            }
+            chunks.add(chunk);
+        }
+
+        if (!pure) {
+            //有副作用时不能调整实参的计算顺序。实参 k 读了已经被覆盖的参数 0..k-1 时，全部先存进临时变量
+            boolean overlap = false;
+            for (int k = 0; k < paraCnt; k++) {
+                for (int j = 0; j < k; j++) {
+                    overlap |= reads[k][j];
+                }
+            }
+            if (overlap) {
+                var temps = new ArrayList<Integer>();
+                for (int k = 0; k < paraCnt; k++) {
+                    instructions.set(args.get(k), new Instruction(Operation.loca, nextOffset + k));
+                    temps.add(k);
+                }
+                copyTemps(temps, retSlots);
+            }
+        } else {
+            //没有副作用时按依赖排序：参数 k 没有还没算的实参要读时才覆盖它，成环时把一个实参先存进临时变量。
+            //实参就是参数本身（比如 f(n - 1, acc) 里的 acc）时不用存
+            while (instructions.size() > start) {
+                instructions.remove(instructions.size() - 1);
+            }
+            var remaining = new ArrayList<Integer>();
+            for (int k = 0; k < paraCnt; k++) {
+                List<Instruction> chunk = chunks.get(k);
+                if (!(chunk.size() == 3 && chunk.get(0).equals(new Instruction(Operation.arga, retSlots + k))
+                        && chunk.get(1).getOpt() == Operation.load_64))
+                    remaining.add(k);
+            }
+            var temps = new ArrayList<Integer>();
+            var order = new ArrayList<Integer>();
+            while (!remaining.isEmpty()) {
+                Integer next = null;
+                for (int k : remaining) {
+                    boolean read = false;
+                    for (int j : remaining) {
+                        read |= j != k && reads[j][k];
+                    }
+                    if (!read) {
+                        next = k;
+                        break;
+                    }
+                }
+                if (next == null)
+                    temps.add(remaining.remove(0));
+                else {
+                    order.add(next);
+                    remaining.remove(next);
+                }
+            }
+            for (int k : temps) {
+                instructions.add(new Instruction(Operation.loca, nextOffset + k));
+                instructions.addAll(chunks.get(k));
+            }
+            for (int k : order) {
+                instructions.add(new Instruction(Operation.arga, retSlots + k));
+                instructions.addAll(chunks.get(k));
+            }
+            copyTemps(temps, retSlots);
+        }
+        instructions.add(new Instruction(Operation.br, -instructions.size() - 1));//跳回函数开头
+        return true;
+    }
+
+    /**
+     * 尾调用时把存在临时变量里的实参复制到参数槽，临时变量 k 在 nextOffset + k
+     */
+    private void copyTemps(List<Integer> temps, int retSlots) {
+        for (int k : temps) {
+            localParaCnt = Math.max(localParaCnt, nextOffset + k + 1);
+            instructions.add(new Instruction(Operation.arga, retSlots + k));
+            instructions.add(new Instruction(Operation.loca, nextOffset + k));
+            instructions.add(new Instruction(Operation.load_64));
+            instructions.add(new Instruction(Operation.store_64));
+        }
+    }
+
+    /**
+     * 块结束时释放块内局部变量的槽，兄弟块里的变量复用同样的槽
+     */
     private void analyseBlock_stmt() throws CompileError{
         expect(TokenType.L_BRACE);
+        int mark = nextOffset;
         BlockSymbol blockSymbol = new BlockSymbol();
         symbolTable.add(blockSymbol);
         top++;
-        while (isFirst_vt_stmt()){
+        if (stats != null)
+            stats.symbolDepth(symbolTable.size());
+        while (in(FIRST_STMT, peekType())){
             analyseStmt();
         }
         expect(TokenType.R_BRACE);
         symbolTable.remove(top);
         top--;
+        nextOffset = mark;
     }
 
 
@@ -331,8 +843,17 @@ public final class Analyser {
 //               function_name  param_list     return_type  function_body
 
         localParaCnt = 0;//初始化局部变量个数
-        int paraCnt=0;//参数个数
+        var paraTypes = new ArrayList<Type>();//参数类型
         instructions = new ArrayList<>();//初始化指令集
+        nextOffset = 0;
+        deps = new HashMap<>();
+        callSites = new ArrayList<>();
+        stringUses = new IdentityHashMap<>();
+        loops.clear();
+        if (functionCache != null) {
+            recording = new ArrayList<>();
+            recording.add(peek());
+        }
 
         expect(TokenType.FN_KW);
         Token token = expect(TokenType.IDENT);
@@ -341,98 +862,160 @@ public final class Analyser {
 
 
         symbolTable = new ArrayList<>();//新建符号表
-        top = -1;
+        symbolTable.add(new BlockSymbol());//symbolTable[0]为参数列表，应用arga命令处理！
+        top = 0;
         curFunc =token.getValueString();
 
-        if (check(TokenType.CONST_KW)||check(TokenType.IDENT)){
-            paraCnt = analyseFuncParaList();
+        if (in(FIRST_PARAM, peekType())){
+            analyseFuncParaList(paraTypes);
         }
         expect(TokenType.R_PAREN);
         expect(TokenType.ARROW);
         Type type = analyseTy();
-
-        funList.put(token.getValueString(),new FuncInfo(funID,paraCnt,type));//添加函数到函数表
+        if (type == Type.VOID)
+            symbolTable.get(0).shiftOffsets(-1);//没有返回值槽，参数从arga 0开始
+
+        FuncInfo funcInfo = new FuncInfo(funID,paraTypes.size(),type);
+        funcInfo.name = token.getValueString();
+        funcInfo.paraTypes = paraTypes;
+        funList.put(token.getValueString(),funcInfo);//添加函数到函数表
+        functions.add(funcInfo);
         funID++;
 
+        byte[] fingerprint = null;
+        String globalLayout = null;
+        if (functionCache != null) {
+            int bodyStart = recording.size();
+            skipBlock();
+            fingerprint = FunctionCache.fingerprint(recording);
+            globalLayout = globalSymbol.layout();
+            if (functionCache.lookup(funcInfo, fingerprint, globalLayout, funList, strings)) {
+                recording = null;
+                return;
+            }
+            replay.addAll(recording.subList(bodyStart, recording.size()));
+            recording = null;
+        }
+
         analyseBlock_stmt();
 
-        funList.get(token.getValueString()).localParaCnt=localParaCnt;//函数表中设置函数局部变量个数
+        funcInfo.localParaCnt=localParaCnt;//函数表中设置函数局部变量个数
 
         instructions.add(new Instruction(Operation.ret));
-        //TODO:打印函数信息
-
+        funcInfo.instructions = instructions;
+        funcInfo.callSites = callSites;
+        if (functionCache != null)
+            functionCache.store(funcInfo, fingerprint, globalLayout, deps, stringUses);
+    }
 
+    /**
+     * 只读取 token 跳过一个 block_stmt，不做分析
+     */
+    private void skipBlock() throws CompileError{
+        if (!check(TokenType.L_BRACE))
+            throw new ExpectedTokenError(TokenType.L_BRACE, peek());
+        int depth = 0;
+        do {
+            Token token = next();
+            if (token.getTokenType() == TokenType.L_BRACE)
+                depth++;
+            else if (token.getTokenType() == TokenType.R_BRACE)
+                depth--;
+            else if (token.getTokenType() == TokenType.EOF)
+                throw new ExpectedTokenError(TokenType.R_BRACE, token);
+        } while (depth > 0);
     }
 
-    private int analyseFuncParaList() throws CompileError{
-        int cnt=1;
-        BlockSymbol.nextOffset=1;//因为0处是返回值
-        symbolTable.add(new BlockSymbol());//symbolTable[0]为参数列表，应用arga命令处理！
-        top=0;
-        analyseFuncPara();
+    /**
+     * @param paraTypes 依次加入每个参数的类型
+     */
+    private void analyseFuncParaList(List<Type> paraTypes) throws CompileError{
+        nextOffset=1;//因为0处是返回值
+        paraTypes.add(analyseFuncPara());
         while (nextIf(TokenType.COMMA)!=null){
-            analyseFuncPara();
-            cnt++;
+            paraTypes.add(analyseFuncPara());
         }
-        BlockSymbol.nextOffset = 0;//在存局部变量时将offset置为0
-        return cnt;
+        nextOffset = 0;//在存局部变量时将offset置为0
     }
 
-    private void analyseFuncPara() throws CompileError{
+    private Type analyseFuncPara() throws CompileError{
         boolean isConstant = nextIf(TokenType.CONST_KW) != null;
         Token token = expect(TokenType.IDENT);
         String name = (String)token.getValue();
         expect(TokenType.COLON);
         Type type = analyseTy();
-        symbolTable.get(top).addSymbol(name,true,isConstant,type,token.getStartPos());
+        if (type == Type.VOID)
+            throw new AnalyzeError(ErrorCode.TypeMismatch, token.getStartPos());
+        symbolTable.get(top).addSymbol(name,true,isConstant,type,nextOffset++,token.getStartPos());
+        return type;
     }
 
     private void analyseProgram() throws CompileError {
         //program -> decl_stmt* function*
-        while (check(TokenType.LET_KW) || check(TokenType.CONST_KW)) {
+        while (in(FIRST_DECL, peekType())) {
             analyseDecl_stmt(false);
         }
-        while (check(TokenType.FN_KW)){
+        globalInit = instructions;
+        while (peekType() == TokenType.FN_KW){
             analyseFunc();
         }
         if (funList.get("main")==null)
             throw new Error("expect a main function");
+        startName = strings.intern("_start");
+        for (FuncInfo funcInfo : functions) {
+            funcInfo.nameGlobal = strings.intern(funcInfo.name);
+        }
 
     }
-    public boolean isb_op() throws CompileError{
-        return check(TokenType.PLUS)||check(TokenType.MINUS)||check(TokenType.MUL)||check(TokenType.DIV)
-                ||check(TokenType.EQ)||check(TokenType.ASSIGN)||check(TokenType.NEQ)
-                ||check(TokenType.LT)||check(TokenType.GT)||check(TokenType.LE)||check(TokenType.GE);
 
+    /** 二元运算符（含后缀 as）的左结合力，下标为 TokenType.ordinal()，0 表示不是二元运算符 */
+    static final int[] leftBp = new int[TokenType.values().length];
+    /** 二元运算符右操作数的最小结合力，比左结合力大 1 即左结合 */
+    static final int[] rightBp = new int[TokenType.values().length];
+    /** 取反（- 和 !）的操作数结合力，比 as 高，-a as double 即 (-a) as double */
+    static final int PREFIX_BP = 40;
+    static {
+        setBp(4, TokenType.OR);
+        setBp(6, TokenType.AND);
+        setBp(10, TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE, TokenType.EQ, TokenType.NEQ);
+        setBp(20, TokenType.PLUS, TokenType.MINUS);
+        setBp(30, TokenType.MUL, TokenType.DIV);
+        setBp(PREFIX_BP, TokenType.AS_KW);
     }
 
+    private static void setBp(int bp, TokenType... types) {
+        for (TokenType type : types) {
+            leftBp[type.ordinal()] = bp;
+            rightBp[type.ordinal()] = bp + 1;
+        }
+    }
 
-
-
-    static HashMap<TokenType,Integer> priorityMap = new HashMap<>();//TODO
-    static {
-        priorityMap.put(TokenType.ASSIGN,1);
-        priorityMap.put(TokenType.LE,2);
-        priorityMap.put(TokenType.LT,2);
-        priorityMap.put(TokenType.GE,2);
-        priorityMap.put(TokenType.GT,2);
-        priorityMap.put(TokenType.EQ,2);
-        priorityMap.put(TokenType.NEQ,2);
-        priorityMap.put(TokenType.PLUS,3);
-        priorityMap.put(TokenType.MINUS,3);
-        priorityMap.put(TokenType.MUL,4);
-        priorityMap.put(TokenType.DIV,4);
+    private Type analyseExpr() throws CompileError{//需要保证调用完成时栈顶就是表达式值
+        return analyseExpr(0);
     }
 
     /**
-     * 标识上一层是否为取反操作，若是，则跳过b_op and AS
+     * 分析一个类型必须是 expected 的表达式，int 和 double 之间不做隐式转换
      */
-    boolean isNEG = false;
+    private void analyseExpr(Type expected) throws CompileError{
+        Pos pos = peek().getStartPos();
+        if (analyseExpr(0) != expected)
+            throw new AnalyzeError(ErrorCode.TypeMismatch, pos);
+    }
+
     /**
-     * 上一个b_op的优先级
+     * 按结合力分析表达式（Pratt 分析法）
+     * <p>
+     * 先分析一个操作数，然后只要下一个运算符的左结合力大于 minBp 就把它并进来。
+     * 同级运算符在循环里处理，a+b+c+... 不管多长递归深度都是常数。
+     * 比较和逻辑运算的结果先作为 Condition 挂起，后面还要参与运算或者调用方要值时才生成布尔值
+     *
+     * @param minBp 能并入当前表达式的运算符的最小结合力（不含）
+     * @return 表达式的类型
      */
-    int lastPriority = 0;
-    private Type analyseExpr() throws CompileError{//需要保证调用完成时栈顶就是表达式值
+    private Type analyseExpr(int minBp) throws CompileError{
+        boolean isCondition = condition;
+        condition = false;
 //        expr ->
 //                operator_expr
 //                        | negate_expr
@@ -442,528 +1025,387 @@ public final class Analyser {
 //                        | literal_expr
 //                        | ident_expr
 //                        | group_expr
-//消除左递归后:
-//( IDENT(null|(call)|=expr) |-expr | (expr) |UINT |DOUBLE |STRING ) {b_op expr| as 'ty'}
-        Type returnType;
-        if (check(TokenType.IDENT)){
-            if (check(TokenType.L_PAREN)){
-                returnType = analyseCall_expr();
-            }
-            else if (check(TokenType.ASSIGN)){
-                analyseAssign_expr();
-                returnType = Type.VOID;
-            }
-            else {
-                Token token = expect(TokenType.IDENT);
-                returnType = findIdent(token);
-                instructions.add(new Instruction(Operation.load_64));
-
+        Type returnType = analysePrimary_expr(minBp);
+        Condition cond = takeCondition();//左操作数是否为挂起的条件
+        while (true) {
+            Token token = peek();
+            TokenType op = token.getTokenType();
+            int bp = leftBp[op.ordinal()];
+            if (bp <= minBp)
+                break;
+            next();
+            if (op == TokenType.AND || op == TokenType.OR) {
+                if (returnType != Type.INT)
+                    throw new AnalyzeError(ErrorCode.TypeMismatch, token.getStartPos());
+                if (cond == null)
+                    cond = new Condition(null);
+                if (op == TokenType.AND) {
+                    //左边为假直接跳到整个条件为假的地方，为真则接着算右边
+                    cond.falseJumps.add(analyseConditionJump(cond, false));
+                    patchJumps(cond.trueJumps);
+                    cond.trueJumps.clear();
+                } else {
+                    cond.trueJumps.add(analyseConditionJump(cond, true));
+                    patchJumps(cond.falseJumps);
+                    cond.falseJumps.clear();
+                }
+                analyseConditionOperand(rightBp[op.ordinal()]);
+                Condition rhs = takeCondition();
+                if (rhs == null)
+                    rhs = new Condition(null);
+                rhs.trueJumps.addAll(cond.trueJumps);
+                rhs.falseJumps.addAll(cond.falseJumps);
+                cond = rhs;
+                returnType = Type.INT;
+                continue;
             }
+            if (cond != null) {//条件还要参与运算，需要生成布尔值
+                analyseConditionValue(cond);
+                cond = null;
+            }
+            if (op == TokenType.AS_KW) {
+                Type type = analyseTy();
+                if (returnType == Type.VOID || type == Type.VOID)
+                    throw new Error("非法的类型转换(将void类型转换为其他类型)");
+                if (returnType == Type.INT && type == Type.DOUBLE)
+                    instructions.add(new Instruction(Operation.itof));
+                else if (returnType == Type.DOUBLE && type == Type.INT)
+                    instructions.add(new Instruction(Operation.ftoi));
+                returnType = type;
+                continue;
+            }
+            Type newType = analyseExpr(rightBp[op.ordinal()]);
+            if (returnType != newType || returnType == Type.VOID)
+                throw new AnalyzeError(ErrorCode.TypeMismatch, token.getStartPos());
+            if (in(COMPARE, op)) {
+                analyseCompare(returnType);
+                cond = new Condition(op);
+                returnType = Type.INT;
+            }
+            else analyseBinary(op, returnType);
         }
-        else if (check(TokenType.MINUS)){
-            Token token = expect(TokenType.MINUS);
-            boolean tmp = isNEG;//模拟os保存寄存器
-            isNEG = true;
-            returnType = analyseExpr();
-            isNEG = tmp;
-            if (returnType == Type.DOUBLE)
-                instructions.add(new Instruction(Operation.neg_f));
-            else if (returnType == Type.INT)
-                instructions.add(new Instruction(Operation.neg_i));
+        if (cond != null) {
+            if (isCondition)
+                lastCondition = cond;
             else
-                throw new AnalyzeError(ErrorCode.InvalidAssignment,token.getStartPos());
+                analyseConditionValue(cond);
         }
-        else if (check(TokenType.L_PAREN)){
-            expect(TokenType.L_PAREN);
-            returnType = analyseExpr();
-            expect(TokenType.R_PAREN);
+        return returnType;
+    }
+
+    /**
+     * 取出并清空刚分析完的表达式挂起的条件
+     */
+    private Condition takeCondition() {
+        Condition cond = lastCondition;
+        lastCondition = null;
+        return cond;
+    }
+
+    /**
+     * 分析 if/while 的条件。条件为 whenTrue 时跳转，跳转由调用方回填，否则落到下一条指令。
+     * 比较和逻辑运算都直接生成跳转，不先算出 0/1 再判断，a &amp;&amp; b 只有两条条件跳转
+     *
+     * @return 跳转指令下标
+     */
+    private ArrayList<Integer> analyseCondition(boolean whenTrue) throws CompileError{
+        analyseConditionOperand(0);
+        Condition cond = takeCondition();
+        if (cond == null)
+            cond = new Condition(null);
+        if (whenTrue) {
+            cond.trueJumps.add(analyseConditionJump(cond, true));
+            patchJumps(cond.falseJumps);
+            return cond.trueJumps;
         }
-        else if (check(TokenType.UINT_LITERAL)){
-            Token token = expect(TokenType.UINT_LITERAL);
-            instructions.add(new Instruction(Operation.push,(int)token.getValue()));
-            returnType = Type.INT;
+        cond.falseJumps.add(analyseConditionJump(cond, false));
+        patchJumps(cond.trueJumps);
+        return cond.falseJumps;
+    }
+
+    /**
+     * 在条件上下文中分析 if/while 的条件以及 &amp;&amp;、||、! 的操作数，结果可以是挂起的条件。
+     * 操作数必须是 int：void 没有值可测，double 按位测试会把 -0.0 当成真
+     */
+    private void analyseConditionOperand(int minBp) throws CompileError{
+        Pos pos = peek().getStartPos();
+        condition = true;
+        if (analyseExpr(minBp) != Type.INT)
+            throw new AnalyzeError(ErrorCode.TypeMismatch, pos);
+    }
+
+    /**
+     * 对条件的最后一次测试生成跳转
+     *
+     * @param whenTrue 为 true 时在条件为真时跳转，否则在条件为假时跳转
+     * @return 跳转指令下标
+     */
+    private int analyseConditionJump(Condition cond, boolean whenTrue) {
+        boolean sense = whenTrue ^ cond.negated;//在不取反的测试结果为 sense 时跳转
+        if (cond.compare == null)
+            return emitJump(sense ? Operation.br_true : Operation.br_false);
+        switch (cond.compare) {
+            case LT, GT -> {
+                instructions.add(new Instruction(cond.compare == TokenType.LT ? Operation.set_lt : Operation.set_gt));
+                return emitJump(sense ? Operation.br_true : Operation.br_false);
+            }
+            case GE, LE -> {//set_lt/set_gt 的结果为 1 表示条件为假
+                instructions.add(new Instruction(cond.compare == TokenType.GE ? Operation.set_lt : Operation.set_gt));
+                return emitJump(sense ? Operation.br_false : Operation.br_true);
+            }
+            case EQ -> {
+                return emitJump(sense ? Operation.br_false : Operation.br_true);//cmp结果非0即不相等
+            }
+            default -> {
+                return emitJump(sense ? Operation.br_true : Operation.br_false);
+            }
         }
-        else if (check(TokenType.DOUBLE_LITERAL)){
+    }
 
-            returnType = Type.DOUBLE;
+    /**
+     * 把挂起的条件变成栈顶的布尔值 0/1
+     */
+    private void analyseConditionValue(Condition cond) {
+        if (cond.isSimple()) {
+            if (cond.compare != null)
+                analyseCompareValue(cond.compare);
+            if (cond.negated)
+                instructions.add(new Instruction(Operation.not));
+            else if (cond.compare == null) {
+                instructions.add(new Instruction(Operation.not));
+                instructions.add(new Instruction(Operation.not));
+            }
+            return;
         }
-        else if (check(TokenType.STRING_LITERAL)){
+        cond.falseJumps.add(analyseConditionJump(cond, false));
+        patchJumps(cond.trueJumps);
+        instructions.add(new Instruction(Operation.push, 1));
+        instructions.add(new Instruction(Operation.br, 1));
+        patchJumps(cond.falseJumps);
+        instructions.add(new Instruction(Operation.push, 0));
+    }
 
-            returnType = Type.VOID;
+    /**
+     * 比较两个同类型的操作数，栈顶留下 -1/0/1
+     */
+    private void analyseCompare(Type type) {
+        if (type == Type.DOUBLE)
+            instructions.add(new Instruction(Operation.cmp_f));
+        else
+            instructions.add(new Instruction(Operation.cmp_i));
+    }
+
+    /**
+     * 把栈顶的比较结果（-1/0/1）变成布尔值 0/1
+     */
+    private void analyseCompareValue(TokenType op) {
+        switch (op) {
+            case LT -> instructions.add(new Instruction(Operation.set_lt));
+            case GT -> instructions.add(new Instruction(Operation.set_gt));
+            case GE -> {
+                instructions.add(new Instruction(Operation.set_lt));
+                instructions.add(new Instruction(Operation.not));
+            }
+            case LE -> {
+                instructions.add(new Instruction(Operation.set_gt));
+                instructions.add(new Instruction(Operation.not));
+            }
+            case EQ -> instructions.add(new Instruction(Operation.not));
+            default -> {
+                instructions.add(new Instruction(Operation.not));
+                instructions.add(new Instruction(Operation.not));
+            }
         }
-        else throw new Error("illegal expr!");
-        while (!isNEG){
-            if (check(TokenType.AS_KW)){
-                expect(TokenType.AS_KW);
-                Type type = analyseTy();
-                if (returnType!=Type.VOID){
-                    returnType = type;
-                }
-                else throw new Error("非法的类型转换(将void类型转换为其他类型)");
-            }
-            else if (isb_op()){
-                Token token = peek();
-                int tmp = lastPriority;
-                if (lastPriority>=priorityMap.get(token.getTokenType()))
-                    break;
-                token = next();
-                lastPriority = priorityMap.get(token.getTokenType());
-                Type newType = analyseExpr();
-                switch (token.getTokenType()){
-                    case PLUS -> {
-                        if (returnType ==Type.INT&&newType ==Type.INT){
-                            instructions.add(new Instruction(Operation.add_i));
-                            returnType=Type.INT;
-                        }
-
-                        else if (returnType ==Type.DOUBLE&&newType ==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.add_f));
-                            returnType=Type.DOUBLE;
-                        }
-                    }
-                    case MINUS -> {
-                        if (returnType ==Type.INT&&newType ==Type.INT) {
-                            instructions.add(new Instruction(Operation.sub_i));
-                            returnType=Type.INT;
-                        }
-                        else if (returnType ==Type.DOUBLE&&newType ==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.sub_f));
-                            returnType=Type.DOUBLE;
-                        }
-                    }
-                    case MUL -> {
-                        if (returnType ==Type.INT&&newType ==Type.INT) {
-                            instructions.add(new Instruction(Operation.mul_i));
-                            returnType=Type.INT;
-                        }
-                        else if (returnType ==Type.DOUBLE&&newType ==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.mul_f));
-                            returnType=Type.DOUBLE;
-                        }
-                    }
-                    case DIV -> {//TODO: what's div_u??
-                        if (returnType ==Type.INT&&newType ==Type.INT) {
-                            instructions.add(new Instruction(Operation.div_i));
-                            returnType=Type.INT;
-                        }
-                        else if (returnType ==Type.DOUBLE&&newType ==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.div_f));
-                            returnType=Type.DOUBLE;
-                        }
-                    }
-                    case EQ -> {
-                        instructions.add(new Instruction(Operation.xor));
-                        instructions.add(new Instruction(Operation.not));
-                        returnType=Type.INT;
-                    }
-                    case NEQ -> {
-                        instructions.add(new Instruction(Operation.xor));
-                        returnType=Type.INT;
-                    }
-                    case LT ->{
-                        if (newType==Type.INT&&returnType==Type.INT){
-                            instructions.add(new Instruction(Operation.cmp_i));
-                            instructions.add(new Instruction(Operation.set_lt));
-                        }
-                        else if (newType==Type.DOUBLE&&returnType==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.cmp_f));
-                            instructions.add(new Instruction(Operation.set_lt));
-                        }
-                        returnType=Type.INT;
-                    }
-                    case GT ->{
-                        if (newType==Type.INT&&returnType==Type.INT){
-                            instructions.add(new Instruction(Operation.cmp_i));
-                            instructions.add(new Instruction(Operation.set_gt));
-                        }
-                        else if (newType==Type.DOUBLE&&returnType==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.cmp_f));
-                            instructions.add(new Instruction(Operation.set_gt));
-                        }
-                        returnType=Type.INT;
-                    }
-                    case GE -> {
-                        if (newType==Type.INT&&returnType==Type.INT){
-                            instructions.add(new Instruction(Operation.cmp_i));//是0则跳出，不是0用set_gt
-                            instructions.add(new Instruction(Operation.br_true,4));
-                            instructions.add(new Instruction(Operation.not));
-                            instructions.add(new Instruction(Operation.br,2));
-                            instructions.add(new Instruction(Operation.set_gt));
-                        }
-                        else if (newType==Type.DOUBLE&&returnType==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.cmp_f));
-                            instructions.add(new Instruction(Operation.br_true,4));
-                            instructions.add(new Instruction(Operation.not));
-                            instructions.add(new Instruction(Operation.br,2));
-                            instructions.add(new Instruction(Operation.set_gt));
-                        }
-                        returnType=Type.INT;
-                    }
-                    case LE -> {
-                        if (newType==Type.INT&&returnType==Type.INT){
-                            instructions.add(new Instruction(Operation.cmp_i));//是0则跳出，不是0用set_lt
-                            instructions.add(new Instruction(Operation.br_true,4));
-                            instructions.add(new Instruction(Operation.not));
-                            instructions.add(new Instruction(Operation.br,2));
-                            instructions.add(new Instruction(Operation.set_lt));
-                        }
-                        else if (newType==Type.DOUBLE&&returnType==Type.DOUBLE){
-                            instructions.add(new Instruction(Operation.cmp_f));
-                            instructions.add(new Instruction(Operation.br_true,4));
-                            instructions.add(new Instruction(Operation.not));
-                            instructions.add(new Instruction(Operation.br,2));
-                            instructions.add(new Instruction(Operation.set_lt));
-                        }
-                        returnType=Type.INT;
-                    }
+    }
 
+    /**
+     * 分析运算符左边的操作数：取反、括号、字面量、标识符、函数调用和赋值
+     */
+    private Type analysePrimary_expr(int minBp) throws CompileError{
+        Token token = next();
+        switch (token.getTokenType()) {
+            case MINUS -> {
+                Type returnType = analyseExpr(PREFIX_BP);
+                if (returnType == Type.DOUBLE)
+                    instructions.add(new Instruction(Operation.neg_f));
+                else if (returnType == Type.INT)
+                    instructions.add(new Instruction(Operation.neg_i));
+                else
+                    throw new AnalyzeError(ErrorCode.InvalidAssignment,token.getStartPos());
+                return returnType;
+            }
+            case NOT -> {
+                analyseConditionOperand(PREFIX_BP);
+                Condition cond = takeCondition();
+                if (cond == null)
+                    cond = new Condition(null);
+                cond.negate();
+                lastCondition = cond;//交给调用方的 analyseExpr
+                return Type.INT;
+            }
+            case L_PAREN -> {
+                condition = true;//括号里的条件留给外层决定是否生成布尔值
+                Type returnType = analyseExpr(0);
+                expect(TokenType.R_PAREN);
+                return returnType;
+            }
+            case UINT_LITERAL -> {
+                instructions.add(new Instruction(Operation.push,(long)token.getValue()));
+                return Type.INT;
+            }
+            case DOUBLE_LITERAL -> {
+                instructions.add(new Instruction(Operation.push,Double.doubleToRawLongBits((double)token.getValue())));
+                return Type.DOUBLE;
+            }
+            case STRING_LITERAL -> {//值是字符串在全局数据区的下标，用作 putstr 的参数
+                String value = token.getValueString();
+                var push = new Instruction(Operation.push, strings.intern(value));
+                stringUses.put(push, value);
+                instructions.add(push);
+                return Type.INT;
+            }
+            case IDENT -> {
+                if (check(TokenType.L_PAREN))
+                    return analyseCall_expr(token);
+                if (check(TokenType.ASSIGN)) {
+                    //赋值的结合力最低，只能出现在表达式最外层
+                    if (minBp > 0)
+                        throw new AnalyzeError(ErrorCode.InvalidAssignment, token.getStartPos());
+                    analyseAssign_expr(token);
+                    return Type.VOID;
                 }
-                lastPriority = tmp;
+                Type returnType = findIdent(token);
+                instructions.add(new Instruction(Operation.load_64));
+                return returnType;
             }
-            else break;
+            default -> throw new ExpectedTokenError(List.of(TokenType.MINUS, TokenType.NOT, TokenType.L_PAREN, TokenType.IDENT,
+                    TokenType.UINT_LITERAL, TokenType.DOUBLE_LITERAL, TokenType.STRING_LITERAL), token);
         }
+    }
 
-
-        return returnType;
+    /**
+     * 两个同类型的操作数都已经在栈顶，生成二元运算的指令。乘除常数的强度削弱在 optimizer.Simplifier 里做
+     */
+    private void analyseBinary(TokenType op, Type type) {
+        boolean isInt = type == Type.INT;
+        switch (op){
+            case PLUS -> instructions.add(new Instruction(isInt ? Operation.add_i : Operation.add_f));
+            case MINUS -> instructions.add(new Instruction(isInt ? Operation.sub_i : Operation.sub_f));
+            case MUL -> instructions.add(new Instruction(isInt ? Operation.mul_i : Operation.mul_f));
+            case DIV -> instructions.add(new Instruction(isInt ? Operation.div_i : Operation.div_f));
+        }
     }
-    private Type analyseCall_expr() throws CompileError{
-        Token token = expect(TokenType.IDENT);
+
+    private Type analyseCall_expr(Token token) throws CompileError{
         expect(TokenType.L_PAREN);
 
         FuncInfo funcInfo = funList.get(token.getValueString());
-        if (funcInfo==null) throw new NotDeclaredError(ErrorCode.NotDeclared,token.getStartPos());
-
-        instructions.add(new Instruction(Operation.stackalloc,funcInfo.returnType==Type.VOID?0:1));
-        instructions.add(new Instruction(Operation.stackalloc,funcInfo.paraCnt));
-        instructions.add(new Instruction(Operation.push,0));//return value
-        //TODO:若为赋值语句，没处理报错
-        while (!check(TokenType.R_PAREN)){
-            analyseExpr();
-            if (!check(TokenType.R_PAREN)){
-                expect(TokenType.COMMA);
-                analyseExpr();
-            }
+        if (funcInfo==null) {
+            Type libType = analyseLibCall_expr(token.getValueString());
+            if (libType == null)
+                throw new NotDeclaredError(ErrorCode.NotDeclared,token.getStartPos());
+            deps.put(token.getValueString(), FunctionCache.LIBRARY);
+            return libType;
+        }
+        deps.put(token.getValueString(), funcInfo.signature());
+
+        int stackalloc = instructions.size();
+        instructions.add(new Instruction(Operation.stackalloc,funcInfo.returnType==Type.VOID?0:1));//返回值
+        var args = new ArrayList<Integer>();
+        if (!check(TokenType.R_PAREN)){
+            do {
+                args.add(instructions.size());
+                if (args.size() <= funcInfo.paraCnt)
+                    analyseExpr(funcInfo.paraTypes.get(args.size() - 1));
+                else
+                    analyseExpr();
+            } while (nextIf(TokenType.COMMA) != null);
         }
+        if (args.size() != funcInfo.paraCnt)
+            throw new Error("函数参数个数不对");
+        callSites.add(new CallSite(stackalloc, args.stream().mapToInt(Integer::intValue).toArray(), instructions.size()));
         instructions.add(new Instruction(Operation.call,funcInfo.funID));
 
         expect(TokenType.R_PAREN);
         return funcInfo.returnType;
     }
-    private void analyseAssign_expr() throws CompileError{
-        Token token = expect(TokenType.IDENT);
+
+    /**
+     * 标准库函数直接翻译成对应的指令，左括号已经读过
+     * <p>
+     * putstr(字符串字面量) 打印全局数据区里的字符串。
+     * 除了输入输出，还有堆内存：malloc(字节数) 返回地址，free(地址)；
+     * loadint/loaddouble/loadbyte(地址) 读 8 字节或 1 字节，storeint/storedouble/storebyte(地址, 值) 写
+     *
+     * @return 返回类型，不是标准库函数时返回 null
+     */
+    private Type analyseLibCall_expr(String name) throws CompileError{
+        Type returnType = Type.VOID;
+        switch (name) {
+            case "getint" -> {
+                instructions.add(new Instruction(Operation.scan_i));
+                returnType = Type.INT;
+            }
+            case "getdouble" -> {
+                instructions.add(new Instruction(Operation.scan_f));
+                returnType = Type.DOUBLE;
+            }
+            case "getchar" -> {
+                instructions.add(new Instruction(Operation.scan_c));
+                returnType = Type.INT;
+            }
+            case "putint", "putchar" -> {
+                if (analyseExpr() != Type.INT)
+                    throw new Error(name + "的参数应为int");
+                instructions.add(new Instruction(name.equals("putint") ? Operation.print_i : Operation.print_c));
+            }
+            case "putdouble" -> {
+                if (analyseExpr() != Type.DOUBLE)
+                    throw new Error("putdouble的参数应为double");
+                instructions.add(new Instruction(Operation.print_f));
+            }
+            case "putstr" -> {
+                if (analyseExpr() != Type.INT)
+                    throw new Error("putstr的参数应为字符串");
+                instructions.add(new Instruction(Operation.prints));
+            }
+            case "putln" -> instructions.add(new Instruction(Operation.println));
+            case "malloc" -> {
+                if (analyseExpr() != Type.INT)
+                    throw new Error("malloc的参数应为int");
+                instructions.add(new Instruction(Operation.alloc));
+                returnType = Type.INT;
+            }
+            case "free" -> {
+                if (analyseExpr() != Type.INT)
+                    throw new Error("free的参数应为int");
+                instructions.add(new Instruction(Operation.free));
+            }
+            case "loadint", "loaddouble", "loadbyte" -> {
+                if (analyseExpr() != Type.INT)
+                    throw new Error(name + "的地址应为int");
+                instructions.add(new Instruction(name.equals("loadbyte") ? Operation.load_8 : Operation.load_64));
+                returnType = name.equals("loaddouble") ? Type.DOUBLE : Type.INT;
+            }
+            case "storeint", "storedouble", "storebyte" -> {
+                if (analyseExpr() != Type.INT)
+                    throw new Error(name + "的地址应为int");
+                expect(TokenType.COMMA);
+                if (analyseExpr() != (name.equals("storedouble") ? Type.DOUBLE : Type.INT))
+                    throw new Error(name + "的值的类型不对");
+                instructions.add(new Instruction(name.equals("storebyte") ? Operation.store_8 : Operation.store_64));
+            }
+            default -> {
+                return null;
+            }
+        }
+        expect(TokenType.R_PAREN);
+        return returnType;
+    }
+    private void analyseAssign_expr(Token token) throws CompileError{
         expect(TokenType.ASSIGN);
-        findIdent(token);
-        analyseExpr();
+        Type type = findIdent(token);
+        analyseExpr(type);
         instructions.add(new Instruction(Operation.store_64));
     }
-
-
-
-
-
-
-
-
-
-
-
-
-
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-//    private void analyseProgram() throws CompileError {
-//        // 程序 -> 'begin' 主过程 'end'
-//        // 示例函数，示例如何调用子程序
-//        // 'begin'
-//        expect(TokenType.Begin);
-//
-//        analyseMain();
-//
-//        // 'end'
-//        expect(TokenType.End);
-//        expect(TokenType.EOF);
-//    }
-//
-//    private void analyseMain() throws CompileError {
-//        // 主过程 -> 常量声明 变量声明 语句序列
-//        analyseConstantDeclaration();
-//        analyseVariableDeclaration();
-//        analyseStatementSequence();
-//
-//    }
-//
-//    private void analyseConstantDeclaration() throws CompileError {
-//        // 示例函数，示例如何解析常量声明
-//        // 常量声明 -> 常量声明语句*
-//
-//        // 如果下一个 token 是 const 就继续
-//        while (nextIf(TokenType.Const) != null) {
-//            // 常量声明语句 -> 'const' 变量名 '=' 常表达式 ';'
-//
-//            // 变量名
-//            var nameToken = expect(TokenType.Ident);
-//
-//            // 加入符号表
-//            String name = (String) nameToken.getValue();
-//            addSymbol(name, true, true, nameToken.getStartPos());
-//
-//            // 等于号
-//            expect(TokenType.Equal);
-//
-//            // 常表达式
-//            var value = analyseConstantExpression();
-//
-//            // 分号
-//            expect(TokenType.Semicolon);
-//
-//            // 这里把常量值直接放进栈里，位置和符号表记录的一样。
-//            // 更高级的程序还可以把常量的值记录下来，遇到相应的变量直接替换成这个常数值，
-//            // 我们这里就先不这么干了。
-//            instructions.add(new Instruction(Operation.LIT, value));
-//        }
-//    }
-//
-//    private void analyseVariableDeclaration() throws CompileError {
-//        // 变量声明 -> 变量声明语句*
-//
-//        // 如果下一个 token 是 var 就继续
-//        while (nextIf(TokenType.Var) != null) {
-//            // 变量声明语句 -> 'var' 变量名 ('=' 表达式)? ';'
-//
-//            // 变量名
-//            var nameToken = expect(TokenType.Ident);
-//            // 变量初始化了吗
-//            boolean initialized = false;
-//
-//            // 下个 token 是等于号吗？如果是的话分析初始化
-//            if(check(TokenType.Equal)){
-//                expect(TokenType.Equal);
-//                initialized=true;
-//                analyseExpression();
-//            }
-//            // 分析初始化的表达式
-//
-//            // 分号
-//            expect(TokenType.Semicolon);
-//
-//            // 加入符号表，请填写名字和当前位置（报错用）
-//            String name = (String) nameToken.getValue();
-//            addSymbol(name, initialized, false, nameToken.getStartPos());
-//
-//            // 如果没有初始化的话在栈里推入一个初始值
-//            if (!initialized) {
-//                instructions.add(new Instruction(Operation.LIT, 0));
-//            }
-//        }
-//    }
-//
-//    private void analyseStatementSequence() throws CompileError {
-//        // 语句序列 -> 语句*
-//        // 语句 -> 赋值语句 | 输出语句 | 空语句
-//
-//        while (true) {
-//            // 如果下一个 token 是……
-//            var peeked = peek();
-//
-//            if (peeked.getTokenType() == TokenType.Ident) {
-//                // 调用相应的分析函数
-//                // 如果遇到其他非终结符的 FIRST 集呢？
-//                analyseAssignmentStatement();
-//            }
-//            else if (peeked.getTokenType()== TokenType.Print){
-//                analyseOutputStatement();
-//            }
-//            else if (peeked.getTokenType() == TokenType.Semicolon){
-//                next();
-//            }
-//            else {
-//                // 都不是，摸了
-//                break;
-//            }
-//        }
-////        throw new Error("Not implemented");
-//    }
-//
-//    private int analyseConstantExpression() throws CompileError {
-//        // 常表达式 -> 符号? 无符号整数
-//        boolean negative = false;
-//        if (nextIf(TokenType.Plus) != null) {
-//            negative = false;
-//        } else if (nextIf(TokenType.Minus) != null) {
-//            negative = true;
-//        }
-//
-//        var token = expect(TokenType.Uint);
-//
-//        int value = (int) token.getValue();
-//        if (negative) {
-//            value = -value;
-//        }
-//
-//        return value;
-//    }
-//
-//    private void analyseExpression() throws CompileError {
-//        // 表达式 -> 项 (加法运算符 项)*
-//        // 项
-//        analyseItem();
-//
-//        while (true) {
-//            // 预读可能是运算符的 token
-//            var op = peek();
-//            if (op.getTokenType() != TokenType.Plus && op.getTokenType() != TokenType.Minus) {
-//                break;
-//            }
-//
-//            // 运算符
-//            next();
-//
-//            // 项
-//            analyseItem();
-//
-//            // 生成代码
-//            if (op.getTokenType() == TokenType.Plus) {
-//                instructions.add(new Instruction(Operation.ADD));
-//            } else if (op.getTokenType() == TokenType.Minus) {
-//                instructions.add(new Instruction(Operation.SUB));
-//            }
-//        }
-//    }
-//
-//    private void analyseAssignmentStatement() throws CompileError {
-//        // 赋值语句 -> 标识符 '=' 表达式 ';'
-//
-//        // 分析这个语句
-//        Token nameToken = expect(TokenType.Ident);
-//        expect(TokenType.Equal);
-//        analyseExpression();
-//        expect(TokenType.Semicolon);
-//        // 标识符是什么？
-//        String name = (String) nameToken.getValue();
-//        var symbol = symbolTable.get(name);
-//        if (symbol == null) {
-//            // 没有这个标识符
-//            throw new AnalyzeError(ErrorCode.NotDeclared, /* 当前位置 */ nameToken.getStartPos());
-//        } else if (symbol.isConstant) {
-//            // 标识符是常量
-//            throw new AnalyzeError(ErrorCode.AssignToConstant, /* 当前位置 */ nameToken.getStartPos());
-//        }
-//        // 设置符号已初始化
-//        initializeSymbol(name, nameToken.getStartPos());
-//
-//        // 把结果保存
-//        var offset = getOffset(name, nameToken.getStartPos());
-//        instructions.add(new Instruction(Operation.STO, offset));
-//    }
-//
-//    private void analyseOutputStatement() throws CompileError {
-//        // 输出语句 -> 'print' '(' 表达式 ')' ';'
-//
-//        expect(TokenType.Print);
-//        expect(TokenType.LParen);
-//
-//        analyseExpression();
-//
-//        expect(TokenType.RParen);
-//        expect(TokenType.Semicolon);
-//
-//        instructions.add(new Instruction(Operation.WRT));
-//    }
-//
-//    private void analyseItem() throws CompileError {
-//        // 项 -> 因子 (乘法运算符 因子)*
-//
-//        // 因子
-//        analyseFactor();
-//        while (true) {
-//            // 预读可能是运算符的 token
-//            Token op = peek();
-//            if (op.getTokenType() != TokenType.Mult && op.getTokenType() != TokenType.Div) {
-//                break;
-//            }
-//
-//            // 运算符
-//            next();
-//
-//            // 因子
-//            analyseFactor();
-//
-//            // 生成代码
-//            if (op.getTokenType() == TokenType.Mult) {
-//                instructions.add(new Instruction(Operation.MUL));
-//            } else if (op.getTokenType() == TokenType.Div) {
-//                instructions.add(new Instruction(Operation.DIV));
-//            }
-//        }
-//    }
-//
-//    private void analyseFactor() throws CompileError {
-//        // 因子 -> 符号? (标识符 | 无符号整数 | '(' 表达式 ')')
-//
-//        boolean negate;
-//        if (nextIf(TokenType.Minus) != null) {
-//            negate = true;
-//            // 计算结果需要被 0 减
-//            instructions.add(new Instruction(Operation.LIT, 0));
-//        } else {
-//            nextIf(TokenType.Plus);
-//            negate = false;
-//        }
-//
-//        if (check(TokenType.Ident)) {
-//            // 是标识符
-//
-//            // 加载标识符的值
-//            Token nameToken = expect(TokenType.Ident);
-//            String name = (String) nameToken.getValue();
-//            var symbol = symbolTable.get(name);
-//            if (symbol == null) {
-//                // 没有这个标识符
-//                throw new AnalyzeError(ErrorCode.NotDeclared, nameToken.getStartPos());
-//            } else if (!symbol.isInitialized) {
-//                // 标识符没初始化
-//                throw new AnalyzeError(ErrorCode.NotInitialized, nameToken.getStartPos());
-//            }
-//            var offset = getOffset(name, nameToken.getStartPos());
-//            instructions.add(new Instruction(Operation.LOD, offset));
-//        } else if (check(TokenType.Uint)) {
-//            // 是整数
-//            // 加载整数值
-//            int value = (int)expect(TokenType.Uint).getValue();
-//            instructions.add(new Instruction(Operation.LIT, value));
-//        } else if (check(TokenType.LParen)) {
-//            // 是表达式
-//            // 调用相应的处理函数
-//            expect(TokenType.LParen);
-//            analyseExpression();
-//            expect(TokenType.RParen);
-//
-//        } else {
-//            // 都不是，摸了
-//            throw new ExpectedTokenError(List.of(TokenType.Ident, TokenType.Uint, TokenType.LParen), next());
-//        }
-//
-//        if (negate) {
-//            instructions.add(new Instruction(Operation.SUB));
-//        }
-//
-//    }
-//}
@@ -0,0 +1,52 @@
+package analyser;
+
+/**
+ * 一次对用户函数的调用在调用方指令中的位置，供内联使用
+ * <p>
+ * 调用的指令序列为 stackalloc 返回值槽、依次计算每个实参、call
+ */
+public class CallSite {
+    int stackalloc;
+    int[] args;
+    int call;
+
+    CallSite(int stackalloc, int[] args, int call) {
+        this.stackalloc = stackalloc;
+        this.args = args;
+        this.call = call;
+    }
+
+    /**
+     * @return stackalloc 指令的下标
+     */
+    public int getStackalloc() {
+        return stackalloc;
+    }
+
+    /**
+     * @return 每个实参第一条指令的下标
+     */
+    public int[] getArgs() {
+        return args;
+    }
+
+    /**
+     * @return call 指令的下标
+     */
+    public int getCall() {
+        return call;
+    }
+
+    /**
+     * 函数体重排之后的同一个调用
+     *
+     * @param index 原下标 -> 新下标
+     */
+    public CallSite remap(int[] index) {
+        int[] newArgs = new int[args.length];
+        for (int k = 0; k < args.length; k++) {
+            newArgs[k] = index[args[k]];
+        }
+        return new CallSite(index[stackalloc], newArgs, index[call]);
+    }
+}
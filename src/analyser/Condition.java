@@ -0,0 +1,44 @@
+package analyser;
+
+import tokenizer.TokenType;
+
+import java.util.ArrayList;
+
+/**
+ * 还没有求出布尔值的条件
+ * <p>
+ * 由两部分组成：已经生成、等待回填的跳转（条件确定为真/假时跳走），
+ * 以及最后一次测试——栈顶的比较结果或普通的值，还没有生成跳转。
+ * if/while 直接用它跳转；需要值的时候再用 push 1/push 0 生成布尔值。
+ */
+class Condition {
+    /** 最后一次测试的比较运算，null 表示栈顶是普通的值（非 0 为真） */
+    TokenType compare;
+    /** 最后一次测试是否要取反 */
+    boolean negated = false;
+    /** 条件为真时跳走的跳转指令下标 */
+    ArrayList<Integer> trueJumps = new ArrayList<>();
+    /** 条件为假时跳走的跳转指令下标 */
+    ArrayList<Integer> falseJumps = new ArrayList<>();
+
+    Condition(TokenType compare) {
+        this.compare = compare;
+    }
+
+    /**
+     * 逻辑非：交换两组跳转，最后一次测试取反
+     */
+    void negate() {
+        var tmp = trueJumps;
+        trueJumps = falseJumps;
+        falseJumps = tmp;
+        negated = !negated;
+    }
+
+    /**
+     * 只有最后一次测试，没有已经生成的跳转
+     */
+    boolean isSimple() {
+        return trueJumps.isEmpty() && falseJumps.isEmpty();
+    }
+}
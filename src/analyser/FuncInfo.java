@@ -1,14 +1,85 @@
 package analyser;
 
+import instruction.Instruction;
+
+import java.util.ArrayList;
+import java.util.List;
+
 public class FuncInfo {
+    String name;
+    int nameGlobal;//函数名在全局数据区的下标
     int funID;
     int paraCnt;
     int localParaCnt;
     Type returnType;
+    List<Type> paraTypes = List.of();
+    ArrayList<Instruction> instructions = new ArrayList<>();//函数体指令
+    ArrayList<CallSite> callSites = new ArrayList<>();//对用户函数的调用，下标指向 instructions
 
     public FuncInfo(int funID, int paraCnt,Type returnType){
         this.returnType = returnType;
         this.funID = funID;
         this.paraCnt = paraCnt;
     }
+
+    /**
+     * 调用方生成的代码只依赖这几项
+     */
+    String signature() {
+        return funID + ":" + paraCnt + ":" + paraTypes + ":" + returnType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNameGlobal() {
+        return nameGlobal;
+    }
+
+    public int getFunID() {
+        return funID;
+    }
+
+    public int getParaCnt() {
+        return paraCnt;
+    }
+
+    public int getLocalParaCnt() {
+        return localParaCnt;
+    }
+
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    public List<Type> getParaTypes() {
+        return paraTypes;
+    }
+
+    public ArrayList<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public List<CallSite> getCallSites() {
+        return callSites;
+    }
+
+    /**
+     * 优化后替换函数体，原来记录的调用位置随之失效
+     */
+    public void setInstructions(ArrayList<Instruction> instructions, int localParaCnt) {
+        this.instructions = instructions;
+        this.localParaCnt = localParaCnt;
+        this.callSites = new ArrayList<>();
+    }
+
+    /**
+     * 只移动了指令的优化（比如重排基本块）替换函数体时，一起给出移动后的调用位置
+     */
+    public void setInstructions(ArrayList<Instruction> instructions, int localParaCnt, ArrayList<CallSite> callSites) {
+        this.instructions = instructions;
+        this.localParaCnt = localParaCnt;
+        this.callSites = callSites;
+    }
 }
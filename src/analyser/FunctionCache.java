@@ -0,0 +1,146 @@
+package analyser;
+
+import instruction.Instruction;
+import instruction.Operation;
+import tokenizer.Token;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * 函数粒度的增量编译缓存
+ * <p>
+ * 函数体只依赖全局变量布局和被调函数的签名（funID、参数个数、返回类型），
+ * 所以以函数的 token 指纹为键缓存它的指令。字符串字面量在常量池里的下标取决于别的函数，
+ * 复用时重新放进常量池，换掉对应的 push。再次编译时，如果函数的 token 没变、
+ * 全局变量布局没变、它调用过的函数签名也都没变，就直接复用缓存的指令，不再分析函数体。
+ * 调用的库函数也记下来，之后有同名的用户函数时（用户函数优先）不能复用。
+ * 同一个 FunctionCache 在多次编译之间复用（见 App 的 --watch）。
+ */
+public class FunctionCache {
+
+    /** deps 里库函数的签名 */
+    static final String LIBRARY = "library";
+
+    static class Entry {
+        byte[] fingerprint;
+        String globalLayout;
+        HashMap<String, String> deps;//被调函数名 -> 编译时的签名，库函数为 LIBRARY
+        int localParaCnt;
+        ArrayList<Instruction> instructions;
+        ArrayList<CallSite> callSites;
+        HashMap<Integer, String> strings;//压入字符串字面量的 push 的下标 -> 字符串
+    }
+
+    private HashMap<String, Entry> entries = new HashMap<>();
+    private HashSet<String> seen = new HashSet<>();
+    /** 上次编译的选项，选项变了生成的指令也会变 */
+    private String options = null;
+
+    private int reused = 0;
+    private int analysed = 0;
+
+    /**
+     * 每次编译开始时调用，清零计数。选项和上次不同时丢掉所有条目
+     *
+     * @param options 这次编译的选项，见 CompileOptions.key
+     */
+    public void beginCompile(String options) {
+        if (!options.equals(this.options))
+            entries.clear();
+        this.options = options;
+        seen.clear();
+        reused = 0;
+        analysed = 0;
+    }
+
+    /**
+     * 编译成功后调用，丢掉源码里已经不存在的函数
+     */
+    public void endCompile() {
+        entries.keySet().retainAll(seen);
+    }
+
+    /**
+     * 计算一段 token 的指纹，只看类型和值，不看位置，所以只改空白不会让缓存失效
+     */
+    static byte[] fingerprint(List<Token> tokens) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+        for (Token token : tokens) {
+            digest.update((byte) token.getTokenType().ordinal());
+            digest.update(String.valueOf(token.getValue()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * 查找可以复用的函数，找到时把指令和局部变量个数填进 funcInfo
+     *
+     * @param funList 当前已声明的函数，用来检查依赖的签名是否变化
+     * @param strings 这次编译的字符串常量池
+     * @return 是否命中
+     */
+    boolean lookup(FuncInfo funcInfo, byte[] fingerprint, String globalLayout, Map<String, FuncInfo> funList,
+                   StringPool strings) {
+        seen.add(funcInfo.name);
+        Entry entry = entries.get(funcInfo.name);
+        if (entry == null || !Arrays.equals(entry.fingerprint, fingerprint)
+                || !entry.globalLayout.equals(globalLayout)) {
+            return false;
+        }
+        for (var dep : entry.deps.entrySet()) {
+            FuncInfo callee = funList.get(dep.getKey());
+            if (dep.getValue().equals(LIBRARY) ? callee != null
+                    : callee == null || !callee.signature().equals(dep.getValue()))
+                return false;
+        }
+        funcInfo.localParaCnt = entry.localParaCnt;
+        funcInfo.instructions = new ArrayList<>(entry.instructions);
+        for (var use : entry.strings.entrySet()) {
+            funcInfo.instructions.set(use.getKey(), new Instruction(Operation.push, strings.intern(use.getValue())));
+        }
+        funcInfo.callSites = new ArrayList<>(entry.callSites);
+        reused++;
+        return true;
+    }
+
+    /**
+     * 记录一个重新分析过的函数
+     *
+     * @param strings 压入字符串字面量的 push 指令 -> 字符串，不在函数体里的（比如退回重新分析的）不算
+     */
+    void store(FuncInfo funcInfo, byte[] fingerprint, String globalLayout, HashMap<String, String> deps,
+               Map<Instruction, String> strings) {
+        var entry = new Entry();
+        entry.fingerprint = fingerprint;
+        entry.globalLayout = globalLayout;
+        entry.deps = deps;
+        entry.strings = new HashMap<>();
+        for (int i = 0; i < funcInfo.instructions.size(); i++) {
+            String s = strings.get(funcInfo.instructions.get(i));
+            if (s != null)
+                entry.strings.put(i, s);
+        }
+        entry.localParaCnt = funcInfo.localParaCnt;
+        entry.instructions = new ArrayList<>(funcInfo.instructions);
+        entry.callSites = new ArrayList<>(funcInfo.callSites);
+        entries.put(funcInfo.name, entry);
+        analysed++;
+    }
+
+    public int getReused() {
+        return reused;
+    }
+
+    public int getAnalysed() {
+        return analysed;
+    }
+}
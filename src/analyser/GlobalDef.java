@@ -0,0 +1,33 @@
+package analyser;
+
+/**
+ * o0 全局数据区的一项，装入虚拟机时就是这些字节
+ */
+public class GlobalDef {
+    boolean constant;
+    byte[] value;
+
+    GlobalDef(boolean constant, byte[] value) {
+        this.constant = constant;
+        this.value = value;
+    }
+
+    /**
+     * 一个 8 字节的全局变量，按虚拟机内存的小端序存放初值
+     */
+    static GlobalDef ofLong(boolean constant, long value) {
+        var bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> 8 * i);
+        }
+        return new GlobalDef(constant, bytes);
+    }
+
+    public boolean isConstant() {
+        return constant;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+}
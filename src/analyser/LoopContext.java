@@ -0,0 +1,13 @@
+package analyser;
+
+import java.util.ArrayList;
+
+/**
+ * 正在分析的一层 while 循环，记录 break/continue 生成的待回填跳转
+ */
+class LoopContext {
+    /** break 的跳转，回填到循环出口 */
+    ArrayList<Integer> breakJumps = new ArrayList<>();
+    /** continue 的跳转，回填到循环条件 */
+    ArrayList<Integer> continueJumps = new ArrayList<>();
+}
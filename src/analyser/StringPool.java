@@ -0,0 +1,36 @@
+package analyser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 字符串常量池，内容相同的字符串在全局数据区里只存一份
+ * <p>
+ * 字符串字面量和函数名都放在这里，按 UTF-8 存放，不带结尾的 0。
+ * 每个字符串第一次出现时在全局数据区末尾追加一项常量，之后再出现就用同一个下标
+ */
+class StringPool {
+    private final List<GlobalDef> globals;
+    private final HashMap<String, Integer> index = new HashMap<>();
+
+    /**
+     * @param globals 全局数据区，新的字符串追加在它后面
+     */
+    StringPool(List<GlobalDef> globals) {
+        this.globals = globals;
+    }
+
+    /**
+     * @return 字符串所在的全局数据项的下标
+     */
+    int intern(String s) {
+        Integer i = index.get(s);
+        if (i == null) {
+            i = globals.size();
+            globals.add(new GlobalDef(true, s.getBytes(StandardCharsets.UTF_8)));
+            index.put(s, i);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,103 @@
+package emitter;
+
+import analyser.FuncInfo;
+import analyser.GlobalDef;
+import analyser.Type;
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把分析结果写成 navm 的 o0 二进制格式（大端序）
+ * <p>
+ * 全局数据依次是全局变量（编译时算出来的初值直接写在里面）、字符串字面量和函数名，
+ * 后两者由分析时的常量池去重，同样的内容只有一项；
+ * 0号函数是合成的 _start，先执行初值不是常量的全局变量的初始化代码，再调用 main
+ */
+public class O0Writer {
+    public static final int MAGIC = 0x72303b3e;
+    public static final int VERSION = 1;
+
+    private final List<GlobalDef> globals;
+    private final int startName;
+    private final List<Instruction> globalInit;
+    private final List<FuncInfo> functions;
+
+    /**
+     * @param startName _start 的函数名在 globals 里的下标，其他函数的见 FuncInfo.getNameGlobal()
+     */
+    public O0Writer(List<GlobalDef> globals, int startName, List<Instruction> globalInit, List<FuncInfo> functions) {
+        this.globals = globals;
+        this.startName = startName;
+        this.globalInit = globalInit;
+        this.functions = functions;
+    }
+
+    public byte[] write() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(globals.size());
+        for (GlobalDef global : globals) {
+            out.writeByte(global.isConstant() ? 1 : 0);
+            out.writeInt(global.getValue().length);
+            out.write(global.getValue());
+        }
+
+        out.writeInt(functions.size() + 1);
+        writeStart(out);
+        for (int i = 0; i < functions.size(); i++) {
+            FuncInfo funcInfo = functions.get(i);
+            writeFunction(out, funcInfo.getNameGlobal(), funcInfo.getReturnType() == Type.VOID ? 0 : 1,
+                    funcInfo.getParaCnt(), funcInfo.getLocalParaCnt(), funcInfo.getInstructions());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void writeStart(DataOutputStream out) throws IOException {
+        FuncInfo main = null;
+        for (FuncInfo funcInfo : functions) {
+            if (funcInfo.getName().equals("main"))
+                main = funcInfo;
+        }
+        if (main == null)
+            throw new Error("expect a main function");
+        int retSlots = main.getReturnType() == Type.VOID ? 0 : 1;
+        var start = new ArrayList<>(globalInit);
+        start.add(new Instruction(Operation.stackalloc, retSlots));
+        start.add(new Instruction(Operation.call, main.getFunID()));
+        if (retSlots > 0)
+            start.add(new Instruction(Operation.popn, retSlots));
+        start.add(new Instruction(Operation.ret));
+        writeFunction(out, startName, 0, 0, 0, start);
+    }
+
+    private void writeFunction(DataOutputStream out, int name, int retSlots, int paramSlots, int locSlots,
+                               List<Instruction> body) throws IOException {
+        out.writeInt(name);
+        out.writeInt(retSlots);
+        out.writeInt(paramSlots);
+        out.writeInt(locSlots);
+        out.writeInt(body.size());
+        for (Instruction instruction : body) {
+            writeInstruction(out, instruction);
+        }
+    }
+
+    private void writeInstruction(DataOutputStream out, Instruction instruction) throws IOException {
+        Operation opt = instruction.getOpt();
+        out.writeByte(opt.getCode());
+        if (opt.getParamSize() == 8)
+            out.writeLong(instruction.getX());
+        else if (opt.getParamSize() == 4)
+            out.writeInt((int) instruction.getX());
+    }
+}
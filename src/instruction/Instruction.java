@@ -4,20 +4,20 @@ import java.util.Objects;
 
 public class Instruction {
     private Operation opt;
-    Integer x;
+    long x;
 
     public Instruction(Operation opt) {
         this.opt = opt;
         this.x = 0;
     }
 
-    public Instruction(Operation opt, Integer x) {
+    public Instruction(Operation opt, long x) {
         this.opt = opt;
         this.x = x;
     }
 
     public Instruction() {
-        this.opt = Operation.LIT;
+        this.opt = Operation.nop;
         this.x = 0;
     }
 
@@ -28,7 +28,7 @@ public class Instruction {
         if (o == null || getClass() != o.getClass())
             return false;
         Instruction that = (Instruction) o;
-        return opt == that.opt && Objects.equals(x, that.x);
+        return opt == that.opt && x == that.x;
     }
 
     @Override
@@ -44,30 +44,18 @@ public class Instruction {
         this.opt = opt;
     }
 
-    public Integer getX() {
+    public long getX() {
         return x;
     }
 
-    public void setX(Integer x) {
+    public void setX(long x) {
         this.x = x;
     }
 
     @Override
     public String toString() {
-        switch (this.opt) {
-            case ADD:
-            case DIV:
-            case ILL:
-            case MUL:
-            case SUB:
-            case WRT:
-                return String.format("%s", this.opt);
-            case LIT:
-            case LOD:
-            case STO:
-                return String.format("%s %s", this.opt, this.x);
-            default:
-                return "ILL";
-        }
+        if (this.opt.getParamSize() == 0)
+            return String.format("%s", this.opt);
+        return String.format("%s %s", this.opt, this.x);
     }
 }
@@ -0,0 +1,207 @@
+package optimizer;
+
+import analyser.CallSite;
+import analyser.FuncInfo;
+import instruction.Instruction;
+import instruction.Operation;
+import util.Profile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按训练运行的分支计数重排基本块
+ * <p>
+ * 从入口开始把基本块串成链：条件跳转之后接执行次数多的一边，需要时把 br_true/br_false 反过来，
+ * 让常走的路径顺序执行下去，不用跳转；无条件的后继能接上就接上。链接不下去时从原来顺序中下一个
+ * 还没放的热块开始新的一条链。训练中一次也没有执行到的块（冷块）放到函数末尾。
+ * 原来顺序执行到下一块、重排后不再相邻的地方补一条 br。
+ * <p>
+ * 计数是按未经优化的指令下标记录的，所以这一步在其他优化之前做。
+ * 调用的实参中间不拆块，保持 Inliner 依赖的 stackalloc、实参、call 的先后次序
+ */
+class BlockLayout {
+    private final List<FuncInfo> functions;
+    private final Map<FuncInfo, Profile.FunctionProfile> profiles;
+
+    private int reordered = 0;
+
+    BlockLayout(List<FuncInfo> functions, Map<FuncInfo, Profile.FunctionProfile> profiles) {
+        this.functions = functions;
+        this.profiles = profiles;
+    }
+
+    void run() {
+        for (FuncInfo funcInfo : functions) {
+            Profile.FunctionProfile counts = profiles.get(funcInfo);
+            if (counts != null && counts.getEntries() > 0 && layout(funcInfo, counts))
+                reordered++;
+        }
+    }
+
+    int getReordered() {
+        return reordered;
+    }
+
+    /**
+     * @return 是否改变了块的顺序
+     */
+    private static boolean layout(FuncInfo funcInfo, Profile.FunctionProfile counts) {
+        var code = new Code(funcInfo.getInstructions());
+        int n = code.size();
+        if (n == 0)
+            return false;
+        var index = new IdentityHashMap<Instruction, Integer>();
+        for (int i = 0; i < n; i++) {
+            index.put(code.get(i), i);
+        }
+
+        //inCall[i]: i 在某个调用的 stackalloc 之后、call 之内，记下最外层调用的 stackalloc
+        var inCall = new int[n];
+        Arrays.fill(inCall, -1);
+        for (CallSite site : funcInfo.getCallSites()) {
+            for (int i = site.getStackalloc() + 1; i <= site.getCall(); i++) {
+                if (inCall[i] < 0 || inCall[i] > site.getStackalloc())
+                    inCall[i] = site.getStackalloc();
+            }
+        }
+
+        var leader = new boolean[n + 1];
+        leader[0] = true;
+        leader[n] = true;
+        for (int i = 0; i < n; i++) {
+            Operation opt = code.get(i).getOpt();
+            if (Code.isJump(opt)) {
+                int target = index.get(code.target(code.get(i)));
+                //从实参外面跳进实参里，不能按块移动
+                if (inCall[target] >= 0 && inCall[target] != inCall[i])
+                    return false;
+                leader[target] = true;
+            }
+            if (Code.isJump(opt) || !StackEffect.fallsThrough(opt))
+                leader[i + 1] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            if (inCall[i] >= 0)
+                leader[i] = false;
+        }
+
+        var starts = new ArrayList<Integer>();
+        var blockOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (leader[i])
+                starts.add(i);
+            blockOf[i] = starts.size() - 1;
+        }
+        int blocks = starts.size();
+        starts.add(n);
+
+        //每块的后继：taken 为跳转目标，fall 为顺序执行到的下一块，没有时为 -1
+        var taken = new int[blocks];
+        var fall = new int[blocks];
+        var conditional = new boolean[blocks];
+        for (int b = 0; b < blocks; b++) {
+            Instruction last = code.get(starts.get(b + 1) - 1);
+            Operation opt = last.getOpt();
+            taken[b] = Code.isJump(opt) ? blockOf[index.get(code.target(last))] : -1;
+            fall[b] = opt != Operation.br && StackEffect.fallsThrough(opt) ? b + 1 : -1;
+            conditional[b] = opt == Operation.br_true || opt == Operation.br_false;
+            if (fall[b] == blocks)
+                return false;//最后一块执行到函数末尾
+        }
+
+        //从入口沿执行过的边能到达的块是热的
+        var hot = new boolean[blocks];
+        var queue = new ArrayDeque<Integer>();
+        hot[0] = true;
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int b = queue.poll();
+            int branch = starts.get(b + 1) - 1;
+            for (int s : new int[]{taken[b], fall[b]}) {
+                if (s < 0 || hot[s])
+                    continue;
+                if (conditional[b] && (s == taken[b] ? counts.getTaken(branch) : counts.getNotTaken(branch)) == 0)
+                    continue;
+                hot[s] = true;
+                queue.add(s);
+            }
+        }
+
+        var order = new ArrayList<Integer>(blocks);
+        var placed = new boolean[blocks];
+        int current = 0;
+        while (current >= 0) {
+            placed[current] = true;
+            order.add(current);
+            int first = taken[current];
+            int second = fall[current];
+            if (conditional[current]) {
+                int branch = starts.get(current + 1) - 1;
+                if (counts.getTaken(branch) <= counts.getNotTaken(branch)) {
+                    first = fall[current];
+                    second = taken[current];
+                }
+            }
+            int next = -1;
+            for (int s : new int[]{first, second}) {
+                if (next < 0 && s >= 0 && !placed[s] && (hot[s] || !hot[current]))
+                    next = s;
+            }
+            for (int pass = 0; pass < 2 && next < 0; pass++) {
+                for (int b = 0; b < blocks && next < 0; b++) {
+                    if (!placed[b] && (hot[b] || pass == 1))
+                        next = b;
+                }
+            }
+            current = next;
+        }
+        boolean changed = false;
+        for (int k = 0; k < blocks; k++) {
+            if (order.get(k) != k)
+                changed = true;
+        }
+        if (!changed)
+            return false;
+
+        var list = new ArrayList<Instruction>(n + blocks);
+        for (int k = 0; k < blocks; k++) {
+            int b = order.get(k);
+            int next = k + 1 < blocks ? order.get(k + 1) : -1;
+            for (int i = starts.get(b); i < starts.get(b + 1); i++) {
+                list.add(code.get(i));
+            }
+            if (fall[b] < 0 || fall[b] == next)
+                continue;
+            Instruction last = code.get(starts.get(b + 1) - 1);
+            if (conditional[b] && taken[b] == next) {
+                last.setOpt(last.getOpt() == Operation.br_true ? Operation.br_false : Operation.br_true);
+                code.setTarget(last, code.get(starts.get(fall[b])));
+                continue;
+            }
+            var br = new Instruction(Operation.br);
+            code.setTarget(br, code.get(starts.get(fall[b])));
+            list.add(br);
+        }
+
+        var moved = new IdentityHashMap<Instruction, Integer>();
+        for (int i = 0; i < list.size(); i++) {
+            moved.put(list.get(i), i);
+        }
+        var newIndex = new int[n];
+        for (int i = 0; i < n; i++) {
+            newIndex[i] = moved.get(code.get(i));
+        }
+        var callSites = new ArrayList<CallSite>();
+        for (CallSite site : funcInfo.getCallSites()) {
+            callSites.add(site.remap(newIndex));
+        }
+        code.list = list;
+        funcInfo.setInstructions(code.toList(), funcInfo.getLocalParaCnt(), callSites);
+        return true;
+    }
+}
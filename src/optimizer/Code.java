@@ -0,0 +1,204 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 便于修改的函数体
+ * <p>
+ * 指令都是复制出来的，可以直接修改。跳转记录的是目标指令本身而不是相对偏移，
+ * 插入、删除指令后由 toList() 重新计算偏移。
+ * 同时按目标记下跳到它的跳转，isTarget、retarget 不用扫描所有跳转；
+ * 要删很多条指令时先做标记，再用 compact() 一次删掉，不要逐条 remove
+ */
+class Code {
+    ArrayList<Instruction> list = new ArrayList<>();
+    /** 跳转指令 -> 目标指令，按对象身份比较 */
+    private final IdentityHashMap<Instruction, Instruction> targets = new IdentityHashMap<>();
+    /** 目标指令 -> 跳到它的跳转指令 */
+    private final IdentityHashMap<Instruction, Set<Instruction>> jumpsTo = new IdentityHashMap<>();
+
+    Code(List<Instruction> instructions) {
+        for (Instruction instruction : instructions) {
+            list.add(new Instruction(instruction.getOpt(), instruction.getX()));
+        }
+        for (int i = 0; i < list.size(); i++) {
+            Instruction instruction = list.get(i);
+            if (isJump(instruction.getOpt())) {
+                int target = i + 1 + (int) instruction.getX();
+                if (target < 0 || target >= list.size())
+                    throw new Error("跳转目标越界: " + i + " " + instruction);
+                setTarget(instruction, list.get(target));
+            }
+        }
+    }
+
+    static boolean isJump(Operation opt) {
+        return opt == Operation.br || opt == Operation.br_false || opt == Operation.br_true;
+    }
+
+    int size() {
+        return list.size();
+    }
+
+    Instruction get(int index) {
+        return list.get(index);
+    }
+
+    /**
+     * 按对象身份查找指令的下标
+     */
+    int indexOf(Instruction instruction) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == instruction)
+                return i;
+        }
+        throw new Error("指令不在函数体中: " + instruction);
+    }
+
+    Instruction target(Instruction jump) {
+        return targets.get(jump);
+    }
+
+    void setTarget(Instruction jump, Instruction target) {
+        clearTarget(jump);
+        targets.put(jump, target);
+        jumpsTo.computeIfAbsent(target, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(jump);
+    }
+
+    /**
+     * jump 不再是跳转（换成了 ret、pop 或者被删掉）时调用
+     */
+    void clearTarget(Instruction jump) {
+        Instruction target = targets.remove(jump);
+        if (target == null)
+            return;
+        Set<Instruction> jumps = jumpsTo.get(target);
+        jumps.remove(jump);
+        if (jumps.isEmpty())
+            jumpsTo.remove(target);
+    }
+
+    /**
+     * 在 index 前插入一条指令，原来跳到 index 处的跳转改为跳到新指令
+     */
+    void insert(int index, Instruction instruction) {
+        if (index < list.size())
+            retarget(list.get(index), instruction);
+        list.add(index, instruction);
+    }
+
+    /**
+     * 在 index 前插入另一段代码，连同其中的跳转。原来跳到 index 处的跳转不变
+     */
+    void insertAll(int index, Code code) {
+        list.addAll(index, code.list);
+        for (Map.Entry<Instruction, Instruction> entry : code.targets.entrySet()) {
+            setTarget(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 删除一条指令，跳到它的跳转改为跳到下一条指令
+     */
+    void remove(int index) {
+        Instruction removed = list.remove(index);
+        clearTarget(removed);
+        if (isTarget(removed)) {
+            if (index == list.size())
+                throw new Error("删除的指令是跳转目标且后面没有指令: " + removed);
+            retarget(removed, list.get(index));
+        }
+    }
+
+    /**
+     * 跳到 from 的跳转都改为跳到 to
+     */
+    void retarget(Instruction from, Instruction to) {
+        if (from == to)
+            return;
+        Set<Instruction> jumps = jumpsTo.remove(from);
+        if (jumps == null)
+            return;
+        for (Instruction jump : jumps) {
+            targets.put(jump, to);
+        }
+        Set<Instruction> existing = jumpsTo.get(to);
+        if (existing == null)
+            jumpsTo.put(to, jumps);
+        else
+            existing.addAll(jumps);
+    }
+
+    /**
+     * 一次删掉所有标记的指令，跳到被删指令的跳转改为跳到它后面第一条留下的指令
+     *
+     * @param removed 下标和 list 对应
+     * @return 是否删了指令
+     */
+    boolean compact(boolean[] removed) {
+        //先去掉被删的跳转，被删的指令之间的跳转就不用改目标了
+        int kept = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (removed[i])
+                clearTarget(list.get(i));
+            else
+                kept++;
+        }
+        if (kept == list.size())
+            return false;
+        Instruction next = null;
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Instruction instruction = list.get(i);
+            if (!removed[i]) {
+                next = instruction;
+                continue;
+            }
+            if (isTarget(instruction)) {
+                if (next == null)
+                    throw new Error("删除的指令是跳转目标且后面没有指令: " + instruction);
+                retarget(instruction, next);
+            }
+        }
+        var result = new ArrayList<Instruction>(kept);
+        for (int i = 0; i < list.size(); i++) {
+            if (!removed[i])
+                result.add(list.get(i));
+        }
+        list = result;
+        return true;
+    }
+
+    /**
+     * @return 是否有跳转以 instruction 为目标
+     */
+    boolean isTarget(Instruction instruction) {
+        return jumpsTo.containsKey(instruction);
+    }
+
+    /**
+     * 重新计算跳转偏移，生成最终的指令序列
+     */
+    ArrayList<Instruction> toList() {
+        var index = new IdentityHashMap<Instruction, Integer>();
+        for (int i = 0; i < list.size(); i++) {
+            index.put(list.get(i), i);
+        }
+        var result = new ArrayList<Instruction>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            Instruction instruction = list.get(i);
+            if (isJump(instruction.getOpt()))
+                result.add(new Instruction(instruction.getOpt(), index.get(targets.get(instruction)) - i - 1));
+            else
+                result.add(new Instruction(instruction.getOpt(), instruction.getX()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,209 @@
+package optimizer;
+
+import analyser.FuncInfo;
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * 删除执行不到的指令和没有作用的语句
+ * <p>
+ * 反复做以下几件事直到没有变化：
+ * 常量条件的跳转变成 br 或者删掉；跳到 br 的跳转直接跳到最终目标，跳到 ret 的 br 换成 ret；
+ * 跳到下一条指令的跳转删掉；结果被 pop 掉的纯表达式连同 pop 一起删掉；
+ * 最后从函数入口沿控制流图找出所有能执行到的指令，其余的删掉（return 之后的代码、
+ * 函数末尾多余的 ret、常量条件下不会走的分支）
+ */
+class DeadCodeEliminator {
+    /** 向前找纯表达式时最多看的指令条数 */
+    static final int MAX_EXPR_SIZE = 64;
+
+    private final List<FuncInfo> functions;
+
+    DeadCodeEliminator(List<FuncInfo> functions) {
+        this.functions = functions;
+    }
+
+    void run() {
+        for (FuncInfo funcInfo : functions) {
+            var code = new Code(funcInfo.getInstructions());
+            boolean changed;
+            do {
+                changed = foldConstantBranches(code);
+                changed |= threadJumps(code);
+                changed |= removeJumpsToNext(code);
+                changed |= removeUnusedExpressions(code);
+                changed |= removeUnreachable(code);
+            } while (changed);
+            funcInfo.setInstructions(code.toList(), funcInfo.getLocalParaCnt());
+        }
+    }
+
+    /**
+     * push c; br_true/br_false 在跳转不是别处的跳转目标时，结果在编译时就确定了
+     */
+    private static boolean foldConstantBranches(Code code) {
+        var removed = new boolean[code.size()];
+        for (int i = 0; i + 1 < code.size(); i++) {
+            Instruction push = code.get(i);
+            Instruction jump = code.get(i + 1);
+            Operation opt = jump.getOpt();
+            if (push.getOpt() != Operation.push || opt != Operation.br_true && opt != Operation.br_false
+                    || code.isTarget(jump))
+                continue;
+            boolean taken = (push.getX() != 0) == (opt == Operation.br_true);
+            removed[i] = true;
+            if (taken)
+                jump.setOpt(Operation.br);
+            else
+                removed[i + 1] = true;
+            i++;
+        }
+        return code.compact(removed);
+    }
+
+    /**
+     * 跳到 br 的跳转直接跳到 br 的目标；跳到 ret 的 br 本身换成 ret
+     */
+    private static boolean threadJumps(Code code) {
+        boolean changed = false;
+        for (Instruction jump : code.list) {
+            if (!Code.isJump(jump.getOpt()))
+                continue;
+            Instruction target = code.target(jump);
+            int steps = 0;
+            while (target.getOpt() == Operation.br && target != jump && steps++ < code.size()) {
+                target = code.target(target);
+            }
+            if (target != code.target(jump)) {
+                code.setTarget(jump, target);
+                changed = true;
+            }
+            if (jump.getOpt() == Operation.br && target.getOpt() == Operation.ret) {
+                jump.setOpt(Operation.ret);
+                code.clearTarget(jump);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * br 跳到下一条指令时删掉；条件跳转跳到下一条指令时只需要弹出条件
+     */
+    private static boolean removeJumpsToNext(Code code) {
+        boolean changed = false;
+        var removed = new boolean[code.size()];
+        for (int i = 0; i + 1 < code.size(); i++) {
+            Instruction jump = code.get(i);
+            if (!Code.isJump(jump.getOpt()) || code.target(jump) != code.get(i + 1))
+                continue;
+            if (jump.getOpt() == Operation.br) {
+                removed[i] = true;
+            } else {
+                code.clearTarget(jump);
+                jump.setOpt(Operation.pop);
+                changed = true;
+            }
+        }
+        return code.compact(removed) || changed;
+    }
+
+    /**
+     * 删掉值被 pop 丢弃、又没有副作用的表达式，比如表达式语句 x; 或 1 + 2;
+     */
+    private static boolean removeUnusedExpressions(Code code) {
+        //找到的区间以 pop 结尾，往前找时遇到前一个区间的 pop 就停下，所以区间互不重叠
+        var removed = new boolean[code.size()];
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).getOpt() != Operation.pop)
+                continue;
+            int start = findPureProducer(code, i);
+            for (int j = start; j >= 0 && j <= i; j++) {
+                removed[j] = true;
+            }
+        }
+        return code.compact(removed);
+    }
+
+    /**
+     * 从 pop 往前找一段没有跳转进入、只含可以删掉的指令、合起来正好压入一个值的指令
+     *
+     * @return 这段指令的开头，找不到时返回 -1
+     */
+    private static int findPureProducer(Code code, int pop) {
+        //[j, pop] 合起来从栈上消耗 consumed 个值，压入 produced 个值
+        int consumed = 1;
+        int produced = 0;
+        for (int j = pop - 1; j >= 0 && pop - j <= MAX_EXPR_SIZE; j--) {
+            Instruction instruction = code.get(j);
+            if (!removable(code, j) || code.isTarget(code.get(j + 1)))
+                return -1;
+            int pops = StackEffect.pops(instruction);
+            int pushes = StackEffect.pushes(instruction);
+            if (pushes >= consumed) {
+                produced += pushes - consumed;
+                consumed = pops;
+            } else {
+                consumed = pops + consumed - pushes;
+            }
+            if (consumed == 0 && produced == 0)
+                return j;
+        }
+        return -1;
+    }
+
+    /**
+     * 不会出错的 load 也可以删：地址紧挨着由 loca/arga/globa 给出，是变量本身
+     */
+    private static boolean removable(Code code, int j) {
+        Operation opt = code.get(j).getOpt();
+        if (StackEffect.isRemovable(opt))
+            return true;
+        if (!StackEffect.isPure(opt) || j == 0)
+            return false;
+        Operation address = code.get(j - 1).getOpt();
+        return address == Operation.loca || address == Operation.arga || address == Operation.globa;
+    }
+
+    /**
+     * 从入口沿顺序执行和跳转找出能执行到的指令，删掉其余的
+     */
+    private static boolean removeUnreachable(Code code) {
+        if (code.size() == 0)
+            return false;
+        var index = new IdentityHashMap<Instruction, Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            index.put(code.get(i), i);
+        }
+        var reachable = new boolean[code.size()];
+        var queue = new ArrayDeque<Integer>();
+        reachable[0] = true;
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            Instruction instruction = code.get(i);
+            var next = new ArrayList<Integer>(2);
+            if (StackEffect.fallsThrough(instruction.getOpt()) && i + 1 < code.size())
+                next.add(i + 1);
+            if (Code.isJump(instruction.getOpt()))
+                next.add(index.get(code.target(instruction)));
+            for (int j : next) {
+                if (!reachable[j]) {
+                    reachable[j] = true;
+                    queue.add(j);
+                }
+            }
+        }
+
+        var removed = new boolean[code.size()];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = !reachable[i];
+        }
+        return code.compact(removed);
+    }
+}
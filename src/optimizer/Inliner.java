@@ -0,0 +1,284 @@
+package optimizer;
+
+import analyser.CallSite;
+import analyser.FuncInfo;
+import analyser.Type;
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把对小的叶子函数的调用替换成函数体
+ * <p>
+ * 被调函数的返回值槽、参数和局部变量搬到调用方帧里一段新的局部变量中：
+ * arga k 变成 loca base+k，loca j 变成 loca base+返回值槽数+参数个数+j。
+ * 每个实参算完后直接存进对应的槽，函数体里的 ret 变成跳到调用之后。
+ * 只有一个出口的函数，return 的值直接留在栈上，不经过返回值槽。
+ * <p>
+ * 只内联不含 call 的函数，所以不会展开递归；函数按 funID 从小到大处理，
+ * 被调函数总是先于调用方处理完，内联进来的函数体里已经没有可内联的调用。
+ * 嵌套在实参里的调用和外层调用用不同的槽，同一嵌套层次的调用共用一段槽。
+ * 有剖析结果时按每个调用的执行次数调整大小限制
+ */
+class Inliner {
+    /** 可以内联的函数体最多的指令条数 */
+    static final int MAX_CALLEE_SIZE = 32;
+    /** 调用方超过这么多条指令后不再往里内联 */
+    static final int MAX_CALLER_SIZE = 4096;
+    /** 训练中执行次数占全部调用至少 1/HOT_SITE_SHARE 的调用，被调函数可以有这么多条指令 */
+    static final int HOT_CALLEE_SIZE = 128;
+    static final int HOT_SITE_SHARE = 100;
+
+    private final List<FuncInfo> functions;
+    /** 调用方 -> 每个调用在训练中执行的次数，和 getCallSites() 一一对应；没有剖析结果时为 null */
+    private final Map<FuncInfo, long[]> siteCounts;
+    private long hotCalls = Long.MAX_VALUE;
+
+    private int inlined = 0;
+
+    Inliner(List<FuncInfo> functions, Map<FuncInfo, long[]> siteCounts) {
+        this.functions = functions;
+        this.siteCounts = siteCounts;
+        if (siteCounts != null) {
+            long total = 0;
+            for (long[] counts : siteCounts.values()) {
+                for (long count : counts) {
+                    total += count;
+                }
+            }
+            hotCalls = Math.max(1, total / HOT_SITE_SHARE);
+        }
+    }
+
+    void run() {
+        for (FuncInfo funcInfo : functions) {
+            inlineCalls(funcInfo);
+        }
+    }
+
+    int getInlined() {
+        return inlined;
+    }
+
+    private boolean canInline(FuncInfo caller, FuncInfo callee, int maxSize) {
+        if (callee == caller || callee.getInstructions().size() > maxSize)
+            return false;
+        for (Instruction instruction : callee.getInstructions()) {
+            if (instruction.getOpt() == Operation.call || instruction.getOpt() == Operation.callname)
+                return false;
+        }
+        return true;
+    }
+
+    private void inlineCalls(FuncInfo caller) {
+        List<CallSite> callSites = caller.getCallSites();
+        if (callSites.isEmpty())
+            return;
+        var code = new Code(caller.getInstructions());
+        long[] counts = siteCounts == null ? null : siteCounts.get(caller);
+
+        //每个调用的嵌套层次 = 包含它的调用个数，同层的调用共用一段槽
+        var sites = new ArrayList<CallSite>();
+        var levels = new ArrayList<Integer>();
+        var levelSize = new ArrayList<Integer>();
+        int size = caller.getInstructions().size();
+        //外层调用的实参可能以内层调用的 stackalloc 开头，所以先处理外层的，也就是 call 靠后的
+        for (int s = callSites.size() - 1; s >= 0; s--) {
+            CallSite site = callSites.get(s);
+            FuncInfo callee = functions.get((int) caller.getInstructions().get(site.getCall()).getX() - 1);
+            //有剖析结果时，训练中没执行过的调用不内联，热的调用放宽大小限制
+            int maxSize = MAX_CALLEE_SIZE;
+            if (counts != null && counts[s] == 0)
+                continue;
+            if (counts != null && counts[s] >= hotCalls)
+                maxSize = HOT_CALLEE_SIZE;
+            if (!canInline(caller, callee, maxSize) || size + callee.getInstructions().size() > MAX_CALLER_SIZE)
+                continue;
+            size += callee.getInstructions().size();
+            int level = 0;
+            for (CallSite outer : callSites) {
+                if (outer.getStackalloc() < site.getStackalloc() && site.getCall() < outer.getCall())
+                    level++;
+            }
+            while (levelSize.size() <= level) {
+                levelSize.add(0);
+            }
+            levelSize.set(level, Math.max(levelSize.get(level), frameSize(callee)));
+            sites.add(site);
+            levels.add(level);
+        }
+        if (sites.isEmpty())
+            return;
+
+        var levelBase = new int[levelSize.size()];
+        int localParaCnt = caller.getLocalParaCnt();
+        for (int i = 0; i < levelSize.size(); i++) {
+            levelBase[i] = localParaCnt;
+            localParaCnt += levelSize.get(i);
+        }
+
+        //先按原来的下标找到指令本身，插入删除之后仍然能找到
+        var stackallocs = new Instruction[sites.size()];
+        var calls = new Instruction[sites.size()];
+        var args = new Instruction[sites.size()][];
+        for (int i = 0; i < sites.size(); i++) {
+            CallSite site = sites.get(i);
+            stackallocs[i] = code.get(site.getStackalloc());
+            calls[i] = code.get(site.getCall());
+            args[i] = new Instruction[site.getArgs().length];
+            for (int k = 0; k < args[i].length; k++) {
+                args[i][k] = code.get(site.getArgs()[k]);
+            }
+        }
+        for (int i = 0; i < sites.size(); i++) {
+            FuncInfo callee = functions.get((int) calls[i].getX() - 1);
+            inline(code, stackallocs[i], args[i], calls[i], callee, levelBase[levels.get(i)]);
+            inlined++;
+        }
+        caller.setInstructions(code.toList(), localParaCnt);
+    }
+
+    /**
+     * @return 被调函数搬到调用方帧里要占的槽数
+     */
+    private static int frameSize(FuncInfo callee) {
+        return retSlots(callee) + callee.getParaCnt() + callee.getLocalParaCnt();
+    }
+
+    private static int retSlots(FuncInfo callee) {
+        return callee.getReturnType() == Type.VOID ? 0 : 1;
+    }
+
+    private void inline(Code code, Instruction stackalloc, Instruction[] args, Instruction call,
+                        FuncInfo callee, int base) {
+        int retSlots = retSlots(callee);
+        int paraCnt = callee.getParaCnt();
+
+        //实参：loca 槽; 实参; store_64。从后往前插，前一个实参的结尾就是后一个实参的 loca。
+        //常量和调用方的变量，如果被调函数不改这个参数，就直接代入到读参数的地方
+        Instruction end = call;
+        var values = new Instruction[args.length][];
+        for (int k = args.length - 1; k >= 0; k--) {
+            int from = code.indexOf(args[k]);
+            int to = code.indexOf(end);
+            if (isSimple(code, from, to) && isReadOnly(callee, retSlots + k)) {
+                values[k] = new Instruction[to - from];
+                for (int i = to - 1; i >= from; i--) {
+                    values[k][i - from] = code.get(i);
+                    code.remove(i);
+                }
+                continue;
+            }
+            code.insert(to, new Instruction(Operation.store_64));
+            var loca = new Instruction(Operation.loca, base + retSlots + k);
+            code.insert(code.indexOf(args[k]), loca);
+            end = loca;
+        }
+
+        //局部变量原本由 stackalloc 置零
+        var body = new Code(List.of());
+        for (int j = 0; j < callee.getLocalParaCnt(); j++) {
+            body.list.add(new Instruction(Operation.loca, base + retSlots + paraCnt + j));
+            body.list.add(new Instruction(Operation.push, 0));
+            body.list.add(new Instruction(Operation.store_64));
+        }
+        var exit = new Instruction(Operation.nop);//调用之后的位置，插入调用方后删掉
+        body.insertAll(body.size(), remap(callee, base, exit, values));
+
+        code.insertAll(code.indexOf(call), body);
+        code.remove(code.indexOf(call));
+        code.remove(code.indexOf(exit));
+        code.remove(code.indexOf(stackalloc));
+    }
+
+    /**
+     * @return [from, to) 是否是 push 常量，或者 loca/arga 加 load_64
+     */
+    private static boolean isSimple(Code code, int from, int to) {
+        if (to - from == 1)
+            return code.get(from).getOpt() == Operation.push;
+        if (to - from == 2) {
+            Operation opt = code.get(from).getOpt();
+            return (opt == Operation.loca || opt == Operation.arga) && code.get(from + 1).getOpt() == Operation.load_64;
+        }
+        return false;
+    }
+
+    /**
+     * @return 被调函数是否只读取 arga slot，从不写它
+     */
+    private static boolean isReadOnly(FuncInfo callee, int slot) {
+        List<Instruction> instructions = callee.getInstructions();
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getOpt() == Operation.arga && instruction.getX() == slot
+                    && (i + 1 == instructions.size() || instructions.get(i + 1).getOpt() != Operation.load_64))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 复制被调函数的函数体，改写槽号，ret 改成跳到 exit
+     *
+     * @param values 直接代入的实参，没有代入的为 null
+     */
+    private static Code remap(FuncInfo callee, int base, Instruction exit, Instruction[][] values) {
+        int retSlots = retSlots(callee);
+        int paraCnt = callee.getParaCnt();
+        var body = new Code(callee.getInstructions());
+        body.list.add(exit);
+        Instruction returnSlot = null;
+        int returnSlotCnt = 0;
+        for (int i = 0; i < body.size(); i++) {
+            Instruction instruction = body.get(i);
+            switch (instruction.getOpt()) {
+                case arga -> {
+                    int k = (int) instruction.getX() - retSlots;
+                    if (k >= 0 && values[k] != null) {
+                        //arga k; load_64 换成实参本身
+                        Instruction[] value = values[k];
+                        instruction.setOpt(value[0].getOpt());
+                        instruction.setX(value[0].getX());
+                        if (value.length == 1)
+                            body.remove(i + 1);
+                        continue;
+                    }
+                    if (retSlots > 0 && instruction.getX() == 0) {
+                        returnSlot = instruction;
+                        returnSlotCnt++;
+                    }
+                    instruction.setOpt(Operation.loca);
+                    instruction.setX(base + instruction.getX());
+                }
+                case loca -> instruction.setX(base + retSlots + paraCnt + instruction.getX());
+                case ret -> {
+                    instruction.setOpt(Operation.br);
+                    body.setTarget(instruction, exit);
+                }
+                default -> { }
+            }
+        }
+
+        //去掉末尾跳到下一条指令的 br
+        while (body.size() >= 2 && body.get(body.size() - 2).getOpt() == Operation.br
+                && body.target(body.get(body.size() - 2)) == exit) {
+            body.remove(body.size() - 2);
+        }
+
+        //只有一个出口、最后是 arga 0; 值; store_64 时，把值留在栈上
+        int last = body.size() - 2;
+        if (retSlots > 0 && returnSlotCnt == 1 && last >= 0 && body.get(last).getOpt() == Operation.store_64
+                && !body.isTarget(exit)) {
+            body.remove(last);
+            body.remove(body.indexOf(returnSlot));
+        } else if (retSlots > 0) {
+            body.list.add(new Instruction(Operation.loca, base));
+            body.list.add(new Instruction(Operation.load_64));
+        }
+        return body;
+    }
+}
@@ -0,0 +1,47 @@
+package optimizer;
+
+import analyser.CallSite;
+import analyser.FuncInfo;
+import util.CompileOptions;
+import util.Profile;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分析之后、写出 o0 之前对函数体做的优化，做哪些由 CompileOptions 决定
+ */
+public class Optimizer {
+    public static void optimize(List<FuncInfo> functions, CompileOptions options) {
+        Profile profile = options.profile;
+        Map<FuncInfo, long[]> siteCounts = null;
+        if (profile != null) {
+            //计数按未经优化的下标记录，先把每个调用的次数取出来，再重排
+            var profiles = new IdentityHashMap<FuncInfo, Profile.FunctionProfile>();
+            siteCounts = new IdentityHashMap<>();
+            for (FuncInfo funcInfo : functions) {
+                Profile.FunctionProfile counts = profile.get(funcInfo.getName(), funcInfo.getInstructions());
+                if (counts == null)
+                    continue;
+                profiles.put(funcInfo, counts);
+                List<CallSite> callSites = funcInfo.getCallSites();
+                long[] calls = new long[callSites.size()];
+                for (int i = 0; i < calls.length; i++) {
+                    calls[i] = counts.getCalls(callSites.get(i).getCall());
+                }
+                siteCounts.put(funcInfo, calls);
+            }
+            new BlockLayout(functions, profiles).run();
+        }
+        if (options.inline)
+            new Inliner(functions, siteCounts).run();
+        if (options.simplify)
+            new Simplifier(functions).run();
+        if (options.eliminateDeadCode)
+            new DeadCodeEliminator(functions).run();
+        if (options.numberValues)
+            new ValueNumbering(functions).run();
+    }
+
+}
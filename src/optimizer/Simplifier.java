@@ -0,0 +1,183 @@
+package optimizer;
+
+import analyser.FuncInfo;
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 代数化简和强度削弱
+ * <p>
+ * 做以下几件事：
+ * push c; neg_i/neg_f 换成 push -c；两个常数的整数运算在编译时算出来；
+ * x + 0、x - 0、x * 1、x / 1、x | 0、x ^ 0 和移 0 位直接去掉；
+ * x * 2^k 换成左移，x * -1 和 x / -1 换成 neg_i；
+ * x / 2^k 换成算术右移，负数先加上 2^k - 1，和 div_i 一样向零取整。
+ * <p>
+ * 指令从前往后逐条接到结果后面，每接一条就在结果末尾反复化简。化简只改动末尾，
+ * 新出现的可化简的组合也一定在末尾，所以一遍就能做完。
+ * <p>
+ * 只看紧挨着的几条指令，除了第一条以外都不能是跳转目标，否则从别处跳进来时栈上的值不是这里的常数
+ */
+class Simplifier {
+    private final List<FuncInfo> functions;
+
+    Simplifier(List<FuncInfo> functions) {
+        this.functions = functions;
+    }
+
+    void run() {
+        for (FuncInfo funcInfo : functions) {
+            var code = new Code(funcInfo.getInstructions());
+            if (simplify(code))
+                funcInfo.setInstructions(code.toList(), funcInfo.getLocalParaCnt());
+        }
+    }
+
+    /**
+     * @return 是否有变化
+     */
+    private static boolean simplify(Code code) {
+        var out = new ArrayList<Instruction>(code.size());
+        //删掉的跳转目标，跳到它们的跳转改为跳到下一条接上的指令
+        var dropped = new ArrayList<Instruction>();
+        boolean changed = false;
+        for (Instruction instruction : code.list) {
+            for (Instruction target : dropped) {
+                code.retarget(target, instruction);
+            }
+            dropped.clear();
+            out.add(instruction);
+            while (foldConstant(code, out) || simplifyOperand(code, out, dropped)) {
+                changed = true;
+            }
+        }
+        //函数总以 ret 或 br 结束，不会删到最后一条
+        if (!dropped.isEmpty())
+            throw new Error("删除的指令是跳转目标且后面没有指令: " + dropped.get(0));
+        code.list = out;
+        return changed;
+    }
+
+    /**
+     * push c; neg 或者 push a; push b; 整数运算，结果是常数
+     */
+    private static boolean foldConstant(Code code, ArrayList<Instruction> out) {
+        int n = out.size();
+        if (n < 2)
+            return false;
+        Instruction next = out.get(n - 2);
+        Instruction op = out.get(n - 1);
+        if (code.isTarget(op))
+            return false;
+        if (next.getOpt() == Operation.push && (op.getOpt() == Operation.neg_i || op.getOpt() == Operation.neg_f)) {
+            if (op.getOpt() == Operation.neg_i)
+                next.setX(-next.getX());
+            else
+                next.setX(next.getX() ^ Long.MIN_VALUE);
+            out.remove(n - 1);
+            return true;
+        }
+        if (n < 3 || next.getOpt() != Operation.push || code.isTarget(next))
+            return false;
+        Instruction push = out.get(n - 3);
+        if (push.getOpt() != Operation.push)
+            return false;
+        Long value = evaluate(op.getOpt(), push.getX(), next.getX());
+        if (value == null)
+            return false;
+        push.setX(value);
+        out.remove(n - 1);
+        out.remove(n - 2);
+        return true;
+    }
+
+    /**
+     * @return 两个常数做整数运算的结果，不是整数运算或者除以 0（留到运行时报错）时返回 null
+     */
+    private static Long evaluate(Operation opt, long l, long r) {
+        return switch (opt) {
+            case add_i -> l + r;
+            case sub_i -> l - r;
+            case mul_i -> l * r;
+            case div_i -> r == 0 ? null : l / r;
+            case shl -> l << r;
+            case shr -> l >> r;
+            case shrl -> l >>> r;
+            case or -> l | r;
+            case xor -> l ^ r;
+            default -> null;
+        };
+    }
+
+    /**
+     * 右操作数是常数 c 的整数运算：x op c
+     *
+     * @param dropped 删掉的 push 是跳转目标时记在这里，跳转改为跳到下一条接上的指令
+     */
+    private static boolean simplifyOperand(Code code, ArrayList<Instruction> out, ArrayList<Instruction> dropped) {
+        int n = out.size();
+        if (n < 2)
+            return false;
+        Instruction push = out.get(n - 2);
+        Instruction op = out.get(n - 1);
+        if (push.getOpt() != Operation.push || code.isTarget(op))
+            return false;
+        long c = push.getX();
+        switch (op.getOpt()) {
+            case add_i, sub_i, or, xor, shl, shr, shrl -> {
+                if (c != 0)
+                    return false;
+                removeBoth(code, out, dropped);
+            }
+            case mul_i, div_i -> {
+                boolean mul = op.getOpt() == Operation.mul_i;
+                if (c == 1) {
+                    removeBoth(code, out, dropped);
+                } else if (c == -1) {
+                    out.remove(n - 2);
+                    code.retarget(push, op);
+                    op.setOpt(Operation.neg_i);
+                } else if (c > 1 && (c & c - 1) == 0) {
+                    int k = Long.numberOfTrailingZeros(c);
+                    if (mul) {
+                        push.setX(k);
+                        op.setOpt(Operation.shl);
+                    } else {
+                        //x / 2^k = (x + (x >> 63 >>> 64 - k)) >> k
+                        push.setOpt(Operation.dup);
+                        push.setX(0);
+                        op.setOpt(Operation.shr);
+                        op.setX(0);
+                        out.remove(n - 1);
+                        out.add(new Instruction(Operation.push, 63));
+                        out.add(new Instruction(Operation.shr));
+                        out.add(new Instruction(Operation.push, 64 - k));
+                        out.add(new Instruction(Operation.shrl));
+                        out.add(new Instruction(Operation.add_i));
+                        out.add(new Instruction(Operation.push, k));
+                        out.add(op);
+                    }
+                } else {
+                    return false;
+                }
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 删掉末尾的 push c 和它后面的运算，跳到 push 的跳转留到接上下一条指令时再改
+     */
+    private static void removeBoth(Code code, ArrayList<Instruction> out, ArrayList<Instruction> dropped) {
+        Instruction push = out.remove(out.size() - 2);
+        out.remove(out.size() - 1);
+        if (code.isTarget(push))
+            dropped.add(push);
+    }
+}
@@ -0,0 +1,68 @@
+package optimizer;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+/**
+ * 指令对操作数栈的影响
+ */
+class StackEffect {
+    /**
+     * @return 指令弹出的值的个数，call 之类取决于被调函数的返回 -1
+     */
+    static int pops(Instruction instruction) {
+        return switch (instruction.getOpt()) {
+            case nop, push, loca, arga, globa, stackalloc, br, ret, scan_i, scan_c, scan_f, println, panic -> 0;
+            case pop, dup, load_8, load_16, load_32, load_64, alloc, free, not, neg_i, neg_f, itof, ftoi,
+                    set_lt, set_gt, br_false, br_true, print_i, print_c, print_f, prints -> 1;
+            case store_8, store_16, store_32, store_64, add_i, sub_i, mul_i, div_i, add_f, sub_f, mul_f, div_f,
+                    div_u, shl, shr, shrl, or, xor, cmp_i, cmp_u, cmp_f -> 2;
+            case popn -> (int) instruction.getX();
+            default -> -1;
+        };
+    }
+
+    /**
+     * @return 指令压入的值的个数，取决于被调函数的返回 -1
+     */
+    static int pushes(Instruction instruction) {
+        return switch (instruction.getOpt()) {
+            case nop, pop, popn, store_8, store_16, store_32, store_64, free, br, br_false, br_true, ret,
+                    print_i, print_c, print_f, prints, println, panic -> 0;
+            case dup -> 2;
+            case stackalloc -> (int) instruction.getX();
+            case call, callname -> -1;
+            default -> 1;
+        };
+    }
+
+    /**
+     * @return 指令除了操作数栈以外没有副作用、也不会出错，去掉后不改变程序行为
+     */
+    static boolean isPure(Operation opt) {
+        return switch (opt) {
+            case push, dup, loca, arga, globa, load_8, load_16, load_32, load_64, add_i, sub_i, mul_i,
+                    add_f, sub_f, mul_f, div_f, shl, shr, shrl, or, xor, not, cmp_i, cmp_u, cmp_f,
+                    neg_i, neg_f, itof, ftoi, set_lt, set_gt -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * 和 isPure 相比去掉了 load。load 的地址来自 malloc 时可能越界或者已经释放，会出错，
+     * 删掉它会改变程序行为；重复的 load 换成 dup 则没问题（第一次没出错，第二次也不会）
+     *
+     * @return 结果没人用时指令可以直接删掉
+     */
+    static boolean isRemovable(Operation opt) {
+        return isPure(opt) && opt != Operation.load_8 && opt != Operation.load_16 && opt != Operation.load_32
+                && opt != Operation.load_64;
+    }
+
+    /**
+     * @return 执行完这条指令后是否可能接着执行下一条
+     */
+    static boolean fallsThrough(Operation opt) {
+        return opt != Operation.br && opt != Operation.ret && opt != Operation.panic;
+    }
+}
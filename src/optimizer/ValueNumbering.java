@@ -0,0 +1,240 @@
+package optimizer;
+
+import analyser.FuncInfo;
+import analyser.Type;
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 基本块内的局部值编号，重复计算的值用 dup 代替
+ * <p>
+ * 在每个基本块里模拟操作数栈，栈上每个值记一个值编号：同样的运算作用在同样编号的操作数上得到同样的编号，
+ * 加法、乘法等可交换运算先把操作数排序。load 的编号还带上被读位置的版本号，
+ * store 到已知的 loca/arga/globa 只让这个位置的版本号加一，store 到其他地址、alloc/free 或者 call 让所有位置失效。
+ * 算出来的地址可能指向任何位置，从这样的地址 load 时带上的是所有 store 的次数，中间有任何 store 都不算重复。
+ * <p>
+ * 一段连续的纯指令算出的值和它正下方的值编号相同时（比如 x*x + x*x 里的第二个 x 和第二个 x*x），
+ * 这段指令换成一条 dup。跳转目标处开始新的基本块，块开始时栈上的值都当作未知
+ */
+class ValueNumbering {
+    private final List<FuncInfo> functions;
+
+    /** 操作数栈上的一个值 */
+    private static class Value {
+        int number;
+        /** 算出这个值的连续纯指令的开头，不是这样算出来的为 -1 */
+        int start;
+        /** 值是 loca/arga/globa 给出的地址时，记下是哪个位置 */
+        String location;
+
+        Value(int number, int start, String location) {
+            this.number = number;
+            this.start = start;
+            this.location = location;
+        }
+    }
+
+    private HashMap<String, Integer> numbers = new HashMap<>();
+    private HashMap<String, Integer> versions = new HashMap<>();
+    private int nextNumber = 0;
+    /** 所有位置共同的版本号，store 到未知地址或者调用函数后加一 */
+    private int epoch = 0;
+    /** store 到已知位置的次数，从算出来的地址 load 时和 epoch 一起作为版本号 */
+    private int knownStores = 0;
+
+    private int replaced = 0;
+
+    ValueNumbering(List<FuncInfo> functions) {
+        this.functions = functions;
+    }
+
+    void run() {
+        for (FuncInfo funcInfo : functions) {
+            var code = new Code(funcInfo.getInstructions());
+            var ranges = findRedundant(code);
+            if (ranges.isEmpty())
+                continue;
+            //区间的第一条换成 dup，其余的标记后一次删掉
+            var removed = new boolean[code.size()];
+            for (int[] range : ranges) {
+                code.get(range[0]).setOpt(Operation.dup);
+                code.get(range[0]).setX(0);
+                for (int i = range[0] + 1; i <= range[1]; i++) {
+                    removed[i] = true;
+                }
+            }
+            code.compact(removed);
+            funcInfo.setInstructions(code.toList(), funcInfo.getLocalParaCnt());
+        }
+    }
+
+    int getReplaced() {
+        return replaced;
+    }
+
+    /**
+     * @return 可以换成 dup 的指令区间 [start, end]，按位置排序且互不重叠
+     */
+    private ArrayList<int[]> findRedundant(Code code) {
+        var ranges = new ArrayList<int[]>();
+        var stack = new ArrayList<Value>();
+        int barrier = -1;//纯指令区间只能从 barrier 之后开始
+        startBlock(stack);
+        for (int j = 0; j < code.size(); j++) {
+            Instruction instruction = code.get(j);
+            Operation opt = instruction.getOpt();
+            if (code.isTarget(instruction)) {
+                startBlock(stack);
+                barrier = j - 1;
+            }
+
+            if (opt == Operation.dup) {
+                Value value = pop(stack);
+                stack.add(value);
+                stack.add(new Value(value.number, j > barrier ? j : -1, value.location));
+                continue;
+            }
+            if (opt == Operation.call) {
+                FuncInfo callee = functions.get((int) instruction.getX() - 1);
+                for (int k = 0; k < callee.getParaCnt(); k++) {
+                    pop(stack);
+                }
+                int retSlots = callee.getReturnType() == Type.VOID ? 0 : 1;
+                for (int k = 0; k < retSlots; k++) {
+                    pop(stack);
+                    stack.add(unknown());
+                }
+                epoch++;
+                barrier = j;
+                continue;
+            }
+
+            int pops = StackEffect.pops(instruction);
+            int pushes = StackEffect.pushes(instruction);
+            if (pops < 0 || pushes < 0) {
+                //callname 等无法模拟的指令，后面的栈都当作未知
+                startBlock(stack);
+                barrier = j;
+                continue;
+            }
+            var operands = new Value[pops];
+            for (int k = pops - 1; k >= 0; k--) {
+                operands[k] = pop(stack);
+            }
+
+            if (!StackEffect.isPure(opt) || pushes != 1) {
+                if (opt == Operation.store_8 || opt == Operation.store_16 || opt == Operation.store_32
+                        || opt == Operation.store_64)
+                    kill(operands[0].location);
+                else if (opt == Operation.alloc || opt == Operation.free)
+                    kill(null);//复用的块会被清零
+                for (int k = 0; k < pushes; k++) {
+                    stack.add(unknown());
+                }
+                barrier = j;
+                if (Code.isJump(opt) || opt == Operation.ret || opt == Operation.panic)
+                    startBlock(stack);
+                continue;
+            }
+
+            Value value = evaluate(instruction, operands);
+            int start = pops == 0 ? j : operands[0].start;
+            for (Value operand : operands) {
+                if (operand.start < 0)
+                    start = -1;
+            }
+            if (start <= barrier)
+                start = -1;
+            value.start = start;
+
+            Value below = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            if (start >= 0 && j > start && below != null && below.number == value.number) {
+                //外层的区间包含之前找到的内层区间
+                while (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[0] >= start) {
+                    ranges.remove(ranges.size() - 1);
+                }
+                ranges.add(new int[]{start, j});
+                replaced++;
+            }
+            stack.add(value);
+        }
+        return ranges;
+    }
+
+    /**
+     * 纯指令的结果的值编号
+     */
+    private Value evaluate(Instruction instruction, Value[] operands) {
+        Operation opt = instruction.getOpt();
+        switch (opt) {
+            case push -> {
+                return new Value(number("push " + instruction.getX()), 0, null);
+            }
+            case loca, arga, globa -> {
+                String location = opt + " " + instruction.getX();
+                return new Value(number(location), 0, location);
+            }
+            case load_8, load_16, load_32, load_64 -> {
+                String location = operands[0].location;
+                int version = location == null ? knownStores : versions.getOrDefault(location, 0);
+                return new Value(number(opt + " " + operands[0].number + " " + version + " " + epoch), 0, null);
+            }
+            default -> {
+                var key = new StringBuilder(opt.toString());
+                int[] args = new int[operands.length];
+                for (int k = 0; k < operands.length; k++) {
+                    args[k] = operands[k].number;
+                }
+                if (isCommutative(opt) && args[0] > args[1]) {
+                    int t = args[0];
+                    args[0] = args[1];
+                    args[1] = t;
+                }
+                for (int arg : args) {
+                    key.append(' ').append(arg);
+                }
+                return new Value(number(key.toString()), 0, null);
+            }
+        }
+    }
+
+    private static boolean isCommutative(Operation opt) {
+        return opt == Operation.add_i || opt == Operation.mul_i || opt == Operation.add_f || opt == Operation.mul_f
+                || opt == Operation.or || opt == Operation.xor;
+    }
+
+    private int number(String key) {
+        return numbers.computeIfAbsent(key, k -> nextNumber++);
+    }
+
+    private Value unknown() {
+        return new Value(nextNumber++, -1, null);
+    }
+
+    private Value pop(ArrayList<Value> stack) {
+        if (stack.isEmpty())
+            return unknown();//块开始前就在栈上的值
+        return stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * store 之后，读这个位置得到的值不再相同
+     */
+    private void kill(String location) {
+        if (location == null) {
+            epoch++;
+        } else {
+            versions.merge(location, 1, Integer::sum);
+            knownStores++;
+        }
+    }
+
+    private void startBlock(ArrayList<Value> stack) {
+        stack.clear();
+        numbers.clear();
+    }
+}
@@ -31,6 +31,9 @@ public enum TokenType {
     GT       ,
     LE       ,
     GE       ,
+    AND      ,
+    OR       ,
+    NOT      ,
     L_PAREN  ,
     R_PAREN  ,
     L_BRACE  ,
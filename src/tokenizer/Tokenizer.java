@@ -2,16 +2,23 @@ package tokenizer;
 
 import error.TokenizeError;
 import error.ErrorCode;
+import util.CompileStats;
 import util.Pos;
 
 public class Tokenizer {
     public static boolean DEBUG = true;
     private StringIter it;
+    /** 为 null 时不统计 */
+    private CompileStats stats = null;
 
     public Tokenizer(StringIter it) {
         this.it = it;
     }
 
+    public void setStats(CompileStats stats) {
+        this.stats = stats;
+    }
+
     // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
     /**
      * 获取下一个 Token
@@ -20,6 +27,15 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
+        if (stats == null)
+            return lexToken();
+        long start = System.nanoTime();
+        Token token = lexToken();
+        stats.lexed(System.nanoTime() - start);
+        return token;
+    }
+
+    private Token lexToken() throws TokenizeError {
         if (!Tokenizer.DEBUG)
             it.readAll();
 
@@ -40,6 +56,9 @@ public class Tokenizer {
         }
     }
 
+    /**
+     * 无符号整数 digit+，或者浮点数 digit+ '.' digit+ ([eE] [+-]? digit+)?
+     */
     private Token lexUInt() throws TokenizeError {
         // 请填空：
         // 直到查看下一个字符不是数字为止:
@@ -51,16 +70,37 @@ public class Tokenizer {
         // Token 的 Value 应填写数字的值
 
             Pos start = new Pos(it.currentPos().row,it.currentPos().col);
-            String s = "";
-            char c;
-            do {
-                char k= it.nextChar();
-                s += k;
-                c = it.peekChar();
-            }while (Character.isDigit(c));
-            int number = Integer.parseInt(s);
-            return new Token(TokenType.UINT_LITERAL,number,start,it.currentPos());
+            var s = new StringBuilder();
+            readDigits(s);
+            if (it.peekChar() == '.') {
+                s.append(it.nextChar());
+                if (!Character.isDigit(it.peekChar()))
+                    throw new TokenizeError(ErrorCode.InvalidInput, it.currentPos());
+                readDigits(s);
+                char e = it.peekChar();
+                if (e == 'e' || e == 'E') {
+                    s.append(it.nextChar());
+                    if (it.peekChar() == '+' || it.peekChar() == '-')
+                        s.append(it.nextChar());
+                    if (!Character.isDigit(it.peekChar()))
+                        throw new TokenizeError(ErrorCode.InvalidInput, it.currentPos());
+                    readDigits(s);
+                }
+                return new Token(TokenType.DOUBLE_LITERAL,Double.parseDouble(s.toString()),start,it.currentPos());
+            }
+            try {
+                long number = Long.parseLong(s.toString());
+                return new Token(TokenType.UINT_LITERAL,number,start,it.currentPos());
+            } catch (NumberFormatException e) {
+                throw new TokenizeError(ErrorCode.IntegerOverflow, start);
+            }
+
+    }
 
+    private void readDigits(StringBuilder s) {
+        do {
+            s.append(it.nextChar());
+        } while (Character.isDigit(it.peekChar()));
     }
 
     private Token lexIdentOrKeyword() throws TokenizeError {
@@ -100,8 +140,10 @@ public class Tokenizer {
             case '+':
                 return new Token(TokenType.PLUS, '+', it.previousPos(), it.currentPos());
             case '-':
-                if (it.peekChar()=='>')
+                if (it.peekChar()=='>'){
+                    it.nextChar();
                     return new Token(TokenType.ARROW,"->", it.previousPos(), it.currentPos());
+                }
                 return new Token(TokenType.MINUS,'-', it.previousPos(), it.currentPos());
             case '*':
                 return new Token(TokenType.MUL,'*', it.previousPos(), it.currentPos());
@@ -116,16 +158,30 @@ public class Tokenizer {
                 }
                 return new Token(TokenType.ASSIGN,'=', it.previousPos(), it.currentPos());
             case '!':
-                if (it.nextChar()!='=')
+                if (it.peekChar()=='='){
+                    it.nextChar();
+                    return new Token(TokenType.NEQ,"!=", it.previousPos(), it.currentPos());
+                }
+                return new Token(TokenType.NOT,'!', it.previousPos(), it.currentPos());
+            case '&':
+                if (it.nextChar()!='&')
                     throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-                return new Token(TokenType.NEQ,"!=", it.previousPos(), it.currentPos());
+                return new Token(TokenType.AND,"&&", it.previousPos(), it.currentPos());
+            case '|':
+                if (it.nextChar()!='|')
+                    throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+                return new Token(TokenType.OR,"||", it.previousPos(), it.currentPos());
             case '<':
-                if (it.peekChar()=='=')
+                if (it.peekChar()=='='){
+                    it.nextChar();
                     return new Token(TokenType.LE,"<=", it.previousPos(), it.currentPos());
+                }
                 return new Token(TokenType.LT,'<', it.previousPos(), it.currentPos());
             case '>':
-                if (it.peekChar()=='=')
+                if (it.peekChar()=='='){
+                    it.nextChar();
                     return new Token(TokenType.GE,">=", it.previousPos(), it.currentPos());
+                }
                 return new Token(TokenType.GT,'>', it.previousPos(), it.currentPos());
             case '(':
                 return new Token(TokenType.L_PAREN,'(', it.previousPos(), it.currentPos());
@@ -141,14 +197,42 @@ public class Tokenizer {
                 return new Token(TokenType.SEMICOLON,';', it.previousPos(), it.currentPos());
             case ':':
                 return new Token(TokenType.COLON,':', it.previousPos(), it.currentPos());
-            case '"'://TODO:STRING
-                return new Token(TokenType.STRING_LITERAL,"", it.previousPos(), it.currentPos());
+            case '"':
+                return lexString(it.previousPos());
             default:
                 // 不认识这个输入，摸了
                 throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
     }
 
+    /**
+     * 字符串字面量 '"' (除了 " \ 和换行以外的字符 | 转义)* '"'，开头的引号已经读过。
+     * 转义有 \\ \" \' \n \r \t，Token 的 Value 是转义之后的内容
+     */
+    private Token lexString(Pos start) throws TokenizeError {
+        var s = new StringBuilder();
+        while (true) {
+            if (it.isEOF() || it.peekChar() == '\n')
+                throw new TokenizeError(ErrorCode.InvalidInput, start);
+            char c = it.nextChar();
+            if (c == '"')
+                return new Token(TokenType.STRING_LITERAL, s.toString(), start, it.currentPos());
+            if (c == '\\') {
+                switch (it.nextChar()) {
+                    case '\\' -> s.append('\\');
+                    case '"' -> s.append('"');
+                    case '\'' -> s.append('\'');
+                    case 'n' -> s.append('\n');
+                    case 'r' -> s.append('\r');
+                    case 't' -> s.append('\t');
+                    default -> throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+                }
+            } else {
+                s.append(c);
+            }
+        }
+    }
+
     private void skipSpaceCharacters() {
         while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
             it.nextChar();
@@ -0,0 +1,77 @@
+package util;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 编译器本身的指纹，作为编译缓存键的一部分
+ * <p>
+ * 从 jar 运行时是 jar 文件的 SHA-256，从目录运行时是其中所有 .class 文件（按相对路径排序，连同路径）的 SHA-256。
+ * 重新构建过的编译器指纹就不同，不会读到旧编译器写的缓存，不需要手动改版本号。
+ * 找不到或读不了自己的类文件时用一个随机值，这次运行不命中之前的缓存
+ */
+public class BuildFingerprint {
+    private static String fingerprint;
+
+    /**
+     * @return 当前运行的编译器的指纹，第一次调用时计算
+     */
+    public static synchronized String get() {
+        if (fingerprint == null)
+            fingerprint = compute();
+        return fingerprint;
+    }
+
+    private static String compute() {
+        CodeSource source = BuildFingerprint.class.getProtectionDomain().getCodeSource();
+        if (source != null && source.getLocation() != null) {
+            try {
+                return of(Paths.get(source.getLocation().toURI()));
+            } catch (IOException | URISyntaxException | IllegalArgumentException ignored) {
+            }
+        }
+        return "unknown-" + UUID.randomUUID();
+    }
+
+    /**
+     * @param location jar 文件或者类文件的根目录
+     */
+    public static String of(Path location) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+        if (Files.isDirectory(location)) {
+            List<Path> classes;
+            try (Stream<Path> stream = Files.walk(location)) {
+                classes = stream.filter(p -> p.toString().endsWith(".class") && Files.isRegularFile(p))
+                        .sorted().collect(Collectors.toList());
+            }
+            for (Path path : classes) {
+                digest.update(location.relativize(path).toString().replace('\\', '/').getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(Files.readAllBytes(path));
+            }
+        } else {
+            digest.update(Files.readAllBytes(location));
+        }
+        var sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
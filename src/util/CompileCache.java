@@ -0,0 +1,206 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 以源码哈希为键的磁盘编译缓存
+ * <p>
+ * 键 = SHA-256(编译器版本和指纹, 编译选项, 源码字节)，指纹见 {@link BuildFingerprint}，每个键对应目录下一个 .entry 文件，
+ * 里面存编译是否成功、诊断信息和 o0 二进制。
+ * 写入时先写临时文件再原子改名，多个进程同时编译同一个文件也不会读到写了一半的条目。
+ * 命中时刷新文件的修改时间，超出容量时按修改时间从旧到新删除（近似 LRU）。
+ */
+public class CompileCache {
+    private static final String SUFFIX = ".entry";
+    private static final int ENTRY_MAGIC = 0x43304301;
+
+    private final Path dir;
+    private final long maxBytes;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    public static class Entry {
+        public final boolean success;
+        public final String diagnostics;
+        public final byte[] binary;
+
+        public Entry(boolean success, String diagnostics, byte[] binary) {
+            this.success = success;
+            this.diagnostics = diagnostics;
+            this.binary = binary;
+        }
+    }
+
+    public CompileCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * 计算缓存键
+     */
+    public static String key(String version, String options, byte[] source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(source);
+        var sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 查找缓存，命中时刷新条目的访问时间
+     *
+     * @return 没有命中或条目损坏时返回 null
+     */
+    public Entry get(String key) {
+        Path path = dir.resolve(key + SUFFIX);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        } catch (IOException e) {
+            misses++;
+            return null;
+        }
+        Entry entry = decode(data);
+        if (entry == null) {
+            //条目损坏，当作没命中
+            deleteQuietly(path);
+            misses++;
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            //可能刚被其他进程淘汰，不影响这次命中
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * 写入缓存，然后按容量淘汰旧条目
+     */
+    public void put(String key, Entry entry) throws IOException {
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            Files.write(tmp, encode(entry));
+            Files.move(tmp, dir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            deleteQuietly(tmp);
+        }
+        evict();
+    }
+
+    /**
+     * 条目总大小超过 maxBytes 时，从最久没用的开始删
+     */
+    private void evict() throws IOException {
+        List<Path> entries;
+        try (Stream<Path> stream = Files.list(dir)) {
+            entries = stream.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+        var sizes = new ArrayList<long[]>();//{下标, 大小, 修改时间}
+        long total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                long size = Files.size(entries.get(i));
+                long time = Files.getLastModifiedTime(entries.get(i)).toMillis();
+                sizes.add(new long[]{i, size, time});
+                total += size;
+            } catch (NoSuchFileException ignored) {
+                //其他进程已经删掉了
+            }
+        }
+        if (total <= maxBytes)
+            return;
+        sizes.sort(Comparator.comparingLong(a -> a[2]));
+        for (long[] item : sizes) {
+            if (total <= maxBytes)
+                break;
+            deleteQuietly(entries.get((int) item[0]));
+            total -= item[1];
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        byte[] diagnostics = entry.diagnostics.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(ENTRY_MAGIC);
+        out.writeBoolean(entry.success);
+        out.writeInt(diagnostics.length);
+        out.write(diagnostics);
+        out.writeInt(entry.binary.length);
+        out.write(entry.binary);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] data) {
+        var in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() != ENTRY_MAGIC)
+                return null;
+            boolean success = in.readBoolean();
+            byte[] diagnostics = readBlock(in);
+            byte[] binary = readBlock(in);
+            if (diagnostics == null || binary == null || in.available() != 0)
+                return null;
+            return new Entry(success, new String(diagnostics, StandardCharsets.UTF_8), binary);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readBlock(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+            return null;
+        byte[] block = new byte[length];
+        in.readFully(block);
+        return block;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+}
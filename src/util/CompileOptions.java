@@ -0,0 +1,79 @@
+package util;
+
+/**
+ * 一次编译用的选项，由 App 交给 Analyser 和 Optimizer
+ * <p>
+ * 不放在静态字段里，同一个 JVM 里先后用不同选项或剖析结果编译时互不影响
+ */
+public class CompileOptions {
+    /**
+     * 分析线程的栈大小（字节）。递归下降每层嵌套要用好几个栈帧，
+     * 默认的线程栈撑不住机器生成的深层嵌套代码，所以在单独的线程里分析。
+     * 为 0 时直接在调用线程上分析，为负（默认）时按源码长度估计，见 analyserStackSize
+     */
+    public long stackSize = -1;
+
+    /**
+     * 按源码长度估计时每个字节预留的栈。每层嵌套至少占一个字节的源码（'('、'{'、'!' 等），
+     * 解释执行时每层最多用三百多字节的栈，这里留出余量
+     */
+    private static final long STACK_PER_BYTE = 1 << 10;
+    /** 按源码长度估计时栈大小的下限 */
+    private static final long MIN_STACK_SIZE = 16 << 20;
+    /** 不知道源码长度时的栈大小，约可支持百万层嵌套 */
+    private static final long DEFAULT_STACK_SIZE = 1L << 30;
+
+    /** 是否把 while 翻转成先判断一次的 do-while，见 Analyser.analyseRotatedWhile */
+    public boolean rotateLoops = true;
+
+    /** 是否把对自己的尾调用编译成跳回函数开头，见 Analyser.analyseTailCall */
+    public boolean tailCalls = true;
+
+    /** 是否内联小的叶子函数，见 optimizer.Inliner */
+    public boolean inline = true;
+    /** 是否做代数化简、把乘除 2 的幂换成移位，见 optimizer.Simplifier */
+    public boolean simplify = true;
+    /** 是否删除执行不到的代码和没有作用的语句，见 optimizer.DeadCodeEliminator */
+    public boolean eliminateDeadCode = true;
+    /** 是否在基本块内用 dup 代替重复计算，见 optimizer.ValueNumbering */
+    public boolean numberValues = true;
+    /** 训练运行得到的计数，不为 null 时据此重排基本块、调整内联的大小限制，见 optimizer.BlockLayout */
+    public Profile profile = null;
+
+    /**
+     * @param sourceLength 源码的字节数，不知道时为负
+     * @return 分析这份源码用的栈大小，0 表示在调用线程上分析
+     */
+    public long analyserStackSize(long sourceLength) {
+        if (stackSize >= 0)
+            return stackSize;
+        if (sourceLength < 0)
+            return DEFAULT_STACK_SIZE;
+        return Math.max(MIN_STACK_SIZE, sourceLength * STACK_PER_BYTE);
+    }
+
+    /**
+     * @return 影响语法分析生成的指令的选项，剖析结果只能用于同样选项下的编译
+     */
+    public String analyserKey() {
+        return (rotateLoops ? "" : "no-rotate-loops ") + (tailCalls ? "" : "no-tail-calls ");
+    }
+
+    /**
+     * @return 影响输出的所有选项，参与编译缓存键的计算
+     */
+    public String key() {
+        var sb = new StringBuilder(analyserKey());
+        if (!inline)
+            sb.append("no-inline ");
+        if (!simplify)
+            sb.append("no-simplify ");
+        if (!eliminateDeadCode)
+            sb.append("no-dce ");
+        if (!numberValues)
+            sb.append("no-cse ");
+        if (profile != null)
+            sb.append("profile=").append(profile.getDigest()).append(' ');
+        return sb.toString();
+    }
+}
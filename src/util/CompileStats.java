@@ -0,0 +1,176 @@
+package util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 一次编译的耗时和计数
+ * <p>
+ * 不开 --stats 时各阶段拿到的是 null，只多一次判空。
+ * 词法分析是语法分析按需调用的，所以 parse 阶段的时间扣掉了 lex 的时间。
+ * 开启 JFR 模式时每个阶段和整次编译各提交一个 JFR 事件，配合 -XX:StartFlightRecording 使用
+ */
+public class CompileStats {
+    /** 阶段名 -> 纳秒，按发生的顺序 */
+    private final LinkedHashMap<String, Long> phases = new LinkedHashMap<>();
+    private long lexNanos = 0;
+    private int tokens = 0;
+    private long symbolLookups = 0;
+    private int maxSymbolDepth = 0;
+    private int instructionsBeforeOptimize = 0;
+    /** 函数名 -> 优化后的指令条数 */
+    private final ArrayList<Map.Entry<String, Integer>> functions = new ArrayList<>();
+    private boolean cached = false;
+
+    @Name("c0.CompilePhase")
+    @Label("C0 Compile Phase")
+    @Category("C0 Compiler")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("c0.Compile")
+    @Label("C0 Compile")
+    @Category("C0 Compiler")
+    static class CompileEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Tokens")
+        int tokens;
+        @Label("Instructions")
+        int instructions;
+        @Label("Symbol Lookups")
+        long symbolLookups;
+        @Label("Max Symbol Table Depth")
+        int maxSymbolDepth;
+    }
+
+    /**
+     * 记录一个阶段的耗时
+     */
+    public void phase(String name, long nanos) {
+        phases.merge(name, nanos, Long::sum);
+    }
+
+    /**
+     * Tokenizer 每产生一个 token 调用一次
+     */
+    public void lexed(long nanos) {
+        tokens++;
+        lexNanos += nanos;
+    }
+
+    public long getLexNanos() {
+        return lexNanos;
+    }
+
+    public void symbolLookup() {
+        symbolLookups++;
+    }
+
+    /**
+     * @param depth 当前符号表的层数
+     */
+    public void symbolDepth(int depth) {
+        maxSymbolDepth = Math.max(maxSymbolDepth, depth);
+    }
+
+    public void setInstructionsBeforeOptimize(int instructions) {
+        instructionsBeforeOptimize = instructions;
+    }
+
+    public void function(String name, int instructions) {
+        functions.add(Map.entry(name, instructions));
+    }
+
+    /**
+     * 结果来自编译缓存，没有真正编译
+     */
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    private int instructions() {
+        int total = 0;
+        for (var function : functions) {
+            total += function.getValue();
+        }
+        return total;
+    }
+
+    /**
+     * 提交 JFR 事件
+     */
+    public void commitEvents(String file) {
+        for (var phase : phases.entrySet()) {
+            var event = new PhaseEvent();
+            if (!event.shouldCommit())
+                continue;
+            event.phase = phase.getKey();
+            event.time = phase.getValue();
+            event.commit();
+        }
+        var event = new CompileEvent();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.tokens = tokens;
+            event.instructions = instructions();
+            event.symbolLookups = symbolLookups;
+            event.maxSymbolDepth = maxSymbolDepth;
+            event.commit();
+        }
+    }
+
+    public String toJson(String file) {
+        var sb = new StringBuilder();
+        sb.append("{\"file\":").append(quote(file));
+        sb.append(",\"cached\":").append(cached);
+        if (!cached) {
+            sb.append(",\"phases\":{");
+            String sep = "";
+            for (var phase : phases.entrySet()) {
+                sb.append(sep).append(quote(phase.getKey())).append(':').append(phase.getValue());
+                sep = ",";
+            }
+            sb.append("},\"tokens\":").append(tokens);
+            sb.append(",\"symbolLookups\":").append(symbolLookups);
+            sb.append(",\"maxSymbolDepth\":").append(maxSymbolDepth);
+            sb.append(",\"instructionsBeforeOptimize\":").append(instructionsBeforeOptimize);
+            sb.append(",\"instructions\":").append(instructions());
+            sb.append(",\"functions\":[");
+            sep = "";
+            for (var function : functions) {
+                sb.append(sep).append("{\"name\":").append(quote(function.getKey()))
+                        .append(",\"instructions\":").append(function.getValue()).append('}');
+                sep = ",";
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        var sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
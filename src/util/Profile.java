@@ -0,0 +1,173 @@
+package util;
+
+import instruction.Instruction;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 训练运行得到的执行计数，用于按剖析结果优化（--profile-generate / --profile-use）
+ * <p>
+ * 按函数名和指令下标记录，下标是语法分析直接生成、还没有经过任何优化的函数体中的下标。
+ * 同时记下每个函数体的指令条数和校验和，源码改过的函数对不上时忽略它的计数。
+ * <p>
+ * 文件格式是文本，每行一项：
+ * <pre>
+ * c0-profile 1
+ * options 编译选项
+ * function 函数名 指令条数 校验和 调用次数
+ * branch 下标 跳了的次数 没跳的次数
+ * call 下标 次数
+ * </pre>
+ * branch 和 call 属于它前面最近的 function
+ */
+public class Profile {
+    private static final String HEADER = "c0-profile 1";
+
+    /** 一个函数的计数 */
+    public static class FunctionProfile {
+        final int size;
+        final int checksum;
+        final long entries;
+        /** 下标 -> {跳了的次数, 没跳的次数} */
+        final HashMap<Integer, long[]> branches = new HashMap<>();
+        /** 下标 -> call 执行的次数 */
+        final HashMap<Integer, Long> calls = new HashMap<>();
+
+        public FunctionProfile(int size, int checksum, long entries) {
+            this.size = size;
+            this.checksum = checksum;
+            this.entries = entries;
+        }
+
+        public void branch(int index, long taken, long notTaken) {
+            branches.put(index, new long[]{taken, notTaken});
+        }
+
+        public void call(int index, long count) {
+            calls.put(index, count);
+        }
+
+        /**
+         * @return 函数被调用的次数
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getTaken(int index) {
+            long[] counts = branches.get(index);
+            return counts == null ? 0 : counts[0];
+        }
+
+        public long getNotTaken(int index) {
+            long[] counts = branches.get(index);
+            return counts == null ? 0 : counts[1];
+        }
+
+        public long getCalls(int index) {
+            return calls.getOrDefault(index, 0L);
+        }
+    }
+
+    private final String options;
+    private final LinkedHashMap<String, FunctionProfile> functions = new LinkedHashMap<>();
+    private String digest = "";
+
+    /**
+     * @param options 训练时的编译选项，选项不同时指令下标对不上
+     */
+    public Profile(String options) {
+        this.options = options;
+    }
+
+    public String getOptions() {
+        return options;
+    }
+
+    /**
+     * @return 文件内容的摘要，参与编译缓存键的计算
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public void add(String name, FunctionProfile function) {
+        functions.put(name, function);
+    }
+
+    /**
+     * @param instructions 函数体未经优化的指令
+     * @return 函数的计数，没有记录或者函数体变了时返回 null
+     */
+    public FunctionProfile get(String name, List<Instruction> instructions) {
+        FunctionProfile function = functions.get(name);
+        if (function == null || function.size != instructions.size()
+                || function.checksum != checksum(instructions.toArray(new Instruction[0])))
+            return null;
+        return function;
+    }
+
+    /**
+     * 训练时和使用时都由这里计算函数体的校验和
+     */
+    public static int checksum(Instruction[] instructions) {
+        int h = 1;
+        for (Instruction instruction : instructions) {
+            h = 31 * h + instruction.getOpt().getCode();
+            h = 31 * h + Long.hashCode(instruction.getX());
+        }
+        return h;
+    }
+
+    public void write(PrintStream out) {
+        out.println(HEADER);
+        out.println("options " + options);
+        for (var entry : functions.entrySet()) {
+            FunctionProfile function = entry.getValue();
+            out.printf("function %s %d %d %d%n", entry.getKey(), function.size, function.checksum, function.entries);
+            for (var branch : function.branches.entrySet()) {
+                out.printf("branch %d %d %d%n", branch.getKey(), branch.getValue()[0], branch.getValue()[1]);
+            }
+            for (var call : function.calls.entrySet()) {
+                out.printf("call %d %d%n", call.getKey(), call.getValue());
+            }
+        }
+    }
+
+    public static Profile read(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\n");
+        if (lines.length < 2 || !lines[0].equals(HEADER) || !lines[1].startsWith("options "))
+            throw new IOException(path + ": not a profile");
+        var profile = new Profile(lines[1].substring("options ".length()));
+        profile.digest = CompileCache.key(HEADER, "", bytes);
+        FunctionProfile function = null;
+        for (int i = 2; i < lines.length; i++) {
+            String[] fields = lines[i].split(" ");
+            try {
+                switch (fields[0]) {
+                    case "function" -> {
+                        function = new FunctionProfile(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                                Long.parseLong(fields[4]));
+                        profile.add(fields[1], function);
+                    }
+                    case "branch" -> function.branch(Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]));
+                    case "call" -> function.call(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+                    case "" -> { }
+                    default -> throw new IOException(path + ":" + (i + 1) + ": unknown entry " + fields[0]);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException | NullPointerException e) {
+                throw new IOException(path + ":" + (i + 1) + ": malformed entry");
+            }
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,261 @@
+package vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 虚拟机的输入输出
+ * <p>
+ * 输出先写进一块字节缓冲，满了、读输入要等待、程序结束（包括 panic 等运行时错误）时才写到输出流。
+ * 整数直接按位写成字节，浮点数在常见的范围内也不经过 String.format，打印时不分配对象。
+ * 输入从按块读入的字节里直接解析，不用 Scanner。
+ * 字符按 UTF-8 编解码，和原来 Scanner、PrintStream 的行为一致
+ */
+final class BufferedIo {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private int inputPos = 0;
+    private int inputEnd = 0;
+
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int outputPos = 0;
+
+    /** 格式化数字用，long 最多 20 位 */
+    private final byte[] digits = new byte[20];
+
+    BufferedIo(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    //输出
+
+    void flush() {
+        if (outputPos == 0)
+            return;
+        try {
+            out.write(output, 0, outputPos);
+            out.flush();
+        } catch (IOException e) {
+            throw new VmError("output error: " + e.getMessage());
+        } finally {
+            outputPos = 0;
+        }
+    }
+
+    private void write(int b) {
+        if (outputPos == output.length)
+            flush();
+        output[outputPos++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) {
+        if (bytes.length > output.length - outputPos) {
+            flush();
+            if (bytes.length > output.length) {
+                try {
+                    out.write(bytes);
+                } catch (IOException e) {
+                    throw new VmError("output error: " + e.getMessage());
+                }
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, output, outputPos, bytes.length);
+        outputPos += bytes.length;
+    }
+
+    void printLong(long value) {
+        if (output.length - outputPos < 20)
+            flush();
+        if (value < 0) {
+            output[outputPos++] = '-';
+        } else {
+            value = -value;//在负数范围内转换，Long.MIN_VALUE 也不会溢出
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            output[outputPos++] = digits[--n];
+        }
+    }
+
+    /**
+     * 打印一个 UTF-16 码元，和 PrintStream.print(char) 一样，单独的代理项打印成 ?
+     */
+    void printChar(long value) {
+        char c = (char) value;
+        if (c < 0x80) {
+            write(c);
+        } else if (c < 0x800) {
+            write(0xc0 | c >> 6);
+            write(0x80 | c & 0x3f);
+        } else if (Character.isSurrogate(c)) {
+            write('?');
+        } else {
+            write(0xe0 | c >> 12);
+            write(0x80 | c >> 6 & 0x3f);
+            write(0x80 | c & 0x3f);
+        }
+    }
+
+    /**
+     * 和 printf("%.6f") 的结果相同。Formatter 按 Double.toString 的最短十进制表示四舍五入，
+     * 乘上 10^6 后小数部分离 0.5 足够远时两种舍入结果一样，直接按整数打印；
+     * 否则（很少见）以及很大的数、NaN、无穷交给 String.format
+     */
+    void printDouble(double value) {
+        double magnitude = Math.abs(value);
+        if (magnitude < 1e6) {
+            double scaled = magnitude * 1e6;
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            if (Math.abs(fraction - 0.5) > 0.01) {
+                long units = (long) floor + (fraction > 0.5 ? 1 : 0);
+                if (Double.doubleToRawLongBits(value) < 0)
+                    write('-');
+                printLong(units / 1000000);
+                write('.');
+                long rest = units % 1000000;
+                for (long unit = 100000; unit > 0; unit /= 10) {
+                    write((int) ('0' + rest / unit % 10));
+                }
+                return;
+            }
+        }
+        write(String.format("%.6f", value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    void printBytes(byte[] bytes) {
+        write(bytes);
+    }
+
+    void printLine() {
+        write('\n');
+    }
+
+    //输入
+
+    /**
+     * @return 下一个字节，输入结束时返回 -1
+     */
+    private int peek() {
+        if (inputPos == inputEnd && !fill())
+            return -1;
+        return input[inputPos] & 0xff;
+    }
+
+    private int read() {
+        int b = peek();
+        if (b >= 0)
+            inputPos++;
+        return b;
+    }
+
+    /**
+     * 读入下一块。读之前先把已有的输出写出去，交互运行时提示先于等待输入出现
+     *
+     * @return 是否读到了内容
+     */
+    private boolean fill() {
+        flush();
+        try {
+            int n = in.read(input, 0, input.length);
+            if (n <= 0)
+                return false;
+            inputPos = 0;
+            inputEnd = n;
+            return true;
+        } catch (IOException e) {
+            throw new VmError("input error: " + e.getMessage());
+        }
+    }
+
+    private void skipWhitespace() {
+        int b = peek();
+        while (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0b) {
+            inputPos++;
+            b = peek();
+        }
+        if (b < 0)
+            throw new VmError("unexpected end of input");
+    }
+
+    long scanLong() {
+        skipWhitespace();
+        boolean negative = false;
+        int b = peek();
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            inputPos++;
+            b = peek();
+        }
+        if (b < '0' || b > '9')
+            throw new VmError("invalid integer input");
+        //在负数范围内累加，Long.MIN_VALUE 也能读
+        long value = 0;
+        while (b >= '0' && b <= '9') {
+            int digit = b - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10)
+                throw new VmError("integer input out of range");
+            value = value * 10 - digit;
+            inputPos++;
+            b = peek();
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE)
+                throw new VmError("integer input out of range");
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * 读一个字符（包括空白），按 UTF-8 解码
+     */
+    long scanChar() {
+        int b = read();
+        if (b < 0)
+            throw new VmError("unexpected end of input");
+        if (b < 0x80)
+            return b;
+        int extra = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : 0;
+        int c = b & (0x3f >> extra);
+        for (int i = 0; i < extra; i++) {
+            int next = peek();
+            if (next < 0x80 || next >= 0xc0)
+                return 0xfffd;
+            inputPos++;
+            c = c << 6 | next & 0x3f;
+        }
+        return extra == 0 ? 0xfffd : c;
+    }
+
+    /**
+     * 读到下一个空白为止的一个词，交给 Double.parseDouble
+     */
+    double scanDouble() {
+        skipWhitespace();
+        var token = new StringBuilder();
+        int b = peek();
+        while (b > ' ') {
+            token.append((char) b);
+            inputPos++;
+            b = peek();
+        }
+        try {
+            return Double.parseDouble(token.toString());
+        } catch (NumberFormatException e) {
+            throw new VmError("invalid double input");
+        }
+    }
+}
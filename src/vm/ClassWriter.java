@@ -0,0 +1,293 @@
+package vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 生成 JVM class 文件的最小实现，只支持 Jit 用到的部分
+ * <p>
+ * 版本号用 49（Java 5），不需要 StackMapTable，由类型推导的校验器校验。
+ * 常量池项按内容去重
+ */
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolCount = 1;
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private final ArrayList<byte[]> methods = new ArrayList<>();
+
+    int utf8(String s) {
+        return constant("U" + s, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(s);
+        }, 1);
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, () -> {
+            pool.writeByte(7);
+            pool.writeShort(name);
+        }, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    int longConstant(long value) {
+        return constant("J" + value, () -> {
+            pool.writeByte(5);
+            pool.writeLong(value);
+        }, 2);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + " " + descriptor, () -> {
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        }, 1);
+        return constant(tag + owner + "." + name + descriptor, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        }, 1);
+    }
+
+    private interface PoolWrite {
+        void write() throws IOException;
+    }
+
+    /**
+     * @param slots long 常量占两个常量池下标
+     */
+    private int constant(String key, PoolWrite write, int slots) {
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        try {
+            write.write();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xffff)
+            throw new IllegalStateException("constant pool overflow");
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    void method(int access, String name, String descriptor, Bytecode code) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int codeName = utf8("Code");
+            byte[] body = code.toByteArray();
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + body.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);//异常表
+            out.writeShort(0);//属性
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray(String name, String superName, String... interfaces) {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        var interfaceIndex = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndex[i] = classRef(interfaces[i]);
+        }
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndex.length);
+            for (int index : interfaceIndex) {
+                out.writeShort(index);
+            }
+            out.writeShort(0);//字段
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);//属性
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 一个方法的字节码，跳转目标用标签表示，toByteArray() 时回填偏移
+     */
+    static final class Bytecode {
+        static final int LCONST_0 = 9;
+        static final int LCONST_1 = 10;
+        static final int ICONST_0 = 3;
+        static final int ICONST_1 = 4;
+        static final int BIPUSH = 16;
+        static final int SIPUSH = 17;
+        static final int LDC2_W = 20;
+        static final int LLOAD = 22;
+        static final int ALOAD = 25;
+        static final int LALOAD = 47;
+        static final int LSTORE = 55;
+        static final int LASTORE = 80;
+        static final int POP2 = 88;
+        static final int DUP = 89;
+        static final int DUP2 = 92;
+        static final int LADD = 97;
+        static final int LSUB = 101;
+        static final int IMUL = 104;
+        static final int LMUL = 105;
+        static final int INEG = 116;
+        static final int LNEG = 117;
+        static final int LSHL = 121;
+        static final int LSHR = 123;
+        static final int IUSHR = 124;
+        static final int LUSHR = 125;
+        static final int LOR = 129;
+        static final int IXOR = 130;
+        static final int LXOR = 131;
+        static final int I2L = 133;
+        static final int L2I = 136;
+        static final int LCMP = 148;
+        static final int IFEQ = 153;
+        static final int IFNE = 154;
+        static final int GOTO = 167;
+        static final int LRETURN = 173;
+        static final int RETURN = 177;
+        static final int INVOKESPECIAL = 183;
+        static final int INVOKESTATIC = 184;
+        static final int NEWARRAY = 188;
+        static final int ATHROW = 191;
+        static final int WIDE = 196;
+        static final int T_LONG = 11;
+
+        private byte[] code = new byte[256];
+        private int size = 0;
+        private final ArrayList<Integer> labels = new ArrayList<>();
+        /** {跳转指令的位置, 标签} */
+        private final ArrayList<int[]> fixups = new ArrayList<>();
+        int maxStack = 0;
+        int maxLocals = 0;
+
+        int size() {
+            return size;
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void op1(int opcode, int operand) {
+            u1(opcode);
+            u1(operand);
+        }
+
+        void op2(int opcode, int operand) {
+            u1(opcode);
+            u2(operand);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5)
+                op(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                op1(BIPUSH, value);
+            else
+                op2(SIPUSH, value);
+        }
+
+        /**
+         * lload、lstore、aload 等带局部变量下标的指令，下标超过 255 时加 wide 前缀
+         */
+        void local(int opcode, int index) {
+            if (index > 0xff) {
+                u1(WIDE);
+                op2(opcode, index);
+            } else {
+                op1(opcode, index);
+            }
+        }
+
+        int newLabel() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        void mark(int label) {
+            labels.set(label, size);
+        }
+
+        void jump(int opcode, int label) {
+            fixups.add(new int[]{size, label});
+            op2(opcode, 0);
+        }
+
+        private void u1(int b) {
+            if (size == code.length)
+                code = Arrays.copyOf(code, size * 2);
+            code[size++] = (byte) b;
+        }
+
+        private void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+
+        /**
+         * @throws IllegalStateException 方法太大，跳转偏移超出 16 位
+         */
+        byte[] toByteArray() {
+            if (size > 0xffff)
+                throw new IllegalStateException("method too large");
+            for (int[] fixup : fixups) {
+                int offset = labels.get(fixup[1]) - fixup[0];
+                if (labels.get(fixup[1]) < 0 || offset != (short) offset)
+                    throw new IllegalStateException("branch offset out of range");
+                code[fixup[0] + 1] = (byte) (offset >> 8);
+                code[fixup[0] + 2] = (byte) offset;
+            }
+            return Arrays.copyOf(code, size);
+        }
+    }
+}
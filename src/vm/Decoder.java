@@ -0,0 +1,270 @@
+package vm;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+/**
+ * 把函数体预解码成紧凑的 int[]，供 VirtualMachine 的快速解释循环使用
+ * <p>
+ * 每条指令先是操作码（和 o0 中的操作码相同），后面紧跟操作数：push 的 64 位操作数拆成高、低两个 int，
+ * 其余操作数各占一个 int。跳转的操作数换成跳转目标在数组中的绝对下标，call 的函数编号在解码时检查。
+ * 数组末尾补一条 END，执行到函数末尾时报错，解释循环里不用再检查 pc 是否越界。
+ * <p>
+ * 几种常见的指令序列在后面的指令都不是跳转目标时合成一条，省掉分派和中间结果的压栈、出栈，
+ * 执行计数仍按原来的条数算：
+ * <ul>
+ * <li>读变量的 loca/arga x; load_64 合成 LOAD_LOC/LOAD_ARG x</li>
+ * <li>push c; add_i 和 push c; sub_i（c 在 int 范围内）合成 ADD_IMM ±c</li>
+ * <li>条件里的比较 cmp_i/cmp_f; [set_lt/set_gt;] br_true/br_false 合成一条比较并跳转，
+ * int 直接比较两个操作数，double 按 cmp_f 的规则（有 NaN 时两边既不小于也不大于）</li>
+ * </ul>
+ */
+final class Decoder {
+    static final int NOP = 0x00;
+    static final int PUSH = 0x01;
+    static final int POP = 0x02;
+    static final int POPN = 0x03;
+    static final int DUP = 0x04;
+    static final int LOCA = 0x0a;
+    static final int ARGA = 0x0b;
+    static final int GLOBA = 0x0c;
+    static final int LOAD_8 = 0x10;
+    static final int LOAD_16 = 0x11;
+    static final int LOAD_32 = 0x12;
+    static final int LOAD_64 = 0x13;
+    static final int STORE_8 = 0x14;
+    static final int STORE_16 = 0x15;
+    static final int STORE_32 = 0x16;
+    static final int STORE_64 = 0x17;
+    static final int ALLOC = 0x18;
+    static final int FREE = 0x19;
+    static final int STACKALLOC = 0x1a;
+    static final int ADD_I = 0x20;
+    static final int SUB_I = 0x21;
+    static final int MUL_I = 0x22;
+    static final int DIV_I = 0x23;
+    static final int ADD_F = 0x24;
+    static final int SUB_F = 0x25;
+    static final int MUL_F = 0x26;
+    static final int DIV_F = 0x27;
+    static final int DIV_U = 0x28;
+    static final int SHL = 0x29;
+    static final int SHR = 0x2a;
+    static final int OR = 0x2c;
+    static final int XOR = 0x2d;
+    static final int NOT = 0x2e;
+    static final int CMP_I = 0x30;
+    static final int CMP_U = 0x31;
+    static final int CMP_F = 0x32;
+    static final int NEG_I = 0x34;
+    static final int NEG_F = 0x35;
+    static final int ITOF = 0x36;
+    static final int FTOI = 0x37;
+    static final int SHRL = 0x38;
+    static final int SET_LT = 0x39;
+    static final int SET_GT = 0x3a;
+    static final int BR = 0x41;
+    static final int BR_FALSE = 0x42;
+    static final int BR_TRUE = 0x43;
+    static final int CALL = 0x48;
+    static final int RET = 0x49;
+    static final int CALLNAME = 0x4a;
+    static final int SCAN_I = 0x50;
+    static final int SCAN_C = 0x51;
+    static final int SCAN_F = 0x52;
+    static final int PRINT_I = 0x54;
+    static final int PRINT_C = 0x55;
+    static final int PRINT_F = 0x56;
+    static final int PRINTS = 0x57;
+    static final int PRINTLN = 0x58;
+    static final int PANIC = 0xfe;
+    //以下操作码只在解码结果中出现
+    /** loca x; load_64 */
+    static final int LOAD_LOC = 0xf0;
+    /** arga x; load_64 */
+    static final int LOAD_ARG = 0xf1;
+    /** push c; add_i 或者 push -c; sub_i */
+    static final int ADD_IMM = 0xf2;
+    /** cmp_i; set_lt; br_true */
+    static final int BR_LT_I = 0xe0;
+    /** cmp_i; set_lt; br_false */
+    static final int BR_GE_I = 0xe1;
+    /** cmp_i; set_gt; br_true */
+    static final int BR_GT_I = 0xe2;
+    /** cmp_i; set_gt; br_false */
+    static final int BR_LE_I = 0xe3;
+    /** cmp_i; br_false */
+    static final int BR_EQ_I = 0xe4;
+    /** cmp_i; br_true */
+    static final int BR_NE_I = 0xe5;
+    //cmp_f 的六种，顺序同上
+    static final int BR_LT_F = 0xe8;
+    static final int BR_GE_F = 0xe9;
+    static final int BR_GT_F = 0xea;
+    static final int BR_LE_F = 0xeb;
+    static final int BR_EQ_F = 0xec;
+    static final int BR_NE_F = 0xed;
+    /** 函数体的末尾 */
+    static final int END = 0xff;
+
+    /** 操作码 -> Operation，报错时用 */
+    private static final Operation[] byCode = new Operation[256];
+    static {
+        for (Operation operation : Operation.values()) {
+            byCode[operation.getCode()] = operation;
+        }
+    }
+
+    /**
+     * 操作码 -> 执行前栈上至少要有的值的个数。解释循环在分派前按这两张表检查栈的边界，
+     * 指令本身不再检查；call、stackalloc 在分配局部变量时检查，popn 按 loca 基址检查
+     */
+    static final byte[] POPS = new byte[256];
+    /** 操作码 -> 执行过程中栈最多比执行前高出的槽数 */
+    static final byte[] GROWS = new byte[256];
+    static {
+        for (int opcode : new int[]{PUSH, LOCA, ARGA, GLOBA, SCAN_I, SCAN_C, SCAN_F, LOAD_LOC, LOAD_ARG}) {
+            GROWS[opcode] = 1;
+        }
+        POPS[DUP] = 1;
+        GROWS[DUP] = 1;
+        for (int opcode : new int[]{POP, LOAD_8, LOAD_16, LOAD_32, LOAD_64, ALLOC, FREE, NOT, NEG_I, NEG_F, ITOF, FTOI,
+                SET_LT, SET_GT, BR_FALSE, BR_TRUE, PRINT_I, PRINT_C, PRINT_F, PRINTS, ADD_IMM}) {
+            POPS[opcode] = 1;
+        }
+        for (int opcode : new int[]{STORE_8, STORE_16, STORE_32, STORE_64, ADD_I, SUB_I, MUL_I, DIV_I, ADD_F, SUB_F,
+                MUL_F, DIV_F, DIV_U, SHL, SHR, OR, XOR, CMP_I, CMP_U, CMP_F, SHRL}) {
+            POPS[opcode] = 2;
+        }
+        for (int opcode = BR_LT_I; opcode <= BR_NE_F; opcode++) {
+            POPS[opcode] = 2;
+        }
+    }
+
+    private Decoder() {
+    }
+
+    /**
+     * @param functionCnt 程序中的函数个数
+     */
+    static int[] decode(Function function, int functionCnt) {
+        Instruction[] body = function.body;
+        var target = new boolean[body.length + 1];
+        for (int i = 0; i < body.length; i++) {
+            Operation opt = body[i].getOpt();
+            if (opt == Operation.br || opt == Operation.br_false || opt == Operation.br_true) {
+                long t = i + 1 + body[i].getX();
+                if (t < 0 || t > body.length)
+                    throw new VmError("invalid branch target in function " + function.name);
+                target[(int) t] = true;
+            }
+        }
+
+        //每条指令在数组中的下标，最后一项是 END 的下标；合成的几条指令共用一个下标
+        var position = new int[body.length + 1];
+        var fused = new int[body.length];//合成的指令的操作码，不合成时为 -1
+        int size = 0;
+        for (int i = 0; i < body.length; i++) {
+            position[i] = size;
+            fused[i] = fuse(body, i, target);
+            if (fused[i] >= 0) {
+                int length = length(fused[i]);
+                for (int k = 1; k < length; k++) {
+                    position[i + k] = size;
+                }
+                i += length - 1;
+                size += 2;
+                continue;
+            }
+            size += 1 + width(body[i].getOpt());
+        }
+        position[body.length] = size;
+
+        var code = new int[size + 1];
+        for (int i = 0; i < body.length; i++) {
+            Operation opt = body[i].getOpt();
+            long x = body[i].getX();
+            int pc = position[i];
+            code[pc] = opt.getCode();
+            if (fused[i] >= 0) {
+                int length = length(fused[i]);
+                code[pc] = fused[i];
+                if (fused[i] == LOAD_LOC || fused[i] == LOAD_ARG)
+                    code[pc + 1] = (int) x;
+                else if (fused[i] == ADD_IMM)
+                    code[pc + 1] = (int) (body[i + 1].getOpt() == Operation.add_i ? x : -x);
+                else//比较并跳转：跳转目标按最后一条 br 算
+                    code[pc + 1] = position[(int) (i + length + body[i + length - 1].getX())];
+                i += length - 1;
+                continue;
+            }
+            switch (opt) {
+                case push -> {
+                    code[pc + 1] = (int) (x >>> 32);
+                    code[pc + 2] = (int) x;
+                }
+                case br, br_false, br_true -> code[pc + 1] = position[(int) (i + 1 + x)];
+                case call -> {
+                    if (x < 0 || x >= functionCnt)
+                        throw new VmError("invalid function id " + x + " in function " + function.name);
+                    code[pc + 1] = (int) x;
+                }
+                default -> {
+                    if (opt.getParamSize() > 0)
+                        code[pc + 1] = (int) x;
+                }
+            }
+        }
+        code[size] = END;
+        return code;
+    }
+
+    /**
+     * @return 从 i 开始的指令合成的操作码，不能合成时返回 -1
+     */
+    private static int fuse(Instruction[] body, int i, boolean[] target) {
+        Operation opt = body[i].getOpt();
+        Operation next = i + 1 < body.length && !target[i + 1] ? body[i + 1].getOpt() : null;
+        Operation third = next != null && i + 2 < body.length && !target[i + 2] ? body[i + 2].getOpt() : null;
+        if ((opt == Operation.loca || opt == Operation.arga) && next == Operation.load_64)
+            return opt == Operation.loca ? LOAD_LOC : LOAD_ARG;
+        if (opt == Operation.push && (next == Operation.add_i || next == Operation.sub_i)) {
+            long x = body[i].getX();
+            if (x > Integer.MIN_VALUE && x <= Integer.MAX_VALUE)
+                return ADD_IMM;
+        }
+        if (opt == Operation.cmp_i || opt == Operation.cmp_f) {
+            int base = opt == Operation.cmp_i ? BR_LT_I : BR_LT_F;
+            if ((next == Operation.set_lt || next == Operation.set_gt)
+                    && (third == Operation.br_true || third == Operation.br_false))
+                return base + (next == Operation.set_lt ? 0 : 2) + (third == Operation.br_true ? 0 : 1);
+            if (next == Operation.br_false)
+                return base + 4;
+            if (next == Operation.br_true)
+                return base + 5;
+        }
+        return -1;
+    }
+
+    /**
+     * @return 合成的操作码代替的指令条数
+     */
+    static int length(int opcode) {
+        return switch (opcode) {
+            case BR_LT_I, BR_GE_I, BR_GT_I, BR_LE_I, BR_LT_F, BR_GE_F, BR_GT_F, BR_LE_F -> 3;
+            default -> 2;
+        };
+    }
+
+    /**
+     * @return 操作数占的 int 个数
+     */
+    private static int width(Operation opt) {
+        return opt.getParamSize() / 4;
+    }
+
+    static String name(int opcode) {
+        Operation operation = opcode >= 0 && opcode < byCode.length ? byCode[opcode] : null;
+        return operation == null ? "opcode " + opcode : operation.toString();
+    }
+}
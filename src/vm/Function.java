@@ -0,0 +1,30 @@
+package vm;
+
+import instruction.Instruction;
+
+/**
+ * 从 o0 读出的一个函数
+ */
+public class Function {
+    String name;
+    int retSlots;
+    int paramSlots;
+    int locSlots;
+    Instruction[] body;
+
+    public Function(String name, int retSlots, int paramSlots, int locSlots, Instruction[] body) {
+        this.name = name;
+        this.retSlots = retSlots;
+        this.paramSlots = paramSlots;
+        this.locSlots = locSlots;
+        this.body = body;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Instruction[] getBody() {
+        return body;
+    }
+}
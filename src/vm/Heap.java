@@ -0,0 +1,125 @@
+package vm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * alloc/free 用的堆，放在一整块堆外的 ByteBuffer 里，不经过 Java 的垃圾回收
+ * <p>
+ * 堆地址 = 2 &lt;&lt; 62 | 字节偏移。按大小分级分配：第 k 级的块连同 8 字节的块头共 16 &lt;&lt; k 字节，
+ * 块头记着级别，释放后取反，用来发现重复释放。切出来的块不再拆分合并，块的起点另外记在位图里，
+ * 释放块中间的地址时据此报错，而不是把块里的数据当成块头。每级一个空闲链表，链表的下一项存在空闲块的第一个字里；
+ * 链表为空时从还没用过的部分顺序切一块。复用的块在分配时清零，和新块一样。
+ * <p>
+ * 打开边界检查时读写必须落在已经切出来的部分之内；关掉以后只剩 ByteBuffer 自己的检查，
+ * 越出整个堆时才报错
+ */
+final class Heap {
+    static final long HEAP = 2L << 62;
+    private static final int HEADER = 8;
+    private static final int CLASSES = 28;
+
+    private final int capacity;
+    private final boolean checked;
+    /** 第一次分配时才申请 */
+    private ByteBuffer memory;
+    /** 已经切出来的部分的末尾，从 8 开始，让 0 偏移不是合法的指针 */
+    private int top = HEADER;
+    /** 每一级空闲链表的第一个块的偏移，0 表示空 */
+    private final int[] free = new int[CLASSES];
+    /** 切出来的块的起点，块的偏移都是 16 的倍数加 8，第 (偏移 - 8) / 16 位对应一个块 */
+    private final BitSet starts = new BitSet();
+
+    /**
+     * @param capacity 堆的字节数
+     * @param checked 是否检查读写的边界
+     */
+    Heap(int capacity, boolean checked) {
+        this.capacity = capacity;
+        this.checked = checked;
+    }
+
+    /**
+     * @return 至少 size 字节、已清零的一块内存的地址
+     */
+    long alloc(long size) {
+        if (size < 0 || size > capacity)
+            throw new VmError("invalid allocation size " + size);
+        if (memory == null)
+            memory = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        int need = (int) size + HEADER;
+        int k = Math.max(0, 32 - Integer.numberOfLeadingZeros(need - 1) - 4);
+        long blockSize = 16L << k;
+        int block = free[k];
+        if (block != 0) {
+            free[k] = (int) memory.getLong(block + HEADER);
+            for (int i = block + HEADER; i < block + blockSize; i += 8) {
+                memory.putLong(i, 0);
+            }
+        } else {
+            if (blockSize > capacity - top)
+                throw new VmError("out of memory");
+            block = top;
+            top += (int) blockSize;
+            starts.set((block - HEADER) >> 4);
+        }
+        memory.putLong(block, k);
+        return HEAP | block + HEADER;
+    }
+
+    /**
+     * 释放 alloc 得到的地址，0 什么也不做
+     */
+    void free(long address) {
+        if (address == 0)
+            return;
+        int block = (int) (address - HEAP) - HEADER;
+        if (address >>> 62 != 2 || (address & 15) != 0 || memory == null || block < HEADER || block >= top
+                || !starts.get((block - HEADER) >> 4))
+            throw new VmError("invalid free of address " + address);
+        long k = memory.getLong(block);
+        if (k < 0)
+            throw new VmError("double free of address " + address);
+        if (k >= CLASSES)
+            throw new VmError("invalid free of address " + address);
+        memory.putLong(block, ~k);
+        memory.putLong(block + HEADER, free[(int) k]);
+        free[(int) k] = block;
+    }
+
+    long load(long address, int size) {
+        int offset = offset(address, size);
+        try {
+            switch (size) {
+                case 1: return memory.get(offset) & 0xffL;
+                case 2: return memory.getShort(offset) & 0xffffL;
+                case 4: return memory.getInt(offset) & 0xffffffffL;
+                default: return memory.getLong(offset);
+            }
+        } catch (IndexOutOfBoundsException | NullPointerException e) {
+            throw new VmError("invalid heap address " + address);
+        }
+    }
+
+    void store(long address, long value, int size) {
+        int offset = offset(address, size);
+        try {
+            switch (size) {
+                case 1 -> memory.put(offset, (byte) value);
+                case 2 -> memory.putShort(offset, (short) value);
+                case 4 -> memory.putInt(offset, (int) value);
+                default -> memory.putLong(offset, value);
+            }
+        } catch (IndexOutOfBoundsException | NullPointerException e) {
+            throw new VmError("invalid heap address " + address);
+        }
+    }
+
+    private int offset(long address, int size) {
+        long offset = address - HEAP;
+        if (checked ? offset < 2 * HEADER || offset > top - size : offset >>> 31 != 0)
+            throw new VmError("invalid heap address " + address);
+        return (int) offset;
+    }
+}
@@ -0,0 +1,118 @@
+package vm;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+/**
+ * 把热的函数编译成 JVM 字节码（--jit）
+ * <p>
+ * 解释器每次调用函数时问一次 enter：调用次数达到阈值，或者函数里有向回的跳转（有循环，
+ * 第一次调用就可能跑很久）时编译它。编译出的代码直接 invokestatic 被调函数的类，
+ * 被调函数的类在第一次执行到调用时才由 ClassLoader 生成：能编译就编译，
+ * 不能编译就生成一个把参数交回解释器的桩。
+ * 编译失败的函数以后不再尝试，一直解释执行
+ */
+final class Jit {
+    private final Program program;
+    private final int threshold;
+    private final Loader loader;
+
+    /** 编译好的函数，还没编译的为 null */
+    private final JitFunction[] compiled;
+    private final int[] calls;
+    private final boolean[] failed;
+    private final boolean[] loops;
+
+    /**
+     * @param threshold 调用多少次后编译
+     */
+    Jit(Program program, int threshold) {
+        this.program = program;
+        this.threshold = threshold;
+        int n = program.functions.size();
+        this.compiled = new JitFunction[n];
+        this.calls = new int[n];
+        this.failed = new boolean[n];
+        this.loops = new boolean[n];
+        this.loader = new Loader(n);
+        for (int i = 0; i < n; i++) {
+            for (Instruction instruction : program.functions.get(i).body) {
+                Operation opt = instruction.getOpt();
+                if ((opt == Operation.br || opt == Operation.br_true || opt == Operation.br_false)
+                        && instruction.getX() < 0)
+                    loops[i] = true;
+            }
+        }
+    }
+
+    /**
+     * @return 函数编译好的代码，还在解释执行时返回 null
+     */
+    JitFunction enter(int fnId) {
+        JitFunction function = compiled[fnId];
+        if (function != null || failed[fnId])
+            return function;
+        if (++calls[fnId] < threshold && !loops[fnId])
+            return null;
+        try {
+            Class<?> type = loader.loadClass(JitCompiler.className(fnId));
+            var instance = type.getConstructor().newInstance();
+            if (instance instanceof JitFunction && !loader.isStub(fnId)) {
+                compiled[fnId] = (JitFunction) instance;
+            } else {
+                failed[fnId] = true;
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            failed[fnId] = true;
+        }
+        return compiled[fnId];
+    }
+
+    /**
+     * @return 编译成字节码的函数个数（包括只被编译好的代码调用过的）
+     */
+    int getCompiled() {
+        return loader.getCompiled();
+    }
+
+    /** 按需生成 c0jit.F函数编号 */
+    private final class Loader extends ClassLoader {
+        private final boolean[] stub;
+        private int compiled = 0;
+
+        Loader(int functionCnt) {
+            super(Jit.class.getClassLoader());
+            this.stub = new boolean[functionCnt];
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (!name.startsWith(JitCompiler.PACKAGE))
+                throw new ClassNotFoundException(name);
+            int fnId;
+            try {
+                fnId = Integer.parseInt(name.substring(JitCompiler.PACKAGE.length()));
+            } catch (NumberFormatException e) {
+                throw new ClassNotFoundException(name);
+            }
+            if (fnId < 0 || fnId >= stub.length)
+                throw new ClassNotFoundException(name);
+            byte[] bytes = failed[fnId] ? null : JitCompiler.compile(program, fnId);
+            if (bytes == null) {
+                bytes = JitCompiler.stub(program, fnId);
+                stub[fnId] = true;
+            } else {
+                compiled++;
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        boolean isStub(int fnId) {
+            return stub[fnId];
+        }
+
+        int getCompiled() {
+            return compiled;
+        }
+    }
+}
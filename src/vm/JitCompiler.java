@@ -0,0 +1,587 @@
+package vm;
+
+import instruction.Instruction;
+import instruction.Operation;
+import vm.ClassWriter.Bytecode;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static vm.ClassWriter.Bytecode.*;
+
+/**
+ * 把一个函数翻译成一个 JVM 类
+ * <p>
+ * 先模拟操作数栈，每个位置上记下是一个值，还是 loca/arga/globa 给出的地址，
+ * 或者 stackalloc 留给被调函数返回值的空位。地址和空位不真正压栈，值是 JVM 操作数栈上的 long：
+ * 读写局部变量、参数和返回值槽变成 JVM 局部变量的 lload/lstore，读写全局变量和算出来的地址（alloc 得到的堆地址）
+ * 调用 JitRuntime，调用用户函数变成 invokestatic 被调函数的类。跳转汇合处两边的栈必须一致。
+ * 地址被当作值使用、栈上的值不知道大小等做不到的情况，整个函数不编译，仍然解释执行。
+ * <p>
+ * 生成的类名为 c0jit.F函数编号，含有
+ * static run(参数..., JitRuntime) 和实现 JitFunction 的 call(long[], JitRuntime)
+ */
+final class JitCompiler {
+    static final String PACKAGE = "c0jit.F";
+    private static final String RUNTIME = "vm/JitRuntime";
+    private static final String RUNTIME_TYPE = "Lvm/JitRuntime;";
+
+    //模拟栈上除了地址以外的项，地址直接用 loca/arga 对应的 JVM 局部变量下标或 globa 的地址表示
+    private static final long VALUE = -1;
+    private static final long RETURN_SLOT = -2;
+
+    /** 做不到的情况 */
+    private static class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Program program;
+    private final int fnId;
+    private final Function fn;
+    private final ClassWriter writer = new ClassWriter();
+    /** 运行时对象所在的 JVM 局部变量 */
+    private final int runtimeLocal;
+    /** 返回值槽所在的 JVM 局部变量 */
+    private final int returnLocal;
+    private final int firstLocal;
+
+    private JitCompiler(Program program, int fnId) {
+        this.program = program;
+        this.fnId = fnId;
+        this.fn = program.functions.get(fnId);
+        this.runtimeLocal = 2 * fn.paramSlots;
+        this.returnLocal = runtimeLocal + 1;
+        this.firstLocal = returnLocal + 2 * fn.retSlots;
+    }
+
+    /**
+     * JVM 方法的参数最多占 255 个槽，long 占两个，还要留一个给运行时对象
+     */
+    private static boolean callable(Function function) {
+        return function.retSlots <= 1 && function.paramSlots <= 127;
+    }
+
+    static String className(int fnId) {
+        return PACKAGE + fnId;
+    }
+
+    private static String internalName(int fnId) {
+        return className(fnId).replace('.', '/');
+    }
+
+    static String descriptor(Function function) {
+        return "(" + "J".repeat(function.paramSlots) + RUNTIME_TYPE + ")" + (function.retSlots > 0 ? "J" : "V");
+    }
+
+    /**
+     * @return class 文件，函数中有做不到的情况时返回 null
+     */
+    static byte[] compile(Program program, int fnId) {
+        if (!callable(program.functions.get(fnId)))
+            return null;
+        var compiler = new JitCompiler(program, fnId);
+        try {
+            var run = compiler.translate();
+            compiler.writer.method(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "run", descriptor(compiler.fn), run);
+        } catch (Unsupported | IllegalStateException e) {
+            return null;
+        }
+        return compiler.finish();
+    }
+
+    /**
+     * 解释执行的函数也要有类，供编译好的调用方 invokestatic。run 把参数交回虚拟机解释执行
+     */
+    static byte[] stub(Program program, int fnId) {
+        var compiler = new JitCompiler(program, fnId);
+        var code = new Bytecode();
+        int paramSlots = compiler.fn.paramSlots;
+        code.local(ALOAD, compiler.runtimeLocal);
+        code.pushInt(fnId);
+        code.pushInt(paramSlots);
+        code.op1(NEWARRAY, T_LONG);
+        for (int k = 0; k < paramSlots; k++) {
+            code.op(DUP);
+            code.pushInt(k);
+            code.local(LLOAD, 2 * k);
+            code.op(LASTORE);
+        }
+        code.op2(INVOKESTATIC, compiler.writer.methodRef(RUNTIME, "interpret", "(" + RUNTIME_TYPE + "I[J)J"));
+        compiler.returnValue(code);
+        code.maxStack = 7;
+        code.maxLocals = compiler.returnLocal;
+        compiler.writer.method(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "run", descriptor(compiler.fn), code);
+        return compiler.finish();
+    }
+
+    /**
+     * 栈顶是 long 返回值时按函数的返回类型返回
+     */
+    private void returnValue(Bytecode code) {
+        if (fn.retSlots > 0) {
+            code.op(LRETURN);
+        } else {
+            code.op(POP2);
+            code.op(RETURN);
+        }
+    }
+
+    /**
+     * 加上构造函数和 call，生成 class 文件
+     */
+    private byte[] finish() {
+        var init = new Bytecode();
+        init.op1(ALOAD, 0);
+        init.op2(INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"));
+        init.op(RETURN);
+        init.maxStack = 1;
+        init.maxLocals = 1;
+        writer.method(ClassWriter.ACC_PUBLIC, "<init>", "()V", init);
+
+        var call = new Bytecode();
+        for (int k = 0; k < fn.paramSlots; k++) {
+            call.op1(ALOAD, 1);
+            call.pushInt(k);
+            call.op(LALOAD);
+        }
+        call.op1(ALOAD, 2);
+        call.op2(INVOKESTATIC, writer.methodRef(internalName(fnId), "run", descriptor(fn)));
+        if (fn.retSlots == 0)
+            call.op(LCONST_0);
+        call.op(LRETURN);
+        call.maxStack = 2 * fn.paramSlots + 2;
+        call.maxLocals = 3;
+        writer.method(ClassWriter.ACC_PUBLIC, "call", "([J" + RUNTIME_TYPE + ")J", call);
+
+        return writer.toByteArray(internalName(fnId), "java/lang/Object", "vm/JitFunction");
+    }
+
+    private Bytecode translate() throws Unsupported {
+        Instruction[] body = fn.body;
+        int n = body.length;
+
+        //第一遍：求出每条指令执行前的模拟栈
+        var states = new long[n + 1][];
+        states[0] = new long[0];
+        var worklist = new ArrayDeque<Integer>();
+        worklist.add(0);
+        int maxValues = 0;
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            if (i == n)
+                throw new Unsupported();//执行到函数末尾
+            long[] after = step(body[i], states[i], null);
+            maxValues = Math.max(maxValues, Math.max(values(states[i]), values(after)));
+            for (int next : successors(i, body[i])) {
+                if (next < 0 || next > n)
+                    throw new Unsupported();
+                if (states[next] == null) {
+                    states[next] = after;
+                    worklist.add(next);
+                } else if (!Arrays.equals(states[next], after)) {
+                    throw new Unsupported();
+                }
+            }
+        }
+
+        //第二遍：生成字节码
+        var code = new Bytecode();
+        var labels = new int[n];
+        for (int i = 0; i < n; i++) {
+            labels[i] = code.newLabel();
+        }
+        this.labels = labels;
+        //编译出的函数也占一层调用深度，和解释执行时一样在超过 maxDepth 时报错
+        code.local(ALOAD, runtimeLocal);
+        code.op2(INVOKESTATIC, writer.methodRef(RUNTIME, "enter", "(" + RUNTIME_TYPE + ")V"));
+        for (int j = 0; j < fn.retSlots + fn.locSlots; j++) {
+            code.op(LCONST_0);
+            code.local(LSTORE, j < fn.retSlots ? returnLocal : firstLocal + 2 * (j - fn.retSlots));
+        }
+        for (int i = 0; i < n; i++) {
+            if (states[i] == null)
+                continue;//执行不到
+            code.mark(labels[i]);
+            current = i;
+            step(body[i], states[i], code);
+        }
+        code.maxStack = 2 * maxValues + 6;
+        code.maxLocals = firstLocal + 2 * fn.locSlots;
+        if (code.maxLocals > 0xffff)
+            throw new Unsupported();
+        return code;
+    }
+
+    /** 每条指令的标签 */
+    private int[] labels;
+    /** 正在生成的指令的下标 */
+    private int current;
+
+    private static int values(long[] state) {
+        int count = 0;
+        for (long entry : state) {
+            if (entry == VALUE)
+                count++;
+        }
+        return count;
+    }
+
+    private static int[] successors(int i, Instruction instruction) {
+        int target = (int) (i + 1 + instruction.getX());
+        switch (instruction.getOpt()) {
+            case br:
+                return new int[]{target};
+            case br_true:
+            case br_false:
+                return new int[]{i + 1, target};
+            case ret:
+            case panic:
+                return new int[0];
+            default:
+                return new int[]{i + 1};
+        }
+    }
+
+    /**
+     * 模拟一条指令，code 不为 null 时同时生成字节码
+     *
+     * @return 指令执行后的模拟栈
+     */
+    private long[] step(Instruction instruction, long[] state, Bytecode code) throws Unsupported {
+        var stack = new Stack(state);
+        long x = instruction.getX();
+        switch (instruction.getOpt()) {
+            case nop -> { }
+            case push -> {
+                stack.push(VALUE);
+                if (code != null) {
+                    if (x == 0 || x == 1)
+                        code.op(x == 0 ? LCONST_0 : LCONST_1);
+                    else
+                        code.op2(LDC2_W, writer.longConstant(x));
+                }
+            }
+            case pop -> pop(stack, code);
+            case popn -> {
+                for (long k = 0; k < x; k++) {
+                    pop(stack, code);
+                }
+            }
+            case dup -> {
+                long top = stack.pop();
+                if (top == RETURN_SLOT)
+                    throw new Unsupported();
+                stack.push(top);
+                stack.push(top);
+                if (code != null && top == VALUE)
+                    code.op(DUP2);
+            }
+            case loca -> {
+                if (x < 0 || x >= fn.locSlots)
+                    throw new Unsupported();
+                stack.push(firstLocal + 2 * x);
+            }
+            case arga -> {
+                if (x < 0 || x >= fn.retSlots + fn.paramSlots)
+                    throw new Unsupported();
+                stack.push(x < fn.retSlots ? returnLocal : 2 * (x - fn.retSlots));
+            }
+            case globa -> stack.push(VirtualMachine.GLOBAL | (x & 0xffffffffL) << 32);
+            case load_8, load_16, load_32, load_64 -> {
+                long address = stack.pop();
+                int size = size(instruction.getOpt());
+                if (address == VALUE) {
+                    stack.push(VALUE);
+                    if (code != null) {
+                        code.local(ALOAD, runtimeLocal);
+                        code.pushInt(size);
+                        invoke(code, "loadAt", "(J" + RUNTIME_TYPE + "I)J");
+                    }
+                    return stack.toArray();
+                }
+                if (address < 0 || !isGlobal(address) && size != 8)
+                    throw new Unsupported();
+                stack.push(VALUE);
+                if (code != null) {
+                    if (isGlobal(address)) {
+                        code.local(ALOAD, runtimeLocal);
+                        code.op2(LDC2_W, writer.longConstant(address));
+                        code.pushInt(size);
+                        invoke(code, "load", "(" + RUNTIME_TYPE + "JI)J");
+                    } else {
+                        code.local(LLOAD, (int) address);
+                    }
+                }
+            }
+            case store_8, store_16, store_32, store_64 -> {
+                value(stack.pop());
+                long address = stack.pop();
+                int size = size(instruction.getOpt());
+                if (address == VALUE) {
+                    if (code != null) {
+                        code.local(ALOAD, runtimeLocal);
+                        code.pushInt(size);
+                        invoke(code, "storeAt", "(JJ" + RUNTIME_TYPE + "I)V");
+                    }
+                    return stack.toArray();
+                }
+                if (address < 0 || !isGlobal(address) && size != 8)
+                    throw new Unsupported();
+                if (code != null) {
+                    if (isGlobal(address)) {
+                        code.local(ALOAD, runtimeLocal);
+                        code.op2(LDC2_W, writer.longConstant(address));
+                        code.pushInt(size);
+                        invoke(code, "store", "(J" + RUNTIME_TYPE + "JI)V");
+                    } else {
+                        code.local(LSTORE, (int) address);
+                    }
+                }
+            }
+            case stackalloc -> {
+                for (long k = 0; k < x; k++) {
+                    stack.push(RETURN_SLOT);
+                }
+            }
+            case alloc -> {
+                unary(stack, code, -1);
+                if (code != null) {
+                    code.local(ALOAD, runtimeLocal);
+                    invoke(code, "alloc", "(J" + RUNTIME_TYPE + ")J");
+                }
+            }
+            case free -> {
+                value(stack.pop());
+                if (code != null) {
+                    code.local(ALOAD, runtimeLocal);
+                    invoke(code, "free", "(J" + RUNTIME_TYPE + ")V");
+                }
+            }
+            case add_i -> binary(stack, code, LADD);
+            case sub_i -> binary(stack, code, LSUB);
+            case mul_i -> binary(stack, code, LMUL);
+            case or -> binary(stack, code, LOR);
+            case xor -> binary(stack, code, LXOR);
+            case div_i -> binary(stack, code, "divI", "(JJ)J");
+            case div_u -> binary(stack, code, "divU", "(JJ)J");
+            case add_f -> binary(stack, code, "addF", "(JJ)J");
+            case sub_f -> binary(stack, code, "subF", "(JJ)J");
+            case mul_f -> binary(stack, code, "mulF", "(JJ)J");
+            case div_f -> binary(stack, code, "divF", "(JJ)J");
+            case cmp_f -> binary(stack, code, "cmpF", "(JJ)J");
+            case cmp_i, cmp_u -> {
+                binary(stack, code, -1);
+                if (code != null) {
+                    String name = instruction.getOpt() == Operation.cmp_i ? "compare" : "compareUnsigned";
+                    code.op2(INVOKESTATIC, writer.methodRef("java/lang/Long", name, "(JJ)I"));
+                    code.op(I2L);
+                }
+            }
+            case shl, shr, shrl -> {
+                binary(stack, code, -1);
+                if (code != null) {
+                    code.op(L2I);
+                    code.op(instruction.getOpt() == Operation.shl ? LSHL
+                            : instruction.getOpt() == Operation.shr ? LSHR : LUSHR);
+                }
+            }
+            case neg_i -> unary(stack, code, LNEG);
+            case neg_f -> unary(stack, code, "negF");
+            case itof -> unary(stack, code, "itof");
+            case ftoi -> unary(stack, code, "ftoi");
+            case not, set_lt, set_gt -> {
+                //lcmp 和 0 比较得到 -1/0/1 的 c，not = 1 - c*c，set_lt = c >>> 31，set_gt = -c >>> 31
+                unary(stack, code, -1);
+                if (code != null) {
+                    code.op(LCONST_0);
+                    code.op(LCMP);
+                    if (instruction.getOpt() == Operation.not) {
+                        code.op(DUP);
+                        code.op(IMUL);
+                        code.op(ICONST_1);
+                        code.op(IXOR);
+                    } else {
+                        if (instruction.getOpt() == Operation.set_gt)
+                            code.op(INEG);
+                        code.op1(BIPUSH, 31);
+                        code.op(IUSHR);
+                    }
+                    code.op(I2L);
+                }
+            }
+            case br -> {
+                if (code != null)
+                    code.jump(GOTO, labels[target(instruction)]);
+            }
+            case br_true, br_false -> {
+                value(stack.pop());
+                if (code != null) {
+                    code.op(LCONST_0);
+                    code.op(LCMP);
+                    code.jump(instruction.getOpt() == Operation.br_true ? IFNE : IFEQ, labels[target(instruction)]);
+                }
+            }
+            case call -> {
+                if (x < 0 || x >= program.functions.size())
+                    throw new Unsupported();
+                Function callee = program.functions.get((int) x);
+                if (!callable(callee))
+                    throw new Unsupported();
+                for (int k = 0; k < callee.paramSlots; k++) {
+                    value(stack.pop());
+                }
+                for (int k = 0; k < callee.retSlots; k++) {
+                    if (stack.pop() != RETURN_SLOT)
+                        throw new Unsupported();
+                }
+                if (callee.retSlots > 0)
+                    stack.push(VALUE);
+                if (code != null) {
+                    code.local(ALOAD, runtimeLocal);
+                    code.op2(INVOKESTATIC, writer.methodRef(internalName((int) x), "run", descriptor(callee)));
+                }
+            }
+            case ret -> {
+                if (code != null) {
+                    code.local(ALOAD, runtimeLocal);
+                    code.op2(INVOKESTATIC, writer.methodRef(RUNTIME, "leave", "(" + RUNTIME_TYPE + ")V"));
+                    if (fn.retSlots > 0) {
+                        code.local(LLOAD, returnLocal);
+                        code.op(LRETURN);
+                    } else {
+                        code.op(RETURN);
+                    }
+                }
+            }
+            case scan_i, scan_c, scan_f -> {
+                stack.push(VALUE);
+                if (code != null) {
+                    code.local(ALOAD, runtimeLocal);
+                    String name = instruction.getOpt() == Operation.scan_i ? "scanI"
+                            : instruction.getOpt() == Operation.scan_c ? "scanC" : "scanF";
+                    invoke(code, name, "(" + RUNTIME_TYPE + ")J");
+                }
+            }
+            case print_i, print_c, print_f, prints -> {
+                value(stack.pop());
+                if (code != null) {
+                    code.local(ALOAD, runtimeLocal);
+                    String name = switch (instruction.getOpt()) {
+                        case print_i -> "printI";
+                        case print_c -> "printC";
+                        case print_f -> "printF";
+                        default -> "printS";
+                    };
+                    invoke(code, name, "(J" + RUNTIME_TYPE + ")V");
+                }
+            }
+            case println -> {
+                if (code != null) {
+                    code.local(ALOAD, runtimeLocal);
+                    invoke(code, "println", "(" + RUNTIME_TYPE + ")V");
+                }
+            }
+            case panic -> {
+                if (code != null) {
+                    invoke(code, "panic", "()Ljava/lang/RuntimeException;");
+                    code.op(ATHROW);
+                }
+            }
+            default -> throw new Unsupported();
+        }
+        return stack.toArray();
+    }
+
+    private int target(Instruction instruction) {
+        return current + 1 + (int) instruction.getX();
+    }
+
+    private static boolean isGlobal(long address) {
+        return address >>> 62 == 1;
+    }
+
+    private static int size(Operation opt) {
+        return switch (opt) {
+            case load_8, store_8 -> 1;
+            case load_16, store_16 -> 2;
+            case load_32, store_32 -> 4;
+            default -> 8;
+        };
+    }
+
+    private static void value(long entry) throws Unsupported {
+        if (entry != VALUE)
+            throw new Unsupported();
+    }
+
+    private void pop(Stack stack, Bytecode code) throws Unsupported {
+        long top = stack.pop();
+        if (code != null && top == VALUE)
+            code.op(POP2);
+    }
+
+    /**
+     * @param opcode 对应的 JVM 指令，小于 0 时只模拟
+     */
+    private void binary(Stack stack, Bytecode code, int opcode) throws Unsupported {
+        value(stack.pop());
+        value(stack.pop());
+        stack.push(VALUE);
+        if (code != null && opcode >= 0)
+            code.op(opcode);
+    }
+
+    private void binary(Stack stack, Bytecode code, String name, String descriptor) throws Unsupported {
+        binary(stack, code, -1);
+        if (code != null)
+            invoke(code, name, descriptor);
+    }
+
+    private void unary(Stack stack, Bytecode code, int opcode) throws Unsupported {
+        value(stack.pop());
+        stack.push(VALUE);
+        if (code != null && opcode >= 0)
+            code.op(opcode);
+    }
+
+    private void unary(Stack stack, Bytecode code, String name) throws Unsupported {
+        unary(stack, code, -1);
+        if (code != null)
+            invoke(code, name, "(J)J");
+    }
+
+    private void invoke(Bytecode code, String name, String descriptor) {
+        code.op2(INVOKESTATIC, writer.methodRef(RUNTIME, name, descriptor));
+    }
+
+    /** 模拟栈 */
+    private static final class Stack {
+        private long[] entries;
+        private int size;
+
+        Stack(long[] state) {
+            entries = Arrays.copyOf(state, state.length + 4);
+            size = state.length;
+        }
+
+        void push(long entry) {
+            if (size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = entry;
+        }
+
+        long pop() throws Unsupported {
+            if (size == 0)
+                throw new Unsupported();
+            return entries[--size];
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(entries, size);
+        }
+    }
+}
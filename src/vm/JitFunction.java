@@ -0,0 +1,12 @@
+package vm;
+
+/**
+ * Jit 编译好的一个函数，由生成的类实现
+ */
+public interface JitFunction {
+    /**
+     * @param args 参数，按 arga 的顺序（不含返回值槽）
+     * @return 返回值，函数没有返回值时为 0
+     */
+    long call(long[] args, JitRuntime rt);
+}
@@ -0,0 +1,149 @@
+package vm;
+
+/**
+ * 编译出的代码调用的运行时函数
+ * <p>
+ * 生成的类在另一个 ClassLoader 里，只能访问 public 的成员。
+ * 运行时对象总是最后一个参数，让生成的代码不用调整操作数栈上已有的值
+ */
+public final class JitRuntime {
+    private final VirtualMachine vm;
+
+    JitRuntime(VirtualMachine vm) {
+        this.vm = vm;
+    }
+
+    /**
+     * 编译出的函数开始执行，调用深度加一，超过虚拟机的最大调用深度时报错
+     */
+    public static void enter(JitRuntime rt) {
+        rt.vm.enterCompiled();
+    }
+
+    /**
+     * 编译出的函数返回前调用深度减一。抛出 VmError 时不会执行到这里，由解释器退出时恢复深度
+     */
+    public static void leave(JitRuntime rt) {
+        rt.vm.leaveCompiled();
+    }
+
+    /**
+     * 没有编译的函数由虚拟机解释执行
+     */
+    public static long interpret(JitRuntime rt, int fnId, long[] args) {
+        return rt.vm.invoke(fnId, args);
+    }
+
+    public static long load(JitRuntime rt, long address, int size) {
+        return rt.vm.load(address, size);
+    }
+
+    public static void store(long value, JitRuntime rt, long address, int size) {
+        rt.vm.store(address, value, size);
+    }
+
+    /**
+     * 编译出的代码读写算出来的地址。编译出的代码的局部变量不在虚拟机的栈上，所以这里不接受栈地址
+     */
+    public static long loadAt(long address, JitRuntime rt, int size) {
+        if (address >>> 62 == 0)
+            throw new VmError("invalid address " + address);
+        return rt.vm.load(address, size);
+    }
+
+    public static void storeAt(long address, long value, JitRuntime rt, int size) {
+        if (address >>> 62 == 0)
+            throw new VmError("invalid address " + address);
+        rt.vm.store(address, value, size);
+    }
+
+    public static long alloc(long size, JitRuntime rt) {
+        return rt.vm.allocate(size);
+    }
+
+    public static void free(long address, JitRuntime rt) {
+        rt.vm.release(address);
+    }
+
+    public static long divI(long l, long r) {
+        if (r == 0)
+            throw new VmError("divide by zero");
+        return l / r;
+    }
+
+    public static long divU(long l, long r) {
+        if (r == 0)
+            throw new VmError("divide by zero");
+        return Long.divideUnsigned(l, r);
+    }
+
+    public static long addF(long l, long r) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(l) + Double.longBitsToDouble(r));
+    }
+
+    public static long subF(long l, long r) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(l) - Double.longBitsToDouble(r));
+    }
+
+    public static long mulF(long l, long r) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(l) * Double.longBitsToDouble(r));
+    }
+
+    public static long divF(long l, long r) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(l) / Double.longBitsToDouble(r));
+    }
+
+    public static long cmpF(long l, long r) {
+        double x = Double.longBitsToDouble(l);
+        double y = Double.longBitsToDouble(r);
+        return x < y ? -1 : x > y ? 1 : 0;
+    }
+
+    public static long negF(long value) {
+        return Double.doubleToRawLongBits(-Double.longBitsToDouble(value));
+    }
+
+    public static long itof(long value) {
+        return Double.doubleToRawLongBits((double) value);
+    }
+
+    public static long ftoi(long value) {
+        return (long) Double.longBitsToDouble(value);
+    }
+
+    public static long scanI(JitRuntime rt) {
+        return rt.vm.scanInt();
+    }
+
+    public static long scanC(JitRuntime rt) {
+        return rt.vm.scanChar();
+    }
+
+    public static long scanF(JitRuntime rt) {
+        return Double.doubleToRawLongBits(rt.vm.scanDouble());
+    }
+
+    public static void printI(long value, JitRuntime rt) {
+        rt.vm.printInt(value);
+    }
+
+    public static void printC(long value, JitRuntime rt) {
+        rt.vm.printChar(value);
+    }
+
+    public static void printF(long value, JitRuntime rt) {
+        rt.vm.printDouble(Double.longBitsToDouble(value));
+    }
+
+    public static void printS(long value, JitRuntime rt) {
+        rt.vm.printString(value);
+    }
+
+    public static void println(JitRuntime rt) {
+        rt.vm.printLine();
+    }
+
+    public static RuntimeException panic() {
+        return new VmError("panic");
+    }
+}
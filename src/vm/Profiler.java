@@ -0,0 +1,256 @@
+package vm;
+
+import instruction.Instruction;
+import instruction.Operation;
+import util.Profile;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 虚拟机的执行计数
+ * <p>
+ * 统计每种指令、每个函数执行的指令条数，每条条件跳转跳了和没跳的次数，每个函数的调用次数和耗时。
+ * 按调用路径累计指令条数，输出 flamegraph.pl 能读的折叠栈格式（"_start;main;f 123"），
+ * 火焰图的宽度就是执行的指令条数
+ */
+public class Profiler {
+    private final List<Function> functions;
+
+    private final long[] opcodes = new long[Operation.values().length];
+    /** 函数 -> 函数内执行的指令条数 */
+    private final long[] executed;
+    private final long[] calls;
+    /** 包括被调函数在内的耗时，递归时只算最外层的那次调用 */
+    private final long[] inclusiveNanos;
+    private final long[] selfNanos;
+    /** 函数 -> 指令下标 -> 条件跳转跳了/没跳的次数，没有条件跳转的函数为 null */
+    private final long[][] taken;
+    private final long[][] notTaken;
+    /** 函数 -> 指令下标 -> call 执行的次数，没有 call 的函数为 null */
+    private final long[][] callCounts;
+    /** 函数 -> 当前调用栈上有几层是这个函数 */
+    private final int[] active;
+
+    /** 调用路径树上的一个结点 */
+    private static class Node {
+        final int function;
+        final Node parent;
+        final HashMap<Integer, Node> children = new HashMap<>();
+        long executed = 0;
+
+        Node(int function, Node parent) {
+            this.function = function;
+            this.parent = parent;
+        }
+    }
+
+    private final Node root = new Node(-1, null);
+    private Node current = root;
+
+    /** 当前调用栈上每一层的开始时间和被调函数花掉的时间 */
+    private long[] startTimes = new long[64];
+    private long[] childNanos = new long[64];
+    private int depth = 0;
+
+    public Profiler(Program program) {
+        this.functions = program.functions;
+        int n = functions.size();
+        executed = new long[n];
+        calls = new long[n];
+        inclusiveNanos = new long[n];
+        selfNanos = new long[n];
+        active = new int[n];
+        taken = new long[n][];
+        notTaken = new long[n][];
+        callCounts = new long[n][];
+        for (int i = 0; i < n; i++) {
+            Instruction[] body = functions.get(i).body;
+            for (Instruction instruction : body) {
+                if (taken[i] == null
+                        && (instruction.getOpt() == Operation.br_true || instruction.getOpt() == Operation.br_false)) {
+                    taken[i] = new long[body.length];
+                    notTaken[i] = new long[body.length];
+                }
+                if (callCounts[i] == null && instruction.getOpt() == Operation.call)
+                    callCounts[i] = new long[body.length];
+            }
+        }
+    }
+
+    void instruction(int function, Operation opt) {
+        opcodes[opt.ordinal()]++;
+        executed[function]++;
+        current.executed++;
+    }
+
+    void branch(int function, int pc, boolean isTaken) {
+        if (isTaken)
+            taken[function][pc]++;
+        else
+            notTaken[function][pc]++;
+    }
+
+    void call(int function, int pc) {
+        callCounts[function][pc]++;
+    }
+
+    void enter(int function) {
+        calls[function]++;
+        active[function]++;
+        current = current.children.computeIfAbsent(function, f -> new Node(f, current));
+        if (depth == startTimes.length) {
+            startTimes = Arrays.copyOf(startTimes, depth * 2);
+            childNanos = Arrays.copyOf(childNanos, depth * 2);
+        }
+        startTimes[depth] = System.nanoTime();
+        childNanos[depth] = 0;
+        depth++;
+    }
+
+    void exit() {
+        depth--;
+        long elapsed = System.nanoTime() - startTimes[depth];
+        int function = current.function;
+        if (--active[function] == 0)
+            inclusiveNanos[function] += elapsed;
+        selfNanos[function] += elapsed - childNanos[depth];
+        if (depth > 0)
+            childNanos[depth - 1] += elapsed;
+        current = current.parent;
+    }
+
+    /**
+     * 虚拟机出错停下时，把还没返回的函数都结束掉
+     */
+    void exitAll() {
+        while (depth > 0) {
+            exit();
+        }
+    }
+
+    /**
+     * @return 函数 function 中下标 pc 处的条件跳转跳了的次数
+     */
+    public long getTaken(int function, int pc) {
+        return taken[function] == null ? 0 : taken[function][pc];
+    }
+
+    /**
+     * @return 函数 function 中下标 pc 处的条件跳转没跳的次数
+     */
+    public long getNotTaken(int function, int pc) {
+        return notTaken[function] == null ? 0 : notTaken[function][pc];
+    }
+
+    public long getCalls(int function) {
+        return calls[function];
+    }
+
+    /**
+     * 把分支和调用的计数转成可以保存的剖析结果，函数体必须是未经优化的
+     *
+     * @param options 编译选项
+     */
+    public Profile toProfile(String options) {
+        var profile = new Profile(options);
+        for (int f = 0; f < functions.size(); f++) {
+            Function function = functions.get(f);
+            var counts = new Profile.FunctionProfile(function.body.length, Profile.checksum(function.body), calls[f]);
+            for (int pc = 0; pc < function.body.length; pc++) {
+                if (taken[f] != null && taken[f][pc] + notTaken[f][pc] > 0)
+                    counts.branch(pc, taken[f][pc], notTaken[f][pc]);
+                if (callCounts[f] != null && callCounts[f][pc] > 0)
+                    counts.call(pc, callCounts[f][pc]);
+            }
+            profile.add(function.name, counts);
+        }
+        return profile;
+    }
+
+    /**
+     * 输出折叠栈，每行一条调用路径和这条路径上函数自身执行的指令条数
+     */
+    public void writeCollapsed(PrintStream out) {
+        //递归很深时路径树也很深，用显式的栈遍历
+        var path = new StringBuilder();
+        var nodes = new ArrayDeque<Node>();
+        var pathLengths = new ArrayDeque<Integer>();
+        for (Node child : root.children.values()) {
+            nodes.push(child);
+            pathLengths.push(0);
+        }
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            int length = pathLengths.pop();
+            path.setLength(length);
+            if (length > 0)
+                path.append(';');
+            path.append(functions.get(node.function).name);
+            if (node.executed > 0)
+                out.append(path).append(' ').append(Long.toString(node.executed)).println();
+            for (Node child : node.children.values()) {
+                nodes.push(child);
+                pathLengths.push(path.length());
+            }
+        }
+    }
+
+    /**
+     * 输出执行最多的 n 种指令、n 个函数和 n 条条件跳转
+     */
+    public void writeReport(PrintStream out, int n) {
+        long total = 0;
+        for (long count : opcodes) {
+            total += count;
+        }
+        out.printf("%d instructions executed%n", total);
+
+        out.println("opcodes:");
+        var ops = new ArrayList<Operation>(List.of(Operation.values()));
+        ops.sort(Comparator.comparingLong((Operation op) -> opcodes[op.ordinal()]).reversed());
+        for (Operation op : ops.subList(0, Math.min(n, ops.size()))) {
+            if (opcodes[op.ordinal()] == 0)
+                break;
+            out.printf("  %-12s %12d %6.2f%%%n", op, opcodes[op.ordinal()], 100.0 * opcodes[op.ordinal()] / total);
+        }
+
+        out.println("functions:");
+        out.printf("  %-16s %12s %10s %12s %12s%n", "name", "instructions", "calls", "total ms", "self ms");
+        var fns = new ArrayList<Integer>();
+        for (int i = 0; i < functions.size(); i++) {
+            if (calls[i] > 0)
+                fns.add(i);
+        }
+        fns.sort(Comparator.comparingLong((Integer f) -> executed[f]).reversed());
+        for (int f : fns.subList(0, Math.min(n, fns.size()))) {
+            out.printf("  %-16s %12d %10d %12.3f %12.3f%n", functions.get(f).name, executed[f], calls[f],
+                    inclusiveNanos[f] / 1e6, selfNanos[f] / 1e6);
+        }
+
+        out.println("branches:");
+        out.printf("  %-16s %6s %-9s %12s %12s %7s%n", "function", "pc", "op", "taken", "not taken", "taken%");
+        var branches = new ArrayList<long[]>();//{函数, 下标, 执行次数}
+        for (int f = 0; f < functions.size(); f++) {
+            if (taken[f] == null)
+                continue;
+            for (int pc = 0; pc < taken[f].length; pc++) {
+                long count = taken[f][pc] + notTaken[f][pc];
+                if (count > 0)
+                    branches.add(new long[]{f, pc, count});
+            }
+        }
+        branches.sort(Comparator.comparingLong((long[] b) -> b[2]).reversed());
+        for (long[] b : branches.subList(0, Math.min(n, branches.size()))) {
+            int f = (int) b[0];
+            int pc = (int) b[1];
+            out.printf("  %-16s %6d %-9s %12d %12d %6.1f%%%n", functions.get(f).name, pc, functions.get(f).body[pc].getOpt(),
+                    taken[f][pc], notTaken[f][pc], 100.0 * taken[f][pc] / b[2]);
+        }
+    }
+}
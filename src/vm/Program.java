@@ -0,0 +1,77 @@
+package vm;
+
+import instruction.Instruction;
+import instruction.Operation;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * 一个加载好的 o0 程序
+ */
+public class Program {
+    public static final int MAGIC = 0x72303b3e;
+
+    ArrayList<byte[]> globals = new ArrayList<>();
+    ArrayList<Function> functions = new ArrayList<>();
+
+    /** 操作码 -> Operation */
+    private static final Operation[] byCode = new Operation[256];
+    static {
+        for (Operation operation : Operation.values()) {
+            byCode[operation.getCode()] = operation;
+        }
+    }
+
+    public static Program load(byte[] binary) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(binary));
+        if (in.readInt() != MAGIC)
+            throw new IOException("not an o0 file");
+        in.readInt();//version
+
+        var program = new Program();
+        int globalCnt = in.readInt();
+        for (int i = 0; i < globalCnt; i++) {
+            in.readByte();//is_const
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            program.globals.add(value);
+        }
+
+        int functionCnt = in.readInt();
+        for (int i = 0; i < functionCnt; i++) {
+            int name = in.readInt();
+            int retSlots = in.readInt();
+            int paramSlots = in.readInt();
+            int locSlots = in.readInt();
+            var body = new Instruction[in.readInt()];
+            for (int j = 0; j < body.length; j++) {
+                Operation opt = byCode[in.readUnsignedByte()];
+                if (opt == null)
+                    throw new IOException("unknown opcode in function " + i);
+                long x = 0;
+                if (opt.getParamSize() == 8)
+                    x = in.readLong();
+                else if (opt.getParamSize() == 4)
+                    x = in.readInt();
+                body[j] = new Instruction(opt, x);
+            }
+            String functionName = new String(program.globals.get(name), StandardCharsets.UTF_8);
+            program.functions.add(new Function(functionName, retSlots, paramSlots, locSlots, body));
+        }
+        if (in.available() != 0)
+            throw new IOException("trailing bytes after o0 program");
+        return program;
+    }
+
+    public ArrayList<Function> getFunctions() {
+        return functions;
+    }
+
+    public ArrayList<byte[]> getGlobals() {
+        return globals;
+    }
+}
@@ -0,0 +1,965 @@
+package vm;
+
+import instruction.Instruction;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 直接解释执行 o0 程序的虚拟机
+ * <p>
+ * 栈由 64 位的槽组成。地址的最高两位区分地址空间：0 为栈，1 为全局变量。
+ * 栈地址 = 槽下标 * 8；全局地址 = 1 &lt;&lt; 62 | 全局变量编号 &lt;&lt; 32 | 字节偏移；
+ * 2 为 alloc 分配的堆，见 Heap。
+ * 调用时调用方先 stackalloc 返回值槽再压参数，被调函数的 arga 从返回值槽开始编号，
+ * 返回后栈上只留下返回值。
+ */
+public class VirtualMachine {
+    static final long GLOBAL = 1L << 62;
+
+    private final Program program;
+    private final BufferedIo io;
+
+    private long[] stack;
+    private int sp = 0;
+
+    /** 已执行的指令条数 */
+    private long executed = 0;
+
+    /** 最大调用深度 */
+    private int maxDepth = 1 << 16;
+
+    /** 不为 null 时记录执行计数 */
+    private Profiler profiler = null;
+
+    /** 为 true 时逐条解释 Instruction，否则先用 Decoder 预解码再执行 */
+    private boolean simple = false;
+
+    private Heap heap = new Heap(64 << 20, true);
+
+    /** 不为 null 时把热的函数编译成 JVM 字节码 */
+    private Jit jit = null;
+    private final JitRuntime runtime = new JitRuntime(this);
+    /** 执行编译出的代码的线程的栈大小 */
+    private long jitStackSize = 1L << 30;
+
+    /** 预解码的函数体 */
+    private int[][] codes;
+
+    //预解码执行的调用栈：函数、返回地址、arga 基址、loca 基址
+    private int[] ctlFn;
+    private int[] ctlPc;
+    private int[] ctlArg;
+    private int[] ctlLoc;
+    /** 调用栈的深度，编译出的代码调回解释器时从这里接着用 */
+    private int depth = 0;
+
+    public VirtualMachine(Program program, InputStream in, OutputStream out) {
+        this(program, in, out, 1 << 20);
+    }
+
+    /**
+     * @param stackSlots 栈的槽数
+     */
+    public VirtualMachine(Program program, InputStream in, OutputStream out, int stackSlots) {
+        this.program = program;
+        this.io = new BufferedIo(in, out);
+        this.stack = new long[stackSlots];
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public void setSimple(boolean simple) {
+        this.simple = simple;
+    }
+
+    /**
+     * @param capacity 堆的字节数，最大 1GB
+     * @param checked 是否检查堆上读写的边界
+     */
+    public void setHeap(int capacity, boolean checked) {
+        this.heap = new Heap(Math.min(capacity, 1 << 30), checked);
+    }
+
+    /**
+     * 启用 Jit。记录执行计数或逐条解释时不编译
+     *
+     * @param threshold 函数被调用多少次后编译
+     */
+    public void setJit(int threshold) {
+        this.jit = new Jit(program, threshold);
+    }
+
+    /**
+     * @return 编译成 JVM 字节码的函数个数
+     */
+    public int getJitCompiled() {
+        return jit == null ? 0 : jit.getCompiled();
+    }
+
+    /**
+     * 从 _start 开始执行到它返回
+     * <p>
+     * 记录执行计数时用逐条解释 Instruction 的循环，计数按 Instruction 的下标记录
+     */
+    public void run() {
+        try {
+            if (simple || profiler != null) {
+                execute();
+                return;
+            }
+            ArrayList<Function> functions = program.functions;
+            codes = new int[functions.size()][];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = Decoder.decode(functions.get(i), codes.length);
+            }
+            ctlFn = new int[maxDepth];
+            ctlPc = new int[maxDepth];
+            ctlArg = new int[maxDepth];
+            ctlLoc = new int[maxDepth];
+            if (jit == null)
+                interpret(startFunction(), sp);
+            else
+                runJit();
+        } finally {
+            io.flush();
+            if (profiler != null)
+                profiler.exitAll();
+        }
+    }
+
+    /**
+     * 编译出的代码递归时用的是 JVM 的栈，和 Analyser 一样在栈足够大的线程里执行
+     */
+    private void runJit() {
+        Throwable[] error = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                interpret(startFunction(), sp);
+            } catch (StackOverflowError e) {
+                error[0] = new VmError("stack overflow");
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        }, "vm", jitStackSize);
+        thread.start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (error[0] instanceof RuntimeException)
+            throw (RuntimeException) error[0];
+        if (error[0] instanceof Error)
+            throw (Error) error[0];
+    }
+
+    private int startFunction() {
+        ArrayList<Function> functions = program.functions;
+        int start = 0;
+        for (int i = 0; i < functions.size(); i++) {
+            if (functions.get(i).name.equals("_start"))
+                start = i;
+        }
+        return start;
+    }
+
+    private void execute() {
+        Profiler profiler = this.profiler;
+        ArrayList<Function> functions = program.functions;
+        int start = startFunction();
+
+        //调用栈：函数、返回地址、arga 基址、loca 基址
+        int[] ctlFn = new int[maxDepth];
+        int[] ctlPc = new int[maxDepth];
+        int[] ctlArg = new int[maxDepth];
+        int[] ctlLoc = new int[maxDepth];
+        int depth = 0;
+
+        int fnId = start;
+        Function fn = functions.get(fnId);
+        Instruction[] code = fn.body;
+        int pc = 0;
+        int argBase = sp;
+        int locBase = sp;
+        alloc(fn.locSlots);
+        if (profiler != null)
+            profiler.enter(fnId);
+
+        while (true) {
+            if (pc >= code.length)
+                throw new VmError("control reaches end of function " + fn.name);
+            Instruction instruction = code[pc++];
+            long x = instruction.getX();
+            executed++;
+            if (profiler != null)
+                profiler.instruction(fnId, instruction.getOpt());
+            switch (instruction.getOpt()) {
+                case nop -> { }
+                case push -> push(x);
+                case pop -> pop();
+                case popn -> {
+                    if (sp - x < locBase)
+                        throw new VmError("stack underflow");
+                    sp -= (int) x;
+                }
+                case dup -> push(peek());
+                case loca -> push((long) (locBase + (int) x) << 3);
+                case arga -> push((long) (argBase + (int) x) << 3);
+                case globa -> push(GLOBAL | x << 32);
+                case load_8 -> push(load(pop(), 1));
+                case load_16 -> push(load(pop(), 2));
+                case load_32 -> push(load(pop(), 4));
+                case load_64 -> push(load(pop(), 8));
+                case store_8 -> store(1);
+                case store_16 -> store(2);
+                case store_32 -> store(4);
+                case store_64 -> store(8);
+                case stackalloc -> alloc((int) x);
+                case alloc -> push(heap.alloc(pop()));
+                case free -> heap.free(pop());
+                case add_i -> {
+                    long r = pop();
+                    push(pop() + r);
+                }
+                case sub_i -> {
+                    long r = pop();
+                    push(pop() - r);
+                }
+                case mul_i -> {
+                    long r = pop();
+                    push(pop() * r);
+                }
+                case div_i -> {
+                    long r = pop();
+                    if (r == 0)
+                        throw new VmError("divide by zero");
+                    push(pop() / r);
+                }
+                case div_u -> {
+                    long r = pop();
+                    if (r == 0)
+                        throw new VmError("divide by zero");
+                    push(Long.divideUnsigned(pop(), r));
+                }
+                case add_f -> {
+                    double r = popDouble();
+                    pushDouble(popDouble() + r);
+                }
+                case sub_f -> {
+                    double r = popDouble();
+                    pushDouble(popDouble() - r);
+                }
+                case mul_f -> {
+                    double r = popDouble();
+                    pushDouble(popDouble() * r);
+                }
+                case div_f -> {
+                    double r = popDouble();
+                    pushDouble(popDouble() / r);
+                }
+                case shl -> {
+                    long r = pop();
+                    push(pop() << r);
+                }
+                case shr -> {
+                    long r = pop();
+                    push(pop() >> r);
+                }
+                case shrl -> {
+                    long r = pop();
+                    push(pop() >>> r);
+                }
+                case or -> {
+                    long r = pop();
+                    push(pop() | r);
+                }
+                case xor -> {
+                    long r = pop();
+                    push(pop() ^ r);
+                }
+                case not -> push(pop() == 0 ? 1 : 0);
+                case cmp_i -> {
+                    long r = pop();
+                    push(Long.compare(pop(), r));
+                }
+                case cmp_u -> {
+                    long r = pop();
+                    push(Long.compareUnsigned(pop(), r));
+                }
+                case cmp_f -> {
+                    double r = popDouble();
+                    double l = popDouble();
+                    push(l < r ? -1 : l > r ? 1 : 0);
+                }
+                case neg_i -> push(-pop());
+                case neg_f -> pushDouble(-popDouble());
+                case itof -> pushDouble((double) pop());
+                case ftoi -> push((long) popDouble());
+                case set_lt -> push(pop() < 0 ? 1 : 0);
+                case set_gt -> push(pop() > 0 ? 1 : 0);
+                case br -> pc += (int) x;
+                case br_false -> {
+                    boolean taken = pop() == 0;
+                    if (profiler != null)
+                        profiler.branch(fnId, pc - 1, taken);
+                    if (taken)
+                        pc += (int) x;
+                }
+                case br_true -> {
+                    boolean taken = pop() != 0;
+                    if (profiler != null)
+                        profiler.branch(fnId, pc - 1, taken);
+                    if (taken)
+                        pc += (int) x;
+                }
+                case call -> {
+                    if (depth == maxDepth)
+                        throw new VmError("call stack overflow");
+                    if (profiler != null)
+                        profiler.call(fnId, pc - 1);
+                    ctlFn[depth] = fnId;
+                    ctlPc[depth] = pc;
+                    ctlArg[depth] = argBase;
+                    ctlLoc[depth] = locBase;
+                    depth++;
+                    fnId = (int) x;
+                    fn = functions.get(fnId);
+                    code = fn.body;
+                    pc = 0;
+                    argBase = sp - fn.retSlots - fn.paramSlots;
+                    locBase = sp;
+                    alloc(fn.locSlots);
+                    if (profiler != null)
+                        profiler.enter(fnId);
+                }
+                case ret -> {
+                    sp = argBase + fn.retSlots;
+                    if (profiler != null)
+                        profiler.exit();
+                    if (depth == 0)
+                        return;
+                    depth--;
+                    fnId = ctlFn[depth];
+                    fn = functions.get(fnId);
+                    code = fn.body;
+                    pc = ctlPc[depth];
+                    argBase = ctlArg[depth];
+                    locBase = ctlLoc[depth];
+                }
+                case callname -> throw new VmError("callname is not supported");
+                case scan_i -> push(scanInt());
+                case scan_c -> push(scanChar());
+                case scan_f -> pushDouble(scanDouble());
+                case print_i -> printInt(pop());
+                case print_c -> printChar(pop());
+                case print_f -> printDouble(popDouble());
+                case prints -> printString(pop());
+                case println -> printLine();
+                case panic -> throw new VmError("panic");
+                default -> throw new VmError("unsupported instruction " + instruction);
+            }
+        }
+    }
+
+    /**
+     * 在预解码的 int[] 上执行一个函数，直到它返回。栈和栈顶放在局部变量里，每条指令分派前按 Decoder.POPS/GROWS 检查栈的边界，
+     * 调用要读写 sp 字段的方法前后同步 sp
+     * <p>
+     * 编译出的代码调用没有编译的函数时会再次进入这里，所以调用栈从 depth 字段接着用
+     *
+     * @param argBase 函数的返回值槽和参数已经在栈上，从这里开始
+     */
+    private void interpret(int fnId, int argBase) {
+        ArrayList<Function> functions = program.functions;
+        int[][] codes = this.codes;
+        int[] ctlFn = this.ctlFn;
+        int[] ctlPc = this.ctlPc;
+        int[] ctlArg = this.ctlArg;
+        int[] ctlLoc = this.ctlLoc;
+        int base = this.depth;
+        int depth = base;
+        Jit jit = this.jit;
+
+        long[] stack = this.stack;
+        Function fn = functions.get(fnId);
+        int[] code = codes[fnId];
+        int pc = 0;
+        int locBase = this.sp;
+        alloc(fn.locSlots);
+        int sp = this.sp;
+        long executed = 0;
+
+        byte[] pops = Decoder.POPS;
+        byte[] grows = Decoder.GROWS;
+        try {
+            while (true) {
+                executed++;
+                int opcode = code[pc];
+                if (sp < pops[opcode])
+                    throw new VmError("stack underflow");
+                if (sp > stack.length - grows[opcode])
+                    throw new VmError("stack overflow");
+                switch (opcode) {
+                    case Decoder.NOP -> pc++;
+                    case Decoder.PUSH -> {
+                        stack[sp++] = (long) code[pc + 1] << 32 | code[pc + 2] & 0xffffffffL;
+                        pc += 3;
+                    }
+                    case Decoder.POP -> {
+                        sp--;
+                        pc++;
+                    }
+                    case Decoder.POPN -> {
+                        int x = code[pc + 1];
+                        if (sp - x < locBase)
+                            throw new VmError("stack underflow");
+                        sp -= x;
+                        pc += 2;
+                    }
+                    case Decoder.DUP -> {
+                        stack[sp] = stack[sp - 1];
+                        sp++;
+                        pc++;
+                    }
+                    case Decoder.LOCA -> {
+                        stack[sp++] = (long) (locBase + code[pc + 1]) << 3;
+                        pc += 2;
+                    }
+                    case Decoder.ARGA -> {
+                        stack[sp++] = (long) (argBase + code[pc + 1]) << 3;
+                        pc += 2;
+                    }
+                    case Decoder.GLOBA -> {
+                        stack[sp++] = GLOBAL | (code[pc + 1] & 0xffffffffL) << 32;
+                        pc += 2;
+                    }
+                    case Decoder.LOAD_LOC, Decoder.LOAD_ARG -> {
+                        executed++;
+                        int slot = (code[pc] == Decoder.LOAD_LOC ? locBase : argBase) + code[pc + 1];
+                        if (slot >= 0 && slot < sp) {
+                            stack[sp++] = stack[slot];
+                        } else {
+                            this.sp = sp;
+                            stack[sp++] = load((long) slot << 3, 8);
+                        }
+                        pc += 2;
+                    }
+                    case Decoder.LOAD_64 -> {
+                        long address = stack[sp - 1];
+                        if (address >>> 62 == 0 && (address & 7) == 0 && address >>> 3 < sp - 1) {
+                            stack[sp - 1] = stack[(int) (address >>> 3)];
+                        } else {
+                            this.sp = sp - 1;
+                            stack[sp - 1] = load(address, 8);
+                        }
+                        pc++;
+                    }
+                    case Decoder.LOAD_8, Decoder.LOAD_16, Decoder.LOAD_32 -> {
+                        this.sp = sp - 1;
+                        stack[sp - 1] = load(stack[sp - 1], 1 << code[pc] - Decoder.LOAD_8);
+                        pc++;
+                    }
+                    case Decoder.STORE_64 -> {
+                        long value = stack[--sp];
+                        long address = stack[--sp];
+                        if (address >>> 62 == 0 && (address & 7) == 0 && address >>> 3 < sp) {
+                            stack[(int) (address >>> 3)] = value;
+                        } else {
+                            this.sp = sp + 2;
+                            store(8);
+                        }
+                        pc++;
+                    }
+                    case Decoder.STORE_8, Decoder.STORE_16, Decoder.STORE_32 -> {
+                        this.sp = sp;
+                        store(1 << code[pc] - Decoder.STORE_8);
+                        sp = this.sp;
+                        pc++;
+                    }
+                    case Decoder.STACKALLOC -> {
+                        this.sp = sp;
+                        alloc(code[pc + 1]);
+                        sp = this.sp;
+                        pc += 2;
+                    }
+                    case Decoder.ALLOC -> {
+                        stack[sp - 1] = heap.alloc(stack[sp - 1]);
+                        pc++;
+                    }
+                    case Decoder.FREE -> {
+                        heap.free(stack[--sp]);
+                        pc++;
+                    }
+                    case Decoder.ADD_I -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] += r;
+                        pc++;
+                    }
+                    case Decoder.SUB_I -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] -= r;
+                        pc++;
+                    }
+                    case Decoder.MUL_I -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] *= r;
+                        pc++;
+                    }
+                    case Decoder.DIV_I -> {
+                        long r = stack[--sp];
+                        if (r == 0)
+                            throw new VmError("divide by zero");
+                        stack[sp - 1] /= r;
+                        pc++;
+                    }
+                    case Decoder.DIV_U -> {
+                        long r = stack[--sp];
+                        if (r == 0)
+                            throw new VmError("divide by zero");
+                        stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], r);
+                        pc++;
+                    }
+                    case Decoder.ADD_F -> {
+                        double r = Double.longBitsToDouble(stack[--sp]);
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) + r);
+                        pc++;
+                    }
+                    case Decoder.SUB_F -> {
+                        double r = Double.longBitsToDouble(stack[--sp]);
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) - r);
+                        pc++;
+                    }
+                    case Decoder.MUL_F -> {
+                        double r = Double.longBitsToDouble(stack[--sp]);
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) * r);
+                        pc++;
+                    }
+                    case Decoder.DIV_F -> {
+                        double r = Double.longBitsToDouble(stack[--sp]);
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) / r);
+                        pc++;
+                    }
+                    case Decoder.SHL -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] <<= r;
+                        pc++;
+                    }
+                    case Decoder.SHR -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] >>= r;
+                        pc++;
+                    }
+                    case Decoder.SHRL -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] >>>= r;
+                        pc++;
+                    }
+                    case Decoder.OR -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] |= r;
+                        pc++;
+                    }
+                    case Decoder.XOR -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] ^= r;
+                        pc++;
+                    }
+                    case Decoder.NOT -> {
+                        stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                        pc++;
+                    }
+                    case Decoder.CMP_I -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] = Long.compare(stack[sp - 1], r);
+                        pc++;
+                    }
+                    case Decoder.CMP_U -> {
+                        long r = stack[--sp];
+                        stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], r);
+                        pc++;
+                    }
+                    case Decoder.CMP_F -> {
+                        double r = Double.longBitsToDouble(stack[--sp]);
+                        double l = Double.longBitsToDouble(stack[sp - 1]);
+                        stack[sp - 1] = l < r ? -1 : l > r ? 1 : 0;
+                        pc++;
+                    }
+                    case Decoder.NEG_I -> {
+                        stack[sp - 1] = -stack[sp - 1];
+                        pc++;
+                    }
+                    case Decoder.NEG_F -> {
+                        stack[sp - 1] = Double.doubleToRawLongBits(-Double.longBitsToDouble(stack[sp - 1]));
+                        pc++;
+                    }
+                    case Decoder.ITOF -> {
+                        stack[sp - 1] = Double.doubleToRawLongBits((double) stack[sp - 1]);
+                        pc++;
+                    }
+                    case Decoder.FTOI -> {
+                        stack[sp - 1] = (long) Double.longBitsToDouble(stack[sp - 1]);
+                        pc++;
+                    }
+                    case Decoder.SET_LT -> {
+                        stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                        pc++;
+                    }
+                    case Decoder.SET_GT -> {
+                        stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                        pc++;
+                    }
+                    case Decoder.ADD_IMM -> {
+                        executed++;
+                        stack[sp - 1] += code[pc + 1];
+                        pc += 2;
+                    }
+                    case Decoder.BR_LT_I -> {
+                        executed += 2;
+                        sp -= 2;
+                        pc = stack[sp] < stack[sp + 1] ? code[pc + 1] : pc + 2;
+                    }
+                    case Decoder.BR_GE_I -> {
+                        executed += 2;
+                        sp -= 2;
+                        pc = stack[sp] >= stack[sp + 1] ? code[pc + 1] : pc + 2;
+                    }
+                    case Decoder.BR_GT_I -> {
+                        executed += 2;
+                        sp -= 2;
+                        pc = stack[sp] > stack[sp + 1] ? code[pc + 1] : pc + 2;
+                    }
+                    case Decoder.BR_LE_I -> {
+                        executed += 2;
+                        sp -= 2;
+                        pc = stack[sp] <= stack[sp + 1] ? code[pc + 1] : pc + 2;
+                    }
+                    case Decoder.BR_EQ_I -> {
+                        executed += 1;
+                        sp -= 2;
+                        pc = stack[sp] == stack[sp + 1] ? code[pc + 1] : pc + 2;
+                    }
+                    case Decoder.BR_NE_I -> {
+                        executed += 1;
+                        sp -= 2;
+                        pc = stack[sp] != stack[sp + 1] ? code[pc + 1] : pc + 2;
+                    }
+                    case Decoder.BR_LT_F, Decoder.BR_GE_F, Decoder.BR_GT_F, Decoder.BR_LE_F,
+                            Decoder.BR_EQ_F, Decoder.BR_NE_F -> {
+                        double r = Double.longBitsToDouble(stack[--sp]);
+                        double l = Double.longBitsToDouble(stack[--sp]);
+                        boolean taken;
+                        switch (code[pc]) {
+                            case Decoder.BR_LT_F -> taken = l < r;
+                            case Decoder.BR_GE_F -> taken = !(l < r);
+                            case Decoder.BR_GT_F -> taken = l > r;
+                            case Decoder.BR_LE_F -> taken = !(l > r);
+                            case Decoder.BR_EQ_F -> taken = !(l < r || l > r);
+                            default -> taken = l < r || l > r;
+                        }
+                        executed += Decoder.length(code[pc]) - 1;
+                        pc = taken ? code[pc + 1] : pc + 2;
+                    }
+                    case Decoder.BR -> pc = code[pc + 1];
+                    case Decoder.BR_FALSE -> pc = stack[--sp] == 0 ? code[pc + 1] : pc + 2;
+                    case Decoder.BR_TRUE -> pc = stack[--sp] != 0 ? code[pc + 1] : pc + 2;
+                    case Decoder.CALL -> {
+                        if (depth == maxDepth)
+                            throw new VmError("call stack overflow");
+                        int callee = code[pc + 1];
+                        JitFunction compiled = jit == null ? null : jit.enter(callee);
+                        if (compiled != null) {
+                            Function f = functions.get(callee);
+                            int args = sp - f.paramSlots;
+                            long result = compiled.call(Arrays.copyOfRange(stack, args, sp), callNative(sp, depth));
+                            sp = args - f.retSlots;
+                            if (f.retSlots > 0)
+                                stack[sp++] = result;
+                            pc += 2;
+                            continue;
+                        }
+                        ctlFn[depth] = fnId;
+                        ctlPc[depth] = pc + 2;
+                        ctlArg[depth] = argBase;
+                        ctlLoc[depth] = locBase;
+                        depth++;
+                        fnId = callee;
+                        fn = functions.get(fnId);
+                        code = codes[fnId];
+                        pc = 0;
+                        argBase = sp - fn.retSlots - fn.paramSlots;
+                        locBase = sp;
+                        this.sp = sp;
+                        alloc(fn.locSlots);
+                        sp = this.sp;
+                    }
+                    case Decoder.RET -> {
+                        sp = argBase + fn.retSlots;
+                        if (depth == base)
+                            return;
+                        depth--;
+                        fnId = ctlFn[depth];
+                        fn = functions.get(fnId);
+                        code = codes[fnId];
+                        pc = ctlPc[depth];
+                        argBase = ctlArg[depth];
+                        locBase = ctlLoc[depth];
+                    }
+                    case Decoder.CALLNAME -> throw new VmError("callname is not supported");
+                    case Decoder.SCAN_I -> {
+                        stack[sp++] = scanInt();
+                        pc++;
+                    }
+                    case Decoder.SCAN_C -> {
+                        stack[sp++] = scanChar();
+                        pc++;
+                    }
+                    case Decoder.SCAN_F -> {
+                        stack[sp++] = Double.doubleToRawLongBits(scanDouble());
+                        pc++;
+                    }
+                    case Decoder.PRINT_I -> {
+                        printInt(stack[--sp]);
+                        pc++;
+                    }
+                    case Decoder.PRINT_C -> {
+                        printChar(stack[--sp]);
+                        pc++;
+                    }
+                    case Decoder.PRINT_F -> {
+                        printDouble(Double.longBitsToDouble(stack[--sp]));
+                        pc++;
+                    }
+                    case Decoder.PRINTS -> {
+                        printString(stack[--sp]);
+                        pc++;
+                    }
+                    case Decoder.PRINTLN -> {
+                        printLine();
+                        pc++;
+                    }
+                    case Decoder.PANIC -> throw new VmError("panic");
+                    case Decoder.END -> throw new VmError("control reaches end of function " + fn.name);
+                    default -> throw new VmError("unsupported instruction " + Decoder.name(code[pc]));
+                }
+            }
+        } finally {
+            this.sp = sp;
+            this.depth = base;
+            this.executed += executed;
+        }
+    }
+
+    /**
+     * 调用编译出的代码前同步栈顶和调用深度
+     *
+     * @return 运行时对象
+     */
+    private JitRuntime callNative(int sp, int depth) {
+        this.sp = sp;
+        this.depth = depth;
+        return runtime;
+    }
+
+    /**
+     * 编译出的函数的调用深度和解释执行的记在一起，深度限制和解释执行时相同
+     */
+    void enterCompiled() {
+        if (depth == maxDepth)
+            throw new VmError("call stack overflow");
+        depth++;
+    }
+
+    void leaveCompiled() {
+        depth--;
+    }
+
+    /**
+     * 编译出的代码调用没有编译的函数：把返回值槽和参数放到栈顶，解释执行
+     *
+     * @return 返回值，没有返回值时为 0
+     */
+    long invoke(int fnId, long[] args) {
+        Function fn = program.functions.get(fnId);
+        int argBase = sp;
+        int depth = this.depth;
+        if (depth == maxDepth)
+            throw new VmError("call stack overflow");
+        alloc(fn.retSlots + args.length);
+        System.arraycopy(args, 0, stack, argBase + fn.retSlots, args.length);
+        this.depth = depth + 1;
+        try {
+            interpret(fnId, argBase);
+        } finally {
+            this.depth = depth;
+        }
+        long result = fn.retSlots > 0 ? stack[argBase] : 0;
+        sp = argBase;
+        return result;
+    }
+
+    private void push(long value) {
+        if (sp == stack.length)
+            throw new VmError("stack overflow");
+        stack[sp++] = value;
+    }
+
+    private long pop() {
+        if (sp == 0)
+            throw new VmError("stack underflow");
+        return stack[--sp];
+    }
+
+    private long peek() {
+        if (sp == 0)
+            throw new VmError("stack underflow");
+        return stack[sp - 1];
+    }
+
+    private void pushDouble(double value) {
+        push(Double.doubleToRawLongBits(value));
+    }
+
+    private double popDouble() {
+        return Double.longBitsToDouble(pop());
+    }
+
+    /**
+     * 在栈顶分配 n 个置零的槽
+     */
+    private void alloc(int n) {
+        if (sp + n > stack.length)
+            throw new VmError("stack overflow");
+        for (int i = 0; i < n; i++) {
+            stack[sp + i] = 0;
+        }
+        sp += n;
+    }
+
+    long load(long address, int size) {
+        if (address >>> 62 == 0) {
+            int slot = stackSlot(address, size);
+            return stack[slot];
+        }
+        if (address >>> 62 == 2)
+            return heap.load(address, size);
+        ByteBuffer buffer = globalBuffer(address, size);
+        int offset = (int) address;
+        switch (size) {
+            case 1: return buffer.get(offset) & 0xffL;
+            case 2: return buffer.getShort(offset) & 0xffffL;
+            case 4: return buffer.getInt(offset) & 0xffffffffL;
+            default: return buffer.getLong(offset);
+        }
+    }
+
+    /**
+     * 栈上依次是地址和值
+     */
+    private void store(int size) {
+        long value = pop();
+        long address = pop();
+        store(address, value, size);
+    }
+
+    void store(long address, long value, int size) {
+        if (address >>> 62 == 0) {
+            stack[stackSlot(address, size)] = value;
+            return;
+        }
+        if (address >>> 62 == 2) {
+            heap.store(address, value, size);
+            return;
+        }
+        ByteBuffer buffer = globalBuffer(address, size);
+        int offset = (int) address;
+        switch (size) {
+            case 1 -> buffer.put(offset, (byte) value);
+            case 2 -> buffer.putShort(offset, (short) value);
+            case 4 -> buffer.putInt(offset, (int) value);
+            default -> buffer.putLong(offset, value);
+        }
+    }
+
+    private int stackSlot(long address, int size) {
+        if (size != 8 || (address & 7) != 0 || address >>> 3 >= sp)
+            throw new VmError("invalid stack address " + address);
+        return (int) (address >>> 3);
+    }
+
+    private ByteBuffer globalBuffer(long address, int size) {
+        if (address >>> 62 != 1)
+            throw new VmError("invalid address " + address);
+        int global = (int) (address >>> 32 & 0x3fffffff);
+        int offset = (int) address;
+        if (global >= program.globals.size() || offset < 0 || offset + size > program.globals.get(global).length)
+            throw new VmError("invalid global address " + address);
+        return ByteBuffer.wrap(program.globals.get(global)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    long allocate(long size) {
+        return heap.alloc(size);
+    }
+
+    void release(long address) {
+        heap.free(address);
+    }
+
+    //输入输出，两个解释循环和编译出的代码都经过这里
+
+    long scanInt() {
+        return io.scanLong();
+    }
+
+    long scanChar() {
+        return io.scanChar();
+    }
+
+    double scanDouble() {
+        return io.scanDouble();
+    }
+
+    void printInt(long value) {
+        io.printLong(value);
+    }
+
+    void printChar(long value) {
+        io.printChar(value);
+    }
+
+    void printDouble(double value) {
+        io.printDouble(value);
+    }
+
+    /**
+     * @param global 全局变量编号
+     */
+    void printString(long global) {
+        if (global < 0 || global >= program.globals.size())
+            throw new VmError("invalid global " + global);
+        io.printBytes(program.globals.get((int) global));
+    }
+
+    void printLine() {
+        io.printLine();
+    }
+
+    /**
+     * @return 解释执行的指令条数，编译出的代码执行的不计
+     */
+    public long getExecuted() {
+        return executed;
+    }
+}
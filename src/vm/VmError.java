@@ -0,0 +1,12 @@
+package vm;
+
+/**
+ * 虚拟机运行时错误：panic、除零、栈溢出、非法地址等
+ */
+public class VmError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public VmError(String message) {
+        super(message);
+    }
+}